@@ -28,8 +28,11 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * An alternative identity-comparing {@link java.util.concurrent.ConcurrentMap} which is similar to
@@ -1489,6 +1492,139 @@ public final class ConcurrentIdentityHashMap<K, V> extends AbstractMap<K, V> imp
     }
   }
 
+  /**
+   * Weakly consistent spliterator which is split between segments, and then
+   * between the bins of a segment's table, without locking or copying.
+   */
+  final class HashSpliterator<E> implements Spliterator<E>
+  {
+    final Function<HashEntry<K, V>, E> element;
+    final int characteristics;
+    int nextSegmentIndex;
+    int segmentFence;
+    HashEntry<K, V>[] currentTable;
+    int nextTableIndex;
+    int tableFence;
+    HashEntry<K, V> nextEntry;
+    long est;
+
+    HashSpliterator(Function<HashEntry<K, V>, E> element, int characteristics)
+    {
+      this.element = element;
+      this.characteristics = characteristics;
+      segmentFence = segments.length;
+      for (Segment<K, V> segment : segments)
+      {
+        est += segment.count;
+      }
+    }
+
+    HashSpliterator(HashSpliterator<E> parent, int segmentIndex, int segmentFence, HashEntry<K, V>[] table,
+                    int tableIndex, int tableFence, long est)
+    {
+      element = parent.element;
+      characteristics = parent.characteristics;
+      nextSegmentIndex = segmentIndex;
+      this.segmentFence = segmentFence;
+      currentTable = table;
+      nextTableIndex = tableIndex;
+      this.tableFence = tableFence;
+      this.est = est;
+    }
+
+    @Override
+    public Spliterator<E> trySplit()
+    {
+      int n = segmentFence - nextSegmentIndex;
+      if (n > 1 || n == 1 && (nextEntry != null || nextTableIndex < tableFence))
+      {
+        int mid = n > 1 ? (nextSegmentIndex + segmentFence) >>> 1 : nextSegmentIndex;
+        HashSpliterator<E> split = new HashSpliterator<E>(this, mid, segmentFence, null, 0, 0, est >>>= 1);
+        segmentFence = mid;
+        return split;
+      }
+      if (n == 1 && nextEntry == null)
+      {
+        Segment<K, V> seg = segments[nextSegmentIndex++];
+        if (seg.count == 0)
+        {
+          return null;
+        }
+        currentTable = seg.table;
+        nextTableIndex = 0;
+        tableFence = currentTable.length;
+      }
+      int mid = (nextTableIndex + tableFence) >>> 1;
+      if (mid <= nextTableIndex)
+      {
+        return null;
+      }
+      HashSpliterator<E> split = new HashSpliterator<E>(this, 0, 0, currentTable, mid, tableFence, est >>>= 1);
+      tableFence = mid;
+      return split;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super E> action)
+    {
+      if (action == null)
+      {
+        throw new NullPointerException();
+      }
+      for (;;)
+      {
+        HashEntry<K, V> e = nextEntry;
+        if (e != null)
+        {
+          nextEntry = e.next;
+          if (e.key() != null) // Skip GC'd keys
+          {
+            action.accept(element.apply(e));
+            return true;
+          }
+        }
+        else if (nextTableIndex < tableFence)
+        {
+          nextEntry = currentTable[nextTableIndex++];
+        }
+        else if (nextSegmentIndex < segmentFence)
+        {
+          Segment<K, V> seg = segments[nextSegmentIndex++];
+          if (seg.count != 0)
+          {
+            currentTable = seg.table;
+            nextTableIndex = 0;
+            tableFence = currentTable.length;
+          }
+        }
+        else
+        {
+          return false;
+        }
+      }
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super E> action)
+    {
+      while (tryAdvance(action))
+      {
+      }
+    }
+
+    @Override
+    public long estimateSize()
+    {
+      return est;
+    }
+
+    @Override
+    public int characteristics()
+    {
+      return characteristics;
+    }
+  }
+
   final class KeySet extends AbstractSet<K>
   {
     @Override
@@ -1497,6 +1633,12 @@ public final class ConcurrentIdentityHashMap<K, V> extends AbstractMap<K, V> imp
       return new KeyIterator();
     }
 
+    @Override
+    public Spliterator<K> spliterator()
+    {
+      return new HashSpliterator<K>(HashEntry::key, Spliterator.CONCURRENT | Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
     @Override
     public int size()
     {
@@ -1536,6 +1678,12 @@ public final class ConcurrentIdentityHashMap<K, V> extends AbstractMap<K, V> imp
       return new ValueIterator();
     }
 
+    @Override
+    public Spliterator<V> spliterator()
+    {
+      return new HashSpliterator<V>(HashEntry::value, Spliterator.CONCURRENT | Spliterator.NONNULL);
+    }
+
     @Override
     public int size()
     {
@@ -1569,6 +1717,13 @@ public final class ConcurrentIdentityHashMap<K, V> extends AbstractMap<K, V> imp
       return new EntryIterator();
     }
 
+    @Override
+    public Spliterator<Entry<K, V>> spliterator()
+    {
+      return new HashSpliterator<Entry<K, V>>(e -> new WriteThroughEntry(e.key(), e.value()),
+                                              Spliterator.CONCURRENT | Spliterator.DISTINCT | Spliterator.NONNULL);
+    }
+
     @Override
     public boolean contains(Object o)
     {
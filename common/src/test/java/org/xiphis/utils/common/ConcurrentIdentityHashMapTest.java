@@ -0,0 +1,127 @@
+package org.xiphis.utils.common;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Spliterator;
+
+import static org.junit.Assert.*;
+
+public class ConcurrentIdentityHashMapTest {
+
+  private static ConcurrentIdentityHashMap<Object, Integer> map(int size, float loadFactor, int concurrencyLevel) {
+    ConcurrentIdentityHashMap<Object, Integer> map = new ConcurrentIdentityHashMap<>(16, loadFactor, concurrencyLevel);
+    for (int i = 0; i < size; i++) {
+      map.put(new Object(), i);
+    }
+    return map;
+  }
+
+  /**
+   * Splits recursively, advancing each part by a random number of elements
+   * before every split attempt, and counts how often each element is seen.
+   */
+  private static <E> Map<E, Integer> traverse(Spliterator<E> root, Random random) {
+    Map<E, Integer> seen = new IdentityHashMap<>();
+    Deque<Spliterator<E>> pending = new ArrayDeque<>();
+    pending.push(root);
+    while (!pending.isEmpty()) {
+      Spliterator<E> spliterator = pending.pop();
+      for (;;) {
+        boolean more = true;
+        for (int n = random.nextInt(3); more && n > 0; n--) {
+          more = spliterator.tryAdvance(e -> seen.merge(e, 1, Integer::sum));
+        }
+        if (!more) {
+          break;
+        }
+        Spliterator<E> split = spliterator.trySplit();
+        if (split != null) {
+          pending.push(split);
+        } else {
+          spliterator.forEachRemaining(e -> seen.merge(e, 1, Integer::sum));
+          break;
+        }
+      }
+    }
+    return seen;
+  }
+
+  private static void assertCoveredOnce(ConcurrentIdentityHashMap<Object, Integer> map, long seed) {
+    Map<Object, Integer> keys = traverse(map.keySet().spliterator(), new Random(seed));
+    assertEquals(map.size(), keys.size());
+    for (Object key : map.keySet()) {
+      assertEquals(Integer.valueOf(1), keys.get(key));
+    }
+
+    Map<Integer, Integer> values = traverse(map.values().spliterator(), new Random(seed));
+    assertEquals(map.size(), values.size());
+    for (Integer count : values.values()) {
+      assertEquals(Integer.valueOf(1), count);
+    }
+
+    Map<Map.Entry<Object, Integer>, Integer> entries = traverse(map.entrySet().spliterator(), new Random(seed));
+    Map<Object, Integer> entryKeys = new IdentityHashMap<>();
+    for (Map.Entry<Object, Integer> entry : entries.keySet()) {
+      assertSame(map.get(entry.getKey()), entry.getValue());
+      assertNull(entryKeys.put(entry.getKey(), entry.getValue()));
+    }
+    assertEquals(map.size(), entryKeys.size());
+  }
+
+  @Test
+  public void testSplitCoversEveryEntryOnce() throws Exception {
+    ConcurrentIdentityHashMap<Object, Integer> map = map(10000, 0.75f, 16);
+    for (long seed = 0; seed < 10; seed++) {
+      assertCoveredOnce(map, seed);
+    }
+  }
+
+  @Test
+  public void testEmptySegments() throws Exception {
+    // Most of the 64 segments hold no entries.
+    for (int size = 0; size < 5; size++) {
+      ConcurrentIdentityHashMap<Object, Integer> map = map(size, 0.75f, 64);
+      for (long seed = 0; seed < 10; seed++) {
+        assertCoveredOnce(map, seed);
+      }
+    }
+  }
+
+  @Test
+  public void testSplitMidChain() throws Exception {
+    // A single segment with long chains, so that parts are often split
+    // after advancing into a chain.
+    ConcurrentIdentityHashMap<Object, Integer> map = map(1000, 16f, 1);
+    for (long seed = 0; seed < 10; seed++) {
+      assertCoveredOnce(map, seed);
+    }
+  }
+
+  @Test
+  public void testSplitWithoutTraversal() throws Exception {
+    ConcurrentIdentityHashMap<Object, Integer> map = map(1000, 0.75f, 16);
+    Deque<Spliterator<Object>> pending = new ArrayDeque<>();
+    pending.push(map.keySet().spliterator());
+    Map<Object, Integer> seen = new IdentityHashMap<>();
+    int parts = 0;
+    while (!pending.isEmpty()) {
+      Spliterator<Object> spliterator = pending.pop();
+      Spliterator<Object> split = spliterator.trySplit();
+      if (split != null) {
+        pending.push(split);
+        pending.push(spliterator);
+      } else {
+        parts++;
+        spliterator.forEachRemaining(e -> seen.merge(e, 1, Integer::sum));
+      }
+    }
+    assertTrue(parts > 16);
+    assertEquals(map.size(), seen.size());
+    assertFalse(seen.values().stream().anyMatch(count -> count != 1));
+  }
+}
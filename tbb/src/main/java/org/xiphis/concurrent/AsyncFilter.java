@@ -0,0 +1,60 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import io.netty.util.concurrent.Future;
+
+/**
+ * Filter whose operation completes asynchronously.
+ *
+ * <p>When the future returned by {@link #operatorAsync(Object)} is not yet
+ * complete, the pipeline parks the token without occupying a worker and
+ * resumes it on the scheduler once the future completes. A serial async
+ * filter does not start the next item until the future of the previous item
+ * has completed, so items still pass through it one at a time and, if
+ * ordered, in order; a parallel one may have many futures outstanding.</p>
+ *
+ * <p>As an input filter, a future which completes with {@code null} marks
+ * the end of input. A future which fails cancels the pipeline with its
+ * cause.</p>
+ *
+ * @param <T> Type of items
+ */
+public abstract class AsyncFilter<T> extends Filter<T>
+{
+  protected AsyncFilter(Mode filter_mode)
+  {
+    super(filter_mode);
+  }
+
+  /**
+   * Start operating on an item from the input stream.
+   *
+   * @param item input item
+   * @return future of the output item
+   */
+  public abstract Future<T> operatorAsync(T item);
+
+  /**
+   * Operate on the item, waiting for the operation to complete.
+   * <p>Used only where the pipeline cannot park the token, such as a
+   * pipeline with a single filter.</p>
+   *
+   * @param item input item
+   * @return output item
+   */
+  @Override
+  public final T operator(T item)
+  {
+    return operatorAsync(item).syncUninterruptibly().getNow();
+  }
+}
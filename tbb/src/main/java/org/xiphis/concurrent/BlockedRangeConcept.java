@@ -46,6 +46,17 @@ public abstract class BlockedRangeConcept<Value, R extends BlockedRangeConcept<V
     return s;
   }
 
+  @Override
+  public R split(R r, int left, int right)
+  {
+    assert r.isDivisible() : "cannot split indivisible range";
+    R s = dup(r);
+    Value middle = r.increment(r.begin(), proportion(r.difference(r.end(), r.begin()), left, right));
+    r._end = middle;
+    s._begin = middle;
+    return s;
+  }
+
   public abstract class BlockedRange extends Range
   {
     Value _begin;
@@ -13,10 +13,18 @@ package org.xiphis.concurrent;
 
 import org.xiphis.utils.common.Factory;
 
+import java.util.function.Supplier;
+
 public final class EmptyTask extends Task
 {
   public static final Factory<EmptyTask> FACTORY = new EmptyTaskFactory();
 
+  /**
+   * Supplies empty tasks, recycling those previously executed by the current
+   * thread, without allocating an argument array.
+   */
+  public static final Supplier<EmptyTask> SUPPLIER = Task::allocateEmptyTask;
+
   @Override
   public Task execute()
   {
@@ -28,7 +36,7 @@ public final class EmptyTask extends Task
     @Override
     public EmptyTask construct(Object... arguments)
     {
-      return new EmptyTask();
+      return allocateEmptyTask();
     }
   }
 }
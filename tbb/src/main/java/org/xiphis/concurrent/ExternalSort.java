@@ -0,0 +1,526 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stable sort of data sets larger than the heap.
+ *
+ * <p>The input is read into runs of {@link #setRunSize(int)} records, each of
+ * which is sorted with {@link Parallel#parallelStableSort} and written to a
+ * temporary file, while the next run is being read. The runs are then
+ * combined by k-way merges, {@link #setFanIn(int)} runs at a time, using a
+ * loser tree. Both phases are {@link ParallelPipeline}s, so reading, sorting
+ * or merging, encoding and writing overlap.</p>
+ *
+ * @param <T> type of record
+ */
+public final class ExternalSort<T>
+{
+  /**
+   * Reads and writes records.
+   *
+   * @param <T> type of record
+   */
+  public interface Codec<T>
+  {
+    /**
+     * @param in input
+     * @return next record, or {@code null} at the end of the input.
+     * @throws IOException on failure
+     */
+    T read(DataInputStream in)
+        throws IOException;
+
+    /**
+     * @param out output
+     * @param record record
+     * @throws IOException on failure
+     */
+    void write(DataOutputStream out, T record)
+        throws IOException;
+  }
+
+  /**
+   * Records encoded by each token of a merge.
+   */
+  static final int merge_batch = 4096;
+
+  static final int buffer_size = 1 << 16;
+
+  private final Codec<T> _codec;
+  private final Comparator<? super T> _comp;
+  private int _runSize = 1 << 20;
+  private int _fanIn = 64;
+  private Path _tempDirectory;
+
+  public ExternalSort(Codec<T> codec, Comparator<? super T> comp)
+  {
+    if (codec == null || comp == null)
+      throw new NullPointerException();
+    _codec = codec;
+    _comp = comp;
+  }
+
+  /**
+   * Sets the number of records sorted in memory at a time. Up to three runs
+   * are held in memory while the runs are generated.
+   *
+   * @param run_size records per run
+   * @return this
+   */
+  public ExternalSort<T> setRunSize(int run_size)
+  {
+    if (run_size < 1)
+      throw new IllegalArgumentException("run size must be positive");
+    _runSize = run_size;
+    return this;
+  }
+
+  /**
+   * Sets the number of runs combined by each merge.
+   *
+   * @param fan_in runs per merge
+   * @return this
+   */
+  public ExternalSort<T> setFanIn(int fan_in)
+  {
+    if (fan_in < 2)
+      throw new IllegalArgumentException("fan in must be at least 2");
+    _fanIn = fan_in;
+    return this;
+  }
+
+  /**
+   * Sets the directory of the temporary run files.
+   *
+   * @param directory directory, or {@code null} for the default.
+   * @return this
+   */
+  public ExternalSort<T> setTempDirectory(Path directory)
+  {
+    _tempDirectory = directory;
+    return this;
+  }
+
+  public void sort(Path input, Path output)
+      throws IOException
+  {
+    try (InputStream in = Files.newInputStream(input); OutputStream out = Files.newOutputStream(output))
+    {
+      sort(in, out, new TaskGroupContext());
+    }
+  }
+
+  public void sort(InputStream input, OutputStream output)
+      throws IOException
+  {
+    sort(input, output, new TaskGroupContext());
+  }
+
+  /**
+   * Sorts the records of the input into the output. The streams are not
+   * closed.
+   *
+   * @param input input
+   * @param output output
+   * @param context context
+   * @throws IOException on failure
+   */
+  public void sort(InputStream input, OutputStream output, TaskGroupContext context)
+      throws IOException
+  {
+    List<Run> runs = new ArrayList<>();
+    List<Run> merged_runs = new ArrayList<>();
+    try
+    {
+      generateRuns(new DataInputStream(new BufferedInputStream(input, buffer_size)), runs, context);
+      while (runs.size() > _fanIn)
+      {
+        List<Run> merged = new ArrayList<>();
+        for (int i = 0; i < runs.size(); i += _fanIn)
+        {
+          List<Run> group = runs.subList(i, Math.min(i + _fanIn, runs.size()));
+          if (group.size() == 1)
+          {
+            merged.add(group.get(0));
+            continue;
+          }
+          Run run = new Run(createRunFile());
+          merged.add(run);
+          merged_runs.add(run);
+          try (OutputStream out = Files.newOutputStream(run.path))
+          {
+            run.count = merge(group, out, context);
+          }
+          for (Run r : group)
+          {
+            Files.delete(r.path);
+          }
+        }
+        runs = merged;
+      }
+      merge(runs, output, context);
+      output.flush();
+    }
+    finally
+    {
+      for (Run run : runs)
+      {
+        Files.deleteIfExists(run.path);
+      }
+      for (Run run : merged_runs)
+      {
+        Files.deleteIfExists(run.path);
+      }
+    }
+  }
+
+  private static final class Run
+  {
+    final Path path;
+    long count;
+
+    Run(Path path)
+    {
+      this.path = path;
+    }
+  }
+
+  /**
+   * Run being read or written by the run generation pipeline.
+   */
+  private static final class Chunk
+  {
+    final Object[] records;
+    final int count;
+    Run run;
+
+    Chunk(Object[] records, int count)
+    {
+      this.records = records;
+      this.count = count;
+    }
+  }
+
+  private Path createRunFile()
+      throws IOException
+  {
+    return _tempDirectory != null
+        ? Files.createTempFile(_tempDirectory, "run", ".tmp") : Files.createTempFile("run", ".tmp");
+  }
+
+  private static RuntimeException failed(AtomicReference<Exception> failure, Exception e)
+  {
+    failure.compareAndSet(null, e);
+    return e instanceof RuntimeException ? (RuntimeException) e : new UncheckedIOException((IOException) e);
+  }
+
+  /**
+   * Rethrows the first failure of a pipeline, as the scheduler only cancels
+   * the context of a task which throws.
+   */
+  private static void checkFailure(AtomicReference<Exception> failure, TaskGroupContext context)
+      throws IOException
+  {
+    Exception e = failure.get();
+    if (e instanceof IOException)
+      throw (IOException) e;
+    if (e != null)
+      throw (RuntimeException) e;
+    if (context.isGroupExecutionCancelled())
+      throw new CancellationException();
+  }
+
+  @SuppressWarnings("unchecked")
+  private void generateRuns(DataInputStream in, List<Run> runs, TaskGroupContext context)
+      throws IOException
+  {
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    List<Run> created = Collections.synchronizedList(new ArrayList<>());
+    boolean[] end = { false };
+    ParallelPipeline.<Chunk>source(() -> {
+      if (end[0])
+      {
+        return null;
+      }
+      try
+      {
+        Object[] records = new Object[_runSize];
+        int count = 0;
+        T record;
+        while (count < records.length && (record = _codec.read(in)) != null)
+        {
+          records[count++] = record;
+        }
+        end[0] = count < records.length;
+        return count > 0 ? new Chunk(records, count) : null;
+      }
+      catch (IOException | RuntimeException e)
+      {
+        throw failed(failure, e);
+      }
+    }).then(Filter.Mode.parallel, chunk -> {
+      TaskGroupContext sort_context = new TaskGroupContext();
+      ParallelSort.stableSort((T[]) chunk.records, 0, chunk.count, _comp, sort_context);
+      try
+      {
+        if (sort_context.isGroupExecutionCancelled())
+          throw new CancellationException("run sort was cancelled");
+        chunk.run = new Run(createRunFile());
+        created.add(chunk.run);
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(chunk.run.path), buffer_size)))
+        {
+          for (int i = 0; i < chunk.count; i++)
+          {
+            _codec.write(out, (T) chunk.records[i]);
+          }
+        }
+        chunk.run.count = chunk.count;
+        return chunk;
+      }
+      catch (IOException | RuntimeException e)
+      {
+        throw failed(failure, e);
+      }
+    }).sink(Filter.Mode.serial_in_order, chunk -> runs.add(chunk.run)).run(3, context);
+    try
+    {
+      checkFailure(failure, context);
+    }
+    finally
+    {
+      // Runs of chunks which did not reach the sink are not in the list.
+      for (Run run : created)
+      {
+        if (!runs.contains(run))
+          Files.deleteIfExists(run.path);
+      }
+    }
+  }
+
+  /**
+   * Merges the runs into the output.
+   *
+   * @return number of records written
+   */
+  @SuppressWarnings("unchecked")
+  private long merge(List<Run> runs, OutputStream output, TaskGroupContext context)
+      throws IOException
+  {
+    if (runs.isEmpty())
+    {
+      return 0;
+    }
+    List<DataInputStream> inputs = new ArrayList<>(runs.size());
+    try
+    {
+      for (Run run : runs)
+      {
+        inputs.add(new DataInputStream(new BufferedInputStream(Files.newInputStream(run.path), buffer_size)));
+      }
+      LoserTree<T> tree = new LoserTree<>(runs.size(), _comp);
+      long[] remaining = new long[runs.size()];
+      for (int i = 0; i < remaining.length; i++)
+      {
+        remaining[i] = runs.get(i).count;
+        tree.set(i, next(inputs.get(i), remaining, i));
+      }
+      tree.init();
+
+      AtomicReference<Exception> failure = new AtomicReference<>();
+      long[] written = { 0 };
+      ParallelPipeline.<Object[]>source(() -> {
+        try
+        {
+          Object[] batch = null;
+          int count = 0;
+          int winner;
+          while (count < merge_batch && (winner = tree.winner()) >= 0)
+          {
+            if (batch == null)
+            {
+              batch = new Object[merge_batch];
+            }
+            batch[count++] = tree.head(winner);
+            tree.replace(winner, next(inputs.get(winner), remaining, winner));
+          }
+          written[0] += count;
+          return batch == null || count == batch.length ? batch : Arrays.copyOf(batch, count);
+        }
+        catch (IOException | RuntimeException e)
+        {
+          throw failed(failure, e);
+        }
+      }).then(Filter.Mode.parallel, batch -> {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(batch.length * 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+          for (Object record : batch)
+          {
+            _codec.write(out, (T) record);
+          }
+        }
+        catch (IOException | RuntimeException e)
+        {
+          throw failed(failure, e);
+        }
+        return bytes;
+      }).sink(Filter.Mode.serial_in_order, bytes -> {
+        try
+        {
+          bytes.writeTo(output);
+        }
+        catch (IOException | RuntimeException e)
+        {
+          throw failed(failure, e);
+        }
+      }).run(4, context);
+      checkFailure(failure, context);
+      return written[0];
+    }
+    finally
+    {
+      for (DataInputStream in : inputs)
+      {
+        in.close();
+      }
+    }
+  }
+
+  private T next(DataInputStream in, long[] remaining, int run)
+      throws IOException
+  {
+    if (remaining[run] == 0)
+    {
+      return null;
+    }
+    remaining[run]--;
+    T record = _codec.read(in);
+    if (record == null)
+      throw new IOException("run is truncated");
+    return record;
+  }
+
+  /**
+   * Tournament tree in which every internal node holds the loser of the match
+   * played there, so replacing the winner only replays the matches on the
+   * path from its leaf to the root. Ties are won by the earlier run, which
+   * keeps the merge stable.
+   */
+  static final class LoserTree<T>
+  {
+    private final int[] tree;
+    private final Object[] heads;
+    private final Comparator<? super T> comp;
+
+    LoserTree(int k, Comparator<? super T> comp)
+    {
+      tree = new int[k];
+      heads = new Object[k];
+      this.comp = comp;
+    }
+
+    void set(int source, T head)
+    {
+      heads[source] = head;
+    }
+
+    void init()
+    {
+      tree[0] = build(1);
+    }
+
+    private int build(int node)
+    {
+      int k = heads.length;
+      if (node >= k)
+      {
+        return node - k;
+      }
+      int a = build(node * 2);
+      int b = build(node * 2 + 1);
+      if (beats(a, b))
+      {
+        tree[node] = b;
+        return a;
+      }
+      tree[node] = a;
+      return b;
+    }
+
+    /**
+     * @return source of the least head, or {@code -1} if all are exhausted.
+     */
+    int winner()
+    {
+      int w = tree[0];
+      return heads[w] != null ? w : -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    T head(int source)
+    {
+      return (T) heads[source];
+    }
+
+    /**
+     * Replaces the head of the winning source and replays its path.
+     */
+    void replace(int source, T head)
+    {
+      heads[source] = head;
+      int winner = source;
+      for (int node = (source + heads.length) >> 1; node > 0; node >>= 1)
+      {
+        if (beats(tree[node], winner))
+        {
+          int t = tree[node];
+          tree[node] = winner;
+          winner = t;
+        }
+      }
+      tree[0] = winner;
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean beats(int a, int b)
+    {
+      if (heads[a] == null)
+        return false;
+      if (heads[b] == null)
+        return true;
+      int c = comp.compare((T) heads[a], (T) heads[b]);
+      return c < 0 || (c == 0 && a < b);
+    }
+  }
+}
@@ -11,6 +11,8 @@
  */
 package org.xiphis.concurrent;
 
+import java.util.List;
+
 public abstract class Filter<T>
 {
 
@@ -138,6 +140,24 @@ public abstract class Filter<T>
    */
   public abstract T operator(T item);
 
+  /**
+   * Operate on a batch of items when the pipeline runs in batch mode.
+   * <p>Each item is replaced by the corresponding output item. Items are
+   * supplied in the order in which they were read from the input, so a serial
+   * in order filter still sees the original order. The default applies
+   * {@link #operator(Object)} to each item in turn; parallel filters may
+   * override this to amortize per-item overhead.</p>
+   *
+   * @param items input items, replaced by output items
+   */
+  public void operatorBatch(List<T> items)
+  {
+    for (int i = 0, n = items.size(); i < n; i++)
+    {
+      items.set(i, operator(items.get(i)));
+    }
+  }
+
   /**
    * Destroys item if pipeline was cancelled.
    * <p>Note it can be called concurrently even for serial filters.</p>
@@ -148,6 +168,31 @@ public abstract class Filter<T>
   {
   }
 
+  /**
+   * Instrumentation counters, or {@code null} if instrumentation is
+   * disabled.
+   */
+  volatile FilterStatistics.Counters _counters;
+
+  /**
+   * Moving average of the time spent on each token, measured only when the
+   * pipeline needs it.
+   */
+  volatile long _serviceNanos;
+
+  /**
+   * Fold the time spent on a token into {@link #_serviceNanos}.
+   * <p>Updates from concurrent tokens may be lost, which is harmless for an
+   * average.</p>
+   *
+   * @param nanos time spent on a token
+   */
+  final void noteServiceTime(long nanos)
+  {
+    long avg = _serviceNanos;
+    _serviceNanos = avg == 0 ? nanos : avg + (nanos - avg >> 3);
+  }
+
   /**
    * Pointer to next filter in the pipeline.
    */
@@ -0,0 +1,220 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-only snapshot of the instrumentation of one filter of a
+ * {@link Pipeline}.
+ *
+ * <p>Durations are kept in histograms with power of 2 buckets, see
+ * {@link #operatorHistogram()}. The counters are updated concurrently, so a
+ * snapshot is not atomic with respect to them.</p>
+ *
+ * @see Pipeline#setInstrumented(boolean)
+ */
+public final class FilterStatistics
+{
+  private final int index;
+  private final long itemCount;
+  private final long operatorNanos;
+  private final long[] operatorHistogram;
+  private final long waitNanos;
+  private final long[] waitHistogram;
+  private final int depth;
+  private final int highWaterDepth;
+
+  FilterStatistics(int index, long itemCount, long operatorNanos, long[] operatorHistogram, long waitNanos,
+                   long[] waitHistogram, int depth, int highWaterDepth)
+  {
+    this.index = index;
+    this.itemCount = itemCount;
+    this.operatorNanos = operatorNanos;
+    this.operatorHistogram = operatorHistogram;
+    this.waitNanos = waitNanos;
+    this.waitHistogram = waitHistogram;
+    this.depth = depth;
+    this.highWaterDepth = highWaterDepth;
+  }
+
+  /**
+   * Position of the filter in the pipeline, starting from 0 for the input
+   * filter.
+   * @return index
+   */
+  public int index()
+  {
+    return index;
+  }
+
+  /**
+   * Number of items processed, counting each item of a batch.
+   * @return count
+   */
+  public long itemCount()
+  {
+    return itemCount;
+  }
+
+  /**
+   * Number of invocations of the filter, one for each token.
+   * @return count
+   */
+  public long invocationCount()
+  {
+    return count(operatorHistogram);
+  }
+
+  /**
+   * Total time spent in the filter's operator.
+   * @return nanoseconds
+   */
+  public long operatorNanos()
+  {
+    return operatorNanos;
+  }
+
+  /**
+   * Histogram of the time spent in the filter's operator for each token.
+   * <p>Element {@code i} counts invocations which took at least {@code 2^i}
+   * and less than {@code 2^(i+1)} nanoseconds.</p>
+   * @return bucket counts
+   */
+  public long[] operatorHistogram()
+  {
+    return operatorHistogram.clone();
+  }
+
+  /**
+   * Upper bound of the time spent in the operator by the given fraction of
+   * invocations.
+   * @param quantile fraction between 0 and 1
+   * @return nanoseconds
+   */
+  public long operatorQuantile(double quantile)
+  {
+    return quantile(operatorHistogram, quantile);
+  }
+
+  /**
+   * Number of tokens which had to wait in the filter's input buffer.
+   * @return count
+   */
+  public long waitCount()
+  {
+    return count(waitHistogram);
+  }
+
+  /**
+   * Total time tokens waited in the filter's input buffer.
+   * @return nanoseconds
+   */
+  public long waitNanos()
+  {
+    return waitNanos;
+  }
+
+  /**
+   * Histogram of the time tokens waited in the filter's input buffer, in the
+   * same buckets as {@link #operatorHistogram()}.
+   * @return bucket counts
+   */
+  public long[] waitHistogram()
+  {
+    return waitHistogram.clone();
+  }
+
+  /**
+   * Upper bound of the time waited by the given fraction of the tokens which
+   * had to wait in the input buffer.
+   * @param quantile fraction between 0 and 1
+   * @return nanoseconds
+   */
+  public long waitQuantile(double quantile)
+  {
+    return quantile(waitHistogram, quantile);
+  }
+
+  /**
+   * Number of tokens waiting in the input buffer when the snapshot was
+   * taken.
+   * @return depth
+   */
+  public int depth()
+  {
+    return depth;
+  }
+
+  /**
+   * Largest number of tokens which have waited in the input buffer at once.
+   * @return depth
+   */
+  public int highWaterDepth()
+  {
+    return highWaterDepth;
+  }
+
+  private static long count(long[] histogram)
+  {
+    long n = 0;
+    for (long c : histogram)
+    {
+      n += c;
+    }
+    return n;
+  }
+
+  private static long quantile(long[] histogram, double quantile)
+  {
+    long n = count(histogram);
+    if (n == 0)
+    {
+      return 0;
+    }
+    long rank = (long) Math.ceil(quantile * n);
+    long seen = 0;
+    for (int i = 0; i < histogram.length; i++)
+    {
+      seen += histogram[i];
+      if (seen >= rank && seen > 0)
+      {
+        return i < 62 ? (2L << i) - 1 : Long.MAX_VALUE;
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  @Override
+  public String toString()
+  {
+    return "FilterStatistics{index=" + index + " items=" + itemCount + " operatorNanos=" + operatorNanos +
+        " p50=" + operatorQuantile(0.5) + " p99=" + operatorQuantile(0.99) + " waits=" + waitCount() +
+        " waitNanos=" + waitNanos + " depth=" + depth + " highWater=" + highWaterDepth + "}";
+  }
+
+  /**
+   * Live counters of a filter, allocated while instrumentation is enabled.
+   */
+  static final class Counters
+  {
+    final LongAdder items = new LongAdder();
+    final Histogram operator = new Histogram();
+    final Histogram wait = new Histogram();
+
+    void recordOperator(long nanos, int count)
+    {
+      operator.record(nanos);
+      items.add(count);
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent histogram of durations in power of 2 buckets.
+ *
+ * <p>Bucket {@code i} counts durations of at least {@code 2^i} and less than
+ * {@code 2^(i+1)} nanoseconds; bucket 0 also counts zero. Recording is a
+ * pair of {@link LongAdder} increments, so it scales with the number of
+ * recording threads.</p>
+ */
+final class Histogram
+{
+  static final int BUCKETS = 64;
+
+  private final LongAdder[] buckets = new LongAdder[BUCKETS];
+  private final LongAdder total = new LongAdder();
+
+  Histogram()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  static int bucket(long nanos)
+  {
+    return nanos > 0 ? 63 - Long.numberOfLeadingZeros(nanos) : 0;
+  }
+
+  void record(long nanos)
+  {
+    buckets[bucket(nanos)].increment();
+    total.add(nanos);
+  }
+
+  long total()
+  {
+    return total.sum();
+  }
+
+  long[] counts()
+  {
+    long[] counts = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      counts[i] = buckets[i].sum();
+    }
+    return counts;
+  }
+}
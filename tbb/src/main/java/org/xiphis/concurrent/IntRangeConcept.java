@@ -46,6 +46,15 @@ public final class IntRangeConcept extends RangeConcept<IntRangeConcept.IntRange
     return result;
   }
 
+  @Override
+  public IntRange split(IntRange range, int left, int right)
+  {
+    int split = range.isDivisible() ? proportion(range.size(), left, right) : range.size();
+    IntRange result = new IntRange(range.begin() + split, range.size() - split);
+    range._size = split;
+    return result;
+  }
+
   public final class IntRange extends RangeConcept<IntRangeConcept.IntRange>.Range
   {
     int _begin;
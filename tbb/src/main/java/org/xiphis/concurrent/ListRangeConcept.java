@@ -68,6 +68,15 @@ public class ListRangeConcept<T>
     return result;
   }
 
+  @Override
+  public ListRange split(ListRange range, int left, int right)
+  {
+    int split = range.isDivisible() ? proportion(range.size(), left, right) : range.size();
+    ListRange result = new ListRange(range._list.subList(split, range.size()));
+    range._list = range._list.subList(0, split);
+    return result;
+  }
+
   public class ListRange
       extends RangeConcept<ListRange>.Range
   {
@@ -0,0 +1,363 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Range of the records of a memory mapped file.
+ *
+ * <p>The file is mapped read-only in windows which start every
+ * {@code window_size} bytes and extend {@code max_record_size} bytes into the
+ * next window, so files larger than 2GB can be mapped. Ranges are only ever
+ * split at record boundaries, as located by a {@link RecordFinder}, and a
+ * range which spans windows is always divisible, so the bodies of
+ * {@link Parallel#parallelFor} and {@link Parallel#parallelReduce} receive
+ * whole records within a single window, which they read through
+ * {@link FileRange#buffer()} without copying.</p>
+ *
+ * <p>That holds for partitioners which split every divisible range, such as
+ * the simple and auto partitioners. The static and affinity partitioners,
+ * and so {@link Parallel#parallelDeterministicReduce} with a static
+ * partitioner, stop splitting after a fixed number of chunks. A range which
+ * they pass to a body may then still span windows, and its
+ * {@link FileRange#buffer()} throws an {@link IllegalStateException}.</p>
+ *
+ * <p>The mapping stays valid after the channel is closed.</p>
+ */
+public final class MappedFileRangeConcept extends RangeConcept<MappedFileRangeConcept.FileRange>
+{
+  /**
+   * Locates record boundaries within a mapped window.
+   */
+  public interface RecordFinder
+  {
+    /**
+     * Finds the start of the first record which begins after {@code index}.
+     *
+     * @param buffer window, read with absolute gets
+     * @param index index to start looking from
+     * @param limit index at which to stop looking
+     * @return index of the start of the next record, which may be
+     * {@code limit}, or {@code -1} if there is none.
+     */
+    int next(ByteBuffer buffer, int index, int limit);
+  }
+
+  /**
+   * Records are terminated by {@code '\n'}.
+   */
+  public static final RecordFinder NEWLINE = delimiter((byte) '\n');
+
+  public static final int DEFAULT_GRAINSIZE = 1 << 16;
+  public static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+  public static final int DEFAULT_MAX_RECORD_SIZE = 1 << 20;
+
+  private final MappedByteBuffer[] _windows;
+  private final long _length;
+  private final int _grainsize;
+  private final int _windowSize;
+  private final RecordFinder _finder;
+
+  public MappedFileRangeConcept(Path path)
+      throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+    {
+      _length = channel.size();
+      _grainsize = DEFAULT_GRAINSIZE;
+      _windowSize = DEFAULT_WINDOW_SIZE;
+      _finder = NEWLINE;
+      _windows = map(channel, _length, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_RECORD_SIZE);
+    }
+  }
+
+  public MappedFileRangeConcept(FileChannel channel)
+      throws IOException
+  {
+    this(channel, DEFAULT_GRAINSIZE, NEWLINE);
+  }
+
+  public MappedFileRangeConcept(FileChannel channel, int grainsize, byte delimiter)
+      throws IOException
+  {
+    this(channel, grainsize, delimiter(delimiter));
+  }
+
+  public MappedFileRangeConcept(FileChannel channel, int grainsize, RecordFinder finder)
+      throws IOException
+  {
+    this(channel, grainsize, finder, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_RECORD_SIZE);
+  }
+
+  /**
+   * @param channel file to map
+   * @param grainsize ranges no larger than this many bytes are not split
+   * @param finder locates record boundaries
+   * @param window_size distance between the starts of the mapped windows
+   * @param max_record_size longest record which may cross the end of a
+   * window, by which windows overlap
+   * @throws IOException if the file could not be mapped
+   */
+  public MappedFileRangeConcept(FileChannel channel, int grainsize, RecordFinder finder, int window_size,
+                                int max_record_size)
+      throws IOException
+  {
+    if (grainsize <= 0 || window_size <= 0 || max_record_size <= 0
+        || (long) window_size + max_record_size > Integer.MAX_VALUE)
+      throw new IllegalArgumentException();
+    _length = channel.size();
+    _grainsize = grainsize;
+    _windowSize = window_size;
+    _finder = finder;
+    _windows = map(channel, _length, window_size, max_record_size);
+  }
+
+  private static MappedByteBuffer[] map(FileChannel channel, long length, int window_size, int max_record_size)
+      throws IOException
+  {
+    MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((length + window_size - 1) / window_size)];
+    for (int i = 0; i < windows.length; i++)
+    {
+      long start = (long) i * window_size;
+      windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                               Math.min((long) window_size + max_record_size, length - start));
+    }
+    return windows;
+  }
+
+  /**
+   * Returns a record finder for records terminated by the delimiter.
+   *
+   * @param delimiter delimiter
+   * @return record finder
+   */
+  public static RecordFinder delimiter(byte delimiter)
+  {
+    return (buffer, index, limit) -> {
+      for (int i = index; i < limit; i++)
+      {
+        if (buffer.get(i) == delimiter)
+        {
+          return i + 1;
+        }
+      }
+      return -1;
+    };
+  }
+
+  /**
+   * @return size of the file in bytes.
+   */
+  public long length()
+  {
+    return _length;
+  }
+
+  /**
+   * @return range of the whole file.
+   */
+  public FileRange newInstance()
+  {
+    return new FileRange(0, _length);
+  }
+
+  /**
+   * Returns a range of the file. The positions must be at record boundaries.
+   *
+   * @param begin position of the first byte
+   * @param end position after the last byte
+   * @return range
+   */
+  public FileRange newInstance(long begin, long end)
+  {
+    if (begin < 0 || begin > end || end > _length)
+      throw new IndexOutOfBoundsException();
+    return new FileRange(begin, end);
+  }
+
+  @Override
+  public FileRange dup(FileRange range)
+  {
+    return new FileRange(range._begin, range._end);
+  }
+
+  @Override
+  public FileRange split(FileRange r)
+  {
+    assert r.isDivisible() : "cannot split indivisible range";
+    FileRange s = new FileRange(r._split, r._end);
+    r._end = r._split;
+    r._split = -1;
+    return s;
+  }
+
+  private int window(long position)
+  {
+    return (int) (position / _windowSize);
+  }
+
+  private long windowStart(int window)
+  {
+    return (long) window * _windowSize;
+  }
+
+  /**
+   * Finds the first record boundary after the position, which must be within
+   * the window, and before the limit.
+   *
+   * @return position, or {@code -1} if there is none.
+   */
+  private long nextRecord(int window, long position, long limit)
+  {
+    MappedByteBuffer buffer = _windows[window];
+    long start = windowStart(window);
+    int index = _finder.next(buffer, (int) (position - start), (int) (Math.min(limit, start + buffer.limit()) - start));
+    return index < 0 ? -1 : start + index;
+  }
+
+  public final class FileRange extends RangeConcept<FileRange>.Range
+  {
+    long _begin;
+    long _end;
+
+    /**
+     * Position at which the range is split, {@code -1} if not yet found or
+     * {@code _end} if the range is indivisible.
+     */
+    long _split = -1;
+
+    FileRange(long begin, long end)
+    {
+      _begin = begin;
+      _end = end;
+    }
+
+    public long begin()
+    {
+      return _begin;
+    }
+
+    public long end()
+    {
+      return _end;
+    }
+
+    /**
+     * @return size of the range in bytes.
+     */
+    public long length()
+    {
+      return _end - _begin;
+    }
+
+    @Override
+    public int size()
+    {
+      return (int) Math.min(_end - _begin, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+      return _begin >= _end;
+    }
+
+    @Override
+    public int grainSize()
+    {
+      return _grainsize;
+    }
+
+    private boolean isMapped()
+    {
+      int window = window(_begin);
+      return _end <= windowStart(window) + _windows[window].limit();
+    }
+
+    @Override
+    public boolean isDivisible()
+    {
+      if (_split < 0)
+      {
+        _split = findSplit();
+      }
+      return _split < _end;
+    }
+
+    private long findSplit()
+    {
+      if (isEmpty())
+      {
+        return _end;
+      }
+      long middle = _begin + (_end - _begin) / 2;
+      if (!isMapped())
+      {
+        // Split at the window boundary nearest the middle, so that the left
+        // part starts and ends within the window before it.
+        int first = window(_begin);
+        int window = Math.max(Math.min(window(middle + _windowSize / 2), window(_end - 1)), first + 1);
+        for (; window > first; window--)
+        {
+          long split = nextRecord(window - 1, windowStart(window), _end);
+          if (split < 0)
+            throw new IllegalStateException("record at " + windowStart(window) + " is longer than the window overlap");
+          if (split < _end)
+            return split;
+        }
+      }
+      if (_end - _begin <= _grainsize)
+      {
+        return _end;
+      }
+      long split = nextRecord(window(_begin), middle, _end);
+      return split < 0 || split <= _begin ? _end : split;
+    }
+
+    /**
+     * Returns the bytes of the range, without copying, as a buffer whose
+     * position zero is {@link #begin()}.
+     *
+     * @return buffer
+     * @throws IllegalStateException if the range spans windows, which only
+     * happens when a partitioner does not split ranges down to their
+     * grainsize.
+     */
+    public ByteBuffer buffer()
+    {
+      if (isEmpty())
+      {
+        return ByteBuffer.allocate(0);
+      }
+      if (!isMapped())
+        throw new IllegalStateException("range spans mapped windows");
+      int window = window(_begin);
+      long start = windowStart(window);
+      ByteBuffer buffer = _windows[window].duplicate();
+      buffer.limit((int) (_end - start));
+      buffer.position((int) (_begin - start));
+      return buffer.slice();
+    }
+
+    @Override
+    public String toString()
+    {
+      return "[" + _begin + "," + _end + ")";
+    }
+  }
+}
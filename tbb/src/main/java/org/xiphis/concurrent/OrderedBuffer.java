@@ -11,14 +11,27 @@
  */
 package org.xiphis.concurrent;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 //! A buffer of input items for a filter.
 
 /**
  * Each item is a task_info, inserted into a position in the buffer
  * corresponding to a Token.
+ *
+ * <p>The buffer is lock-free. Slots hold references to the task information
+ * of deferred tokens, so nothing is copied when a token is put or woken. A
+ * token which is put concurrently with {@link #noteDone(int, StageTask)}
+ * publishes its slot before re-reading {@link #_lowToken}, while the waker
+ * advances {@link #_lowToken} before examining the slot; whichever of the two
+ * then removes the item from the slot owns it.</p>
+ *
+ * <p>The number of tokens between {@link #_lowToken} and any token which may
+ * be put can never exceed the number of live tokens of the pipeline, so the
+ * capacity is {@link #reserve(int) reserved} before the pipeline runs and the
+ * ring is never resized while producers are active.</p>
  */
 public final class OrderedBuffer<T>
 {
@@ -31,33 +44,38 @@ public final class OrderedBuffer<T>
   static final int _initialBufferSize = 4;
 
   /**
-   * Serializes updates.
+   * Array of deferred tasks that cannot yet start executing.
    */
-  private final Lock _mutex = new ReentrantLock();
+  volatile AtomicReferenceArray<TaskInfo<T>> _array;
 
   /**
-   * Array of deferred tasks that cannot yet start executing.
+   * Lowest token that can start executing.
+   * <p/>
+   * All prior Token have already been seen. Only advanced by the task which
+   * is processing the lowest token.
    */
-  TaskInfo<T>[] _array;
+  volatile int _lowToken;
 
   /**
-   * Size of array
-   * <p/>
-   * Always 0 or a power of 2
+   * Next token to hand out to a putter which does not yet have one.
    */
-  int _arraySize;
+  final AtomicInteger _highToken = new AtomicInteger();
 
   /**
-   * Lowest token that can start executing.
-   * <p/>
-   * All prior Token have already been seen.
+   * Number of tokens waiting in the buffer.
    */
-  int _lowToken;
+  final AtomicInteger _depth = new AtomicInteger();
 
   /**
-   * Used only for out of order buffer.
+   * Largest value of {@link #_depth} seen.
    */
-  int _highToken;
+  final AtomicInteger _highWater = new AtomicInteger();
+
+  /**
+   * Instrumentation counters of the filter which owns the buffer, or
+   * {@code null} if instrumentation is disabled.
+   */
+  volatile FilterStatistics.Counters _counters;
 
   /**
    * True for ordered filter, false otherwise.
@@ -79,41 +97,46 @@ public final class OrderedBuffer<T>
   {
     _ordered = is_ordered;
     _bound = is_bound;
-    grow(_initialBufferSize);
+    _array = new AtomicReferenceArray<>(_initialBufferSize);
   }
 
   /**
-   * Caller is responsible to acquiring a lock on "_arrayMutex".
+   * Ensure that the buffer can hold the given number of outstanding tokens.
+   * <p>Must only be called while the pipeline is not running.</p>
+   *
+   * @param tokens maximum number of live tokens
    */
-  @SuppressWarnings("unchecked")
-  private void grow(int minimum_size)
+  void reserve(int tokens)
   {
-    int old_size = _arraySize;
-    int new_size = old_size != 0 ? 2 * old_size : _initialBufferSize;
-    while (new_size < minimum_size)
+    AtomicReferenceArray<TaskInfo<T>> old_array = _array;
+    int old_size = old_array.length();
+    if (old_size >= tokens)
     {
-      new_size *= 2;
+      return;
     }
-    TaskInfo<T>[] new_array = new TaskInfo[new_size];
-    TaskInfo<T>[] old_array = _array;
-
-    if (old_array != null)
+    int new_size = old_size;
+    while (new_size < tokens)
     {
-      int t = _lowToken;
-      for (int i = 0; i < old_size; ++i, ++t)
-      {
-        new_array[t & new_size - 1] = new TaskInfo<>(old_array[t & old_size - 1]);
-      }
+      new_size *= 2;
     }
-    else
+    AtomicReferenceArray<TaskInfo<T>> new_array = new AtomicReferenceArray<>(new_size);
+    int t = _lowToken;
+    for (int i = 0; i < old_size; ++i, ++t)
     {
-      for (int i = 0; i < new_size; ++i)
-      {
-        new_array[i] = new TaskInfo<>();
-      }
+      new_array.set(t & new_size - 1, old_array.get(t & old_size - 1));
     }
     _array = new_array;
-    _arraySize = new_size;
+  }
+
+  private AtomicReferenceArray<TaskInfo<T>> arrayFor(int token)
+  {
+    AtomicReferenceArray<TaskInfo<T>> array = _array;
+    assert (token - _lowToken) >= 0;
+    if (token - _lowToken >= array.length())
+    {
+      throw new IllegalStateException("token " + token + " is beyond the capacity of the buffer");
+    }
+    return array;
   }
 
   /**
@@ -126,42 +149,44 @@ public final class OrderedBuffer<T>
    */
   public boolean putToken(StageTask<T> putter)
   {
-    _mutex.lock();
-    try
+    int token;
+    if (_ordered)
     {
-      int token;
-      if (_ordered)
+      if (!putter.isTokenReady())
       {
-        if (!putter.isTokenReady())
-        {
-          putter.setToken(_highToken++);
-          putter.setTokenReady(true);
-        }
-        token = putter.getToken();
-      }
-      else
-      {
-        token = _highToken++;
-      }
-      assert (token - _lowToken) >= 0;
-      if (token != _lowToken || _bound)
-      {
-        // Trying to put token that is beyond _lowToken.
-        // Need to wait until _lowToken catches up before dispatching.
-        if (token - _lowToken >= _arraySize)
-        {
-          grow(token - _lowToken + 1);
-        }
-        // ITT_NOTIFY(sync_releasing, this);
-        putter.putTaskInfo(_array[token & _arraySize - 1]);
-        return true;
+        putter.setToken(_highToken.getAndIncrement());
+        putter.setTokenReady(true);
       }
+      token = putter.getToken();
     }
-    finally
+    else
     {
-      _mutex.unlock();
+      token = _highToken.getAndIncrement();
     }
-    return false;
+    if (token == _lowToken && !_bound)
+    {
+      return false;
+    }
+    // Trying to put token that is beyond _lowToken.
+    // Need to wait until _lowToken catches up before dispatching.
+    AtomicReferenceArray<TaskInfo<T>> array = arrayFor(token);
+    int index = token & array.length() - 1;
+    // A thread-bound filter's buffer is drained by another task while the
+    // putter carries on, so it needs its own copy.
+    TaskInfo<T> info = _bound ? new TaskInfo<>(putter.taskInfo()) : putter.taskInfo();
+    info._valid = true;
+    info._parkedToken = token;
+    parked(info);
+    // ITT_NOTIFY(sync_releasing, this);
+    array.set(index, info);
+    if (token == _lowToken && !_bound && array.compareAndSet(index, info, null))
+    {
+      // _lowToken caught up before the waker could see the item.
+      _depth.decrementAndGet();
+      info._valid = false;
+      return false;
+    }
+    return true;
   }
 
   /**
@@ -173,27 +198,19 @@ public final class OrderedBuffer<T>
    */
   public void noteDone(int token, StageTask<T> spawner)
   {
-    TaskInfo<T> wakee = new TaskInfo<T>();
-    _mutex.lock();
-    try
+    if (!_ordered || token == _lowToken)
     {
-      if (!_ordered || token == _lowToken)
+      // Wake the next task
+      int low = _lowToken + 1;
+      _lowToken = low;
+      TaskInfo<T> wakee = take(low);
+      if (wakee != null)
       {
-        // Wake the next task
-        TaskInfo<T> item = _array[++_lowToken & _arraySize - 1];
+        unparked(wakee);
         // ITT_NOTIFY( sync_acquired, this );
-        wakee = item;
-        item._valid = false;
+        spawner.spawnStageTask(wakee);
       }
     }
-    finally
-    {
-      _mutex.unlock();
-    }
-    if (wakee._valid)
-    {
-      spawner.spawnStageTask(wakee);
-    }
   }
 
   /**
@@ -203,13 +220,24 @@ public final class OrderedBuffer<T>
    */
   public void clear(Filter<T> my_filter)
   {
-    int t = _lowToken;
-    for (int i = 0; i < _arraySize; ++i, ++t)
+    AtomicReferenceArray<TaskInfo<T>> array = _array;
+    for (int i = 0; i < array.length(); ++i)
     {
-      TaskInfo<T> temp = _array[t & _arraySize - 1];
-      if (temp._valid)
+      TaskInfo<T> temp = array.getAndSet(i, null);
+      if (temp != null && temp._valid)
       {
-        my_filter.finalize(temp._object);
+        _depth.decrementAndGet();
+        if (temp._batch != null)
+        {
+          for (T item : temp._batch)
+          {
+            my_filter.finalize(item);
+          }
+        }
+        else
+        {
+          my_filter.finalize(temp._object);
+        }
         temp._valid = false;
       }
     }
@@ -217,61 +245,102 @@ public final class OrderedBuffer<T>
 
   public boolean returnItem(TaskInfo<T> info, boolean advance)
   {
-    _mutex.lock();
-    try
+    int low = _lowToken;
+    TaskInfo<T> item = take(low);
+    // ITT_NOTIFY( sync_acquired, this );
+    if (item != null)
     {
-      TaskInfo<T> item = _array[_lowToken & _arraySize - 1];
-      // ITT_NOTIFY( sync_acquired, this );
-      if (item._valid)
+      unparked(item);
+      info.assign(item);
+      if (advance)
       {
-        info = item;
-        item._valid = false;
-        if (advance)
-        {
-          _lowToken++;
-        }
-        return true;
+        _lowToken = low + 1;
       }
-      return false;
-    }
-    finally
-    {
-      _mutex.unlock();
+      return true;
     }
+    return false;
   }
 
   public void putItem(TaskInfo<T> info)
   {
     info._valid = true;
-    _mutex.lock();
-    try
+    int token;
+    if (_ordered)
     {
-      int token;
-      if (_ordered)
-      {
-        if (!info._tokenReady)
-        {
-          info._token = _highToken++;
-          info._tokenReady = true;
-        }
-        token = info._token;
-      }
-      else
-      {
-        token = _highToken++;
-      }
-      assert (token - _lowToken) >= 0;
-      if (token - _lowToken >= _arraySize)
+      if (!info._tokenReady)
       {
-        grow(token - _lowToken + 1);
+        info._token = _highToken.getAndIncrement();
+        info._tokenReady = true;
       }
-      // ITT_NOTIFY( sync_releasing, this );
-      _array[token & _arraySize - 1] = info;
+      token = info._token;
     }
-    finally
+    else
     {
-      _mutex.unlock();
+      token = _highToken.getAndIncrement();
     }
+    AtomicReferenceArray<TaskInfo<T>> array = arrayFor(token);
+    info._parkedToken = token;
+    parked(info);
+    // ITT_NOTIFY( sync_releasing, this );
+    array.set(token & array.length() - 1, info);
+  }
+
+  /**
+   * Remove the task waiting for the token, if it has been put.
+   * <p>The slot is only cleared if it holds that token. A waker which is
+   * delayed after advancing {@link #_lowToken} may look at the slot after
+   * later tokens have been processed and the ring has wrapped, and must not
+   * take a task which is waiting for a later token.</p>
+   *
+   * @param token token
+   * @return task information or {@code null}
+   */
+  private TaskInfo<T> take(int token)
+  {
+    AtomicReferenceArray<TaskInfo<T>> array = _array;
+    int index = token & array.length() - 1;
+    TaskInfo<T> item = array.get(index);
+    return item != null && item._parkedToken == token && array.compareAndSet(index, item, null) ? item : null;
+  }
+
+  private void parked(TaskInfo<T> info)
+  {
+    int depth = _depth.incrementAndGet();
+    if (depth > _highWater.get())
+    {
+      _highWater.accumulateAndGet(depth, Math::max);
+    }
+    info._parkedNanos = _counters != null ? System.nanoTime() : 0L;
+  }
+
+  private void unparked(TaskInfo<T> info)
+  {
+    _depth.decrementAndGet();
+    FilterStatistics.Counters counters = _counters;
+    if (counters != null && info._parkedNanos != 0L)
+    {
+      counters.wait.record(System.nanoTime() - info._parkedNanos);
+    }
+  }
+
+  /**
+   * Largest number of tokens which have waited in the buffer at once.
+   *
+   * @return depth
+   */
+  public int highWaterDepth()
+  {
+    return _highWater.get();
+  }
+
+  /**
+   * Number of tokens waiting in the buffer.
+   *
+   * @return depth
+   */
+  public int depth()
+  {
+    return _depth.get();
   }
 
   public int getLowToken()
@@ -297,6 +366,19 @@ public final class OrderedBuffer<T>
      */
     public boolean _tokenReady;
     public boolean _valid;
+    /**
+     * Items carried by the token when the pipeline runs in batch mode,
+     * otherwise {@code null}.
+     */
+    public List<T> _batch;
+    /**
+     * Time at which the token was put into a buffer, if instrumented.
+     */
+    long _parkedNanos;
+    /**
+     * Token under which the task waits in a buffer.
+     */
+    int _parkedToken;
 
     public TaskInfo()
     {
@@ -313,6 +395,7 @@ public final class OrderedBuffer<T>
       _token = src._token;
       _tokenReady = src._tokenReady;
       _valid = src._valid;
+      _batch = src._batch;
     }
   }
 };
@@ -11,11 +11,14 @@
  */
 package org.xiphis.concurrent;
 
-import org.xiphis.utils.common.Factory;
-
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntConsumer;
+import java.util.function.IntToLongFunction;
+import java.util.function.LongBinaryOperator;
 
 /**
  * @author atcurtis
@@ -259,6 +262,73 @@ public final class Parallel
     StartReduce.run(range, body, partitioner, context);
   }
 
+  /**
+   * Perform a reduce task over a range, splitting it down to its grainsize.
+   * Unlike {@link #parallelReduce(RangeConcept.Range, ReduceBody)}, a body is
+   * split at every split of the range and bodies are joined in the same
+   * order, so the result depends only on the range and its grainsize and
+   * not on how the work was scheduled.
+   * @param <R> range
+   * @param <B> reduce
+   * @param range range
+   * @param body reduce
+   */
+  public static <R extends RangeConcept<R>.Range, B extends ReduceBody<R, B>> //
+  void parallelDeterministicReduce(R range, B body)
+  {
+    TaskGroupContext context = new TaskGroupContext();
+    StartDeterministicReduce.run(range, body, SimplePartitionerConcept.<R>newInstance(), context);
+  }
+
+  /**
+   * Perform a deterministic reduce task over a range within an execution
+   * context.
+   * @param <R> range
+   * @param <B> reduce
+   * @param range range
+   * @param body reduce
+   * @param context context
+   */
+  public static <R extends RangeConcept<R>.Range, B extends ReduceBody<R, B>> //
+  void parallelDeterministicReduce(R range, B body, TaskGroupContext context)
+  {
+    StartDeterministicReduce.run(range, body, SimplePartitionerConcept.<R>newInstance(), context);
+  }
+
+  /**
+   * Perform a deterministic reduce task over a range with a simple
+   * partitioner.
+   * @param <R> range
+   * @param <B> reduce
+   * @param range range
+   * @param body reduce
+   * @param partitioner partitioner
+   * @param context context
+   */
+  public static <R extends RangeConcept<R>.Range, B extends ReduceBody<R, B>> //
+  void parallelDeterministicReduce(R range, B body, SimplePartitionerConcept<R>.SimplePartitioner partitioner,
+                                   TaskGroupContext context)
+  {
+    StartDeterministicReduce.run(range, body, partitioner, context);
+  }
+
+  /**
+   * Perform a deterministic reduce task over a range with a static
+   * partitioner. The result then also depends on the number of processors.
+   * @param <R> range
+   * @param <B> reduce
+   * @param range range
+   * @param body reduce
+   * @param partitioner partitioner
+   * @param context context
+   */
+  public static <R extends RangeConcept<R>.Range, B extends ReduceBody<R, B>> //
+  void parallelDeterministicReduce(R range, B body, StaticPartitionerConcept<R>.StaticPartitioner partitioner,
+                                   TaskGroupContext context)
+  {
+    StartDeterministicReduce.run(range, body, partitioner, context);
+  }
+
   /**
    * @param <R> type of range
    * @param <B> type of task
@@ -321,12 +391,17 @@ public final class Parallel
   private static <T> //
   void parallelQuickSort(T[] array, int begin, int end, Comparator<T> comp)
   {
+    if (end - begin <= serial_cutoff + 1)
+    {
+      Arrays.sort(array, begin, end, comp);
+      return;
+    }
+
     TaskGroupContext my_context = new TaskGroupContext();
 
     do_parallel_quick_sort:
-    for (; ; )
+    do
     {
-      assert begin + serial_cutoff < end : "min_parallel_size is smaller than serial cutoff?";
       int k;
       for (k = begin; k != begin + serial_cutoff; ++k)
       {
@@ -344,7 +419,7 @@ public final class Parallel
       {
         return;
       }
-    }
+    } while (false);
 
     QuickSortRangeConcept<T>.QuickSortRange r = null;
     parallelFor(new QuickSortRangeConcept<T>(array, comp).newInstance(begin, end - begin), new QuickSortBody<T>(),
@@ -401,6 +476,432 @@ public final class Parallel
     parallelQuickSort(array, 0, array.length, (a, b) -> a.compareTo(b));
   }
 
+  private static void rangeCheck(int length, int begin, int end)
+  {
+    if (begin > end)
+      throw new IllegalArgumentException("begin(" + begin + ") > end(" + end + ")");
+    if (begin < 0)
+      throw new ArrayIndexOutOfBoundsException(begin);
+    if (end > length)
+      throw new ArrayIndexOutOfBoundsException(end);
+  }
+
+  /**
+   * Sorts a range of the array into ascending order without boxing.
+   * @param array array to sort
+   * @param begin start of range
+   * @param end end of range
+   */
+  public static void parallelSort(int[] array, int begin, int end)
+  {
+    rangeCheck(array.length, begin, end);
+    ParallelSort.sort(array, begin, end, new TaskGroupContext());
+  }
+
+  /**
+   * @param array array to sort
+   */
+  public static void parallelSort(int[] array)
+  {
+    ParallelSort.sort(array, 0, array.length, new TaskGroupContext());
+  }
+
+  /**
+   * Sorts a range of the array into ascending order without boxing.
+   * @param array array to sort
+   * @param begin start of range
+   * @param end end of range
+   */
+  public static void parallelSort(long[] array, int begin, int end)
+  {
+    rangeCheck(array.length, begin, end);
+    ParallelSort.sort(array, begin, end, new TaskGroupContext());
+  }
+
+  /**
+   * @param array array to sort
+   */
+  public static void parallelSort(long[] array)
+  {
+    ParallelSort.sort(array, 0, array.length, new TaskGroupContext());
+  }
+
+  /**
+   * Sorts a range of the array into the order of {@link Double#compare(double, double)}
+   * without boxing.
+   * @param array array to sort
+   * @param begin start of range
+   * @param end end of range
+   */
+  public static void parallelSort(double[] array, int begin, int end)
+  {
+    rangeCheck(array.length, begin, end);
+    ParallelSort.sort(array, begin, end, new TaskGroupContext());
+  }
+
+  /**
+   * @param array array to sort
+   */
+  public static void parallelSort(double[] array)
+  {
+    ParallelSort.sort(array, 0, array.length, new TaskGroupContext());
+  }
+
+  /**
+   * Sorts a range of the array with a parallel LSD radix sort, which needs a
+   * temporary array of the size of the range. Passes in which every key has
+   * the same digit are skipped.
+   * @param array array to sort
+   * @param begin start of range
+   * @param end end of range
+   */
+  public static void parallelRadixSort(int[] array, int begin, int end)
+  {
+    rangeCheck(array.length, begin, end);
+    ParallelSort.radixSort(array, begin, end, new TaskGroupContext());
+  }
+
+  /**
+   * @param array array to sort
+   */
+  public static void parallelRadixSort(int[] array)
+  {
+    ParallelSort.radixSort(array, 0, array.length, new TaskGroupContext());
+  }
+
+  /**
+   * Sorts a range of the array with a parallel LSD radix sort, which needs a
+   * temporary array of the size of the range. Passes in which every key has
+   * the same digit are skipped.
+   * @param array array to sort
+   * @param begin start of range
+   * @param end end of range
+   */
+  public static void parallelRadixSort(long[] array, int begin, int end)
+  {
+    rangeCheck(array.length, begin, end);
+    ParallelSort.radixSort(array, begin, end, new TaskGroupContext());
+  }
+
+  /**
+   * @param array array to sort
+   */
+  public static void parallelRadixSort(long[] array)
+  {
+    ParallelSort.radixSort(array, 0, array.length, new TaskGroupContext());
+  }
+
+  /**
+   * Sorts a range of the array with a parallel merge sort. Unlike
+   * {@link #parallelSort(Object[], int, int, Comparator)} the sort is stable,
+   * so equal elements keep their relative order.
+   * @param <T> type of array element
+   * @param array array to sort
+   * @param begin start of range
+   * @param end end of range
+   * @param comp sort comparator
+   */
+  public static <T> void parallelStableSort(T[] array, int begin, int end, Comparator<? super T> comp)
+  {
+    rangeCheck(array.length, begin, end);
+    ParallelSort.stableSort(array, begin, end, comp, new TaskGroupContext());
+  }
+
+  /**
+   * @param <T> type of array element
+   * @param array array to sort
+   * @param comp sort comparator
+   */
+  public static <T> void parallelStableSort(T[] array, Comparator<? super T> comp)
+  {
+    ParallelSort.stableSort(array, 0, array.length, comp, new TaskGroupContext());
+  }
+
+  /**
+   * @param <T> type of array element
+   * @param array array to sort
+   */
+  public static <T extends Comparable<? super T>> void parallelStableSort(T[] array)
+  {
+    ParallelSort.stableSort(array, 0, array.length, Comparator.<T>naturalOrder(), new TaskGroupContext());
+  }
+
+  /**
+   * Applies the body to every index of {@code [from,to)}, splitting the
+   * interval down to about eight chunks per processor.
+   * @param from first index
+   * @param to index after the last
+   * @param body body
+   */
+  public static void forEach(int from, int to, IntConsumer body)
+  {
+    forEach(from, to, (int) ParallelLoop.defaultGrain((long) to - from), body);
+  }
+
+  /**
+   * Applies the body to every index of {@code [from,to)}, splitting the
+   * interval until no part is larger than the grainsize.
+   * @param from first index
+   * @param to index after the last
+   * @param grain grainsize
+   * @param body body
+   */
+  public static void forEach(int from, int to, int grain, IntConsumer body)
+  {
+    ParallelLoop.forEach(from, to, grain, body, new TaskGroupContext());
+  }
+
+  /**
+   * @param from first index
+   * @param to index after the last
+   * @param grain grainsize
+   * @param body body
+   * @param context context
+   */
+  public static void forEach(int from, int to, int grain, IntConsumer body, TaskGroupContext context)
+  {
+    ParallelLoop.forEach(from, to, grain, body, context);
+  }
+
+  /**
+   * Applies the body to every element, and to every item which the bodies
+   * add to the feeder which is passed to them. The elements are pulled from
+   * the iterable in chunks of growing size, and added items are processed by
+   * the worker which added them unless an idle worker steals them.
+   * @param items elements
+   * @param body body
+   * @param <T> element type
+   */
+  public static <T> void forEach(Iterable<T> items, BiConsumer<? super T, Feeder<T>> body)
+  {
+    ParallelForEach.run(items, body, new TaskGroupContext());
+  }
+
+  /**
+   * @param items elements
+   * @param body body
+   * @param context context
+   * @param <T> element type
+   */
+  public static <T> void forEach(Iterable<T> items, BiConsumer<? super T, Feeder<T>> body, TaskGroupContext context)
+  {
+    ParallelForEach.run(items, body, context);
+  }
+
+  /**
+   * Applies the body to subintervals which together cover {@code [from,to)},
+   * none of which is larger than the grainsize.
+   * @param from first index
+   * @param to index after the last
+   * @param grain grainsize
+   * @param body body
+   */
+  public static void forRange(long from, long to, long grain, LongRangeConsumer body)
+  {
+    ParallelLoop.forRange(from, to, grain, body, new TaskGroupContext());
+  }
+
+  /**
+   * @param from first index
+   * @param to index after the last
+   * @param grain grainsize
+   * @param body body
+   * @param context context
+   */
+  public static void forRange(long from, long to, long grain, LongRangeConsumer body, TaskGroupContext context)
+  {
+    ParallelLoop.forRange(from, to, grain, body, context);
+  }
+
+  /**
+   * Combines the mapped value of every index of {@code [from,to)}. The
+   * operator must be associative, and identity must be its identity value.
+   * @param from first index
+   * @param to index after the last
+   * @param identity identity value
+   * @param map function mapping an index to a value
+   * @param op combining operator
+   * @return result, or identity if the interval is empty
+   */
+  public static long reduce(int from, int to, long identity, IntToLongFunction map, LongBinaryOperator op)
+  {
+    return reduce(from, to, (int) ParallelLoop.defaultGrain((long) to - from), identity, map, op);
+  }
+
+  /**
+   * @param from first index
+   * @param to index after the last
+   * @param grain grainsize
+   * @param identity identity value
+   * @param map function mapping an index to a value
+   * @param op combining operator
+   * @return result, or identity if the interval is empty
+   */
+  public static long reduce(int from, int to, int grain, long identity, IntToLongFunction map, LongBinaryOperator op)
+  {
+    return ParallelLoop.reduce(from, to, grain, identity, map, op, new TaskGroupContext());
+  }
+
+  /**
+   * @param from first index
+   * @param to index after the last
+   * @param grain grainsize
+   * @param identity identity value
+   * @param map function mapping an index to a value
+   * @param op combining operator
+   * @param context context
+   * @return result, or identity if the interval is empty
+   */
+  public static long reduce(int from, int to, int grain, long identity, IntToLongFunction map, LongBinaryOperator op,
+                            TaskGroupContext context)
+  {
+    return ParallelLoop.reduce(from, to, grain, identity, map, op, context);
+  }
+
+  /**
+   * Replaces every element of the array with the combination of itself and
+   * every element before it.
+   * @param array array
+   * @param op associative operator
+   */
+  public static void inclusiveScan(int[] array, IntBinaryOperator op)
+  {
+    ParallelScan.scan(array, array, true, 0, op, new TaskGroupContext());
+  }
+
+  /**
+   * Stores in {@code dst[i]} the combination of {@code src[0]} through
+   * {@code src[i]}.
+   * @param src source array
+   * @param dst destination array, which may be the source
+   * @param op associative operator
+   */
+  public static void inclusiveScan(int[] src, int[] dst, IntBinaryOperator op)
+  {
+    ParallelScan.scan(src, dst, true, 0, op, new TaskGroupContext());
+  }
+
+  /**
+   * Replaces every element of the array with the combination of the initial
+   * value and every element before it.
+   * @param array array
+   * @param initial initial value, usually the identity of the operator
+   * @param op associative operator
+   */
+  public static void exclusiveScan(int[] array, int initial, IntBinaryOperator op)
+  {
+    ParallelScan.scan(array, array, false, initial, op, new TaskGroupContext());
+  }
+
+  /**
+   * Stores in {@code dst[i]} the combination of the initial value and
+   * {@code src[0]} through {@code src[i-1]}.
+   * @param src source array
+   * @param dst destination array, which may be the source
+   * @param initial initial value, usually the identity of the operator
+   * @param op associative operator
+   */
+  public static void exclusiveScan(int[] src, int[] dst, int initial, IntBinaryOperator op)
+  {
+    ParallelScan.scan(src, dst, false, initial, op, new TaskGroupContext());
+  }
+
+  /**
+   * Replaces every element of the array with the combination of itself and
+   * every element before it.
+   * @param array array
+   * @param op associative operator
+   */
+  public static void inclusiveScan(long[] array, LongBinaryOperator op)
+  {
+    ParallelScan.scan(array, array, true, 0L, op, new TaskGroupContext());
+  }
+
+  /**
+   * Stores in {@code dst[i]} the combination of {@code src[0]} through
+   * {@code src[i]}.
+   * @param src source array
+   * @param dst destination array, which may be the source
+   * @param op associative operator
+   */
+  public static void inclusiveScan(long[] src, long[] dst, LongBinaryOperator op)
+  {
+    ParallelScan.scan(src, dst, true, 0L, op, new TaskGroupContext());
+  }
+
+  /**
+   * Replaces every element of the array with the combination of the initial
+   * value and every element before it.
+   * @param array array
+   * @param initial initial value, usually the identity of the operator
+   * @param op associative operator
+   */
+  public static void exclusiveScan(long[] array, long initial, LongBinaryOperator op)
+  {
+    ParallelScan.scan(array, array, false, initial, op, new TaskGroupContext());
+  }
+
+  /**
+   * Stores in {@code dst[i]} the combination of the initial value and
+   * {@code src[0]} through {@code src[i-1]}.
+   * @param src source array
+   * @param dst destination array, which may be the source
+   * @param initial initial value, usually the identity of the operator
+   * @param op associative operator
+   */
+  public static void exclusiveScan(long[] src, long[] dst, long initial, LongBinaryOperator op)
+  {
+    ParallelScan.scan(src, dst, false, initial, op, new TaskGroupContext());
+  }
+
+  /**
+   * Replaces every element of the array with the combination of itself and
+   * every element before it.
+   * @param array array
+   * @param op associative operator
+   */
+  public static void inclusiveScan(double[] array, DoubleBinaryOperator op)
+  {
+    ParallelScan.scan(array, array, true, 0.0, op, new TaskGroupContext());
+  }
+
+  /**
+   * Stores in {@code dst[i]} the combination of {@code src[0]} through
+   * {@code src[i]}.
+   * @param src source array
+   * @param dst destination array, which may be the source
+   * @param op associative operator
+   */
+  public static void inclusiveScan(double[] src, double[] dst, DoubleBinaryOperator op)
+  {
+    ParallelScan.scan(src, dst, true, 0.0, op, new TaskGroupContext());
+  }
+
+  /**
+   * Replaces every element of the array with the combination of the initial
+   * value and every element before it.
+   * @param array array
+   * @param initial initial value, usually the identity of the operator
+   * @param op associative operator
+   */
+  public static void exclusiveScan(double[] array, double initial, DoubleBinaryOperator op)
+  {
+    ParallelScan.scan(array, array, false, initial, op, new TaskGroupContext());
+  }
+
+  /**
+   * Stores in {@code dst[i]} the combination of the initial value and
+   * {@code src[0]} through {@code src[i-1]}.
+   * @param src source array
+   * @param dst destination array, which may be the source
+   * @param initial initial value, usually the identity of the operator
+   * @param op associative operator
+   */
+  public static void exclusiveScan(double[] src, double[] dst, double initial, DoubleBinaryOperator op)
+  {
+    ParallelScan.scan(src, dst, false, initial, op, new TaskGroupContext());
+  }
+
   private enum ReductionContext
   {
     root, left_child, right_child
@@ -416,6 +917,30 @@ public final class Parallel
     void apply(R range);
   }
 
+  /**
+   * Body applied to a subinterval by {@link #forRange(long, long, long, LongRangeConsumer)}.
+   */
+  public interface LongRangeConsumer
+  {
+    /**
+     * @param begin first index
+     * @param end index after the last
+     */
+    void accept(long begin, long end);
+  }
+
+  /**
+   * Adds items to be processed by {@link #forEach(Iterable, BiConsumer)}.
+   * Must only be used by the body which it was passed to, while it runs.
+   */
+  public interface Feeder<T>
+  {
+    /**
+     * @param item item
+     */
+    void add(T item);
+  }
+
   public interface CloneableBody<R extends RangeConcept<R>.Range, B extends CloneableBody<R, B>> extends Body<R>
   {
     B dup();
@@ -480,7 +1005,6 @@ public final class Parallel
     private final R my_range;
     private final B my_body;
     private final P my_partition;
-    private final Factory<StartFor<R, B, P>> startForFactory = arguments -> new StartFor<>(StartFor.this);
 
     // ! Constructor for root task.
     public StartFor(R range, B body, P partitioner)
@@ -495,7 +1019,7 @@ public final class Parallel
      */
     public StartFor(StartFor<R, B, P> parent)
     {
-      my_range = parent.my_range.concept().split(parent.my_range);
+      my_range = parent.my_partition.splitRange(parent.my_range);
       my_body = parent.my_body.dup();
       my_partition = parent.my_partition.concept().split(parent.my_partition);
       my_partition.setAffinity(this);
@@ -513,7 +1037,7 @@ public final class Parallel
         // and allows users to handle exceptions safely by wrapping
         // parallel_for in the try-block.
         TaskGroupContext context = new TaskGroupContext();
-        StartFor<R, B, P> a = Task.allocateRoot(context, arguments -> new StartFor<R, B, P>(range, body, partitioner));
+        StartFor<R, B, P> a = Task.allocateRoot(context, () -> new StartFor<R, B, P>(range, body, partitioner));
 
         Task.spawnRootAndWait(a);
       }
@@ -524,7 +1048,7 @@ public final class Parallel
     {
       if (!range.isEmpty())
       {
-        StartFor<R, B, P> a = Task.allocateRoot(context, arguments -> new StartFor<R, B, P>(range, body, partitioner));
+        StartFor<R, B, P> a = Task.allocateRoot(context, () -> new StartFor<R, B, P>(range, body, partitioner));
 
         Task.spawnRootAndWait(a);
       }
@@ -546,11 +1070,11 @@ public final class Parallel
       }
       else
       {
-        EmptyTask c = allocateContinuation(EmptyTask.FACTORY);
+        EmptyTask c = allocateContinuation(EmptyTask.SUPPLIER);
         recycleAsChildOf(c);
         c.setRefCount(2);
         boolean delay = my_partition.decideWhetherToDelay();
-        StartFor<R, B, P> b = c.allocateChild(startForFactory);
+        StartFor<R, B, P> b = c.allocateChild(() -> new StartFor<>(this));
         my_partition.spawnOrDelay(delay, this, b);
         return this;
       }
@@ -564,17 +1088,16 @@ public final class Parallel
   private static class FinishReduce<R extends RangeConcept<R>.Range, B extends ReduceBody<R, B>> extends Task
   {
     // ! Pointer to body, or NULL if the left child has not yet finished.
-    final AtomicReference<B> my_body;
+    volatile B my_body;
+    // ! Body of the right child when it was split off from my_body.
+    B zombie;
     private final ReductionContext my_context;
-    private final Class<B> my_body_class;
     boolean has_right_zombie;
 
-    FinishReduce(ReductionContext context, Class<B> body_class)
+    FinishReduce(ReductionContext context)
     {
-      my_body = new AtomicReference<>(null);
       has_right_zombie = false;
       my_context = context;
-      my_body_class = body_class;
     }
 
     @SuppressWarnings("unchecked")
@@ -585,19 +1108,17 @@ public final class Parallel
 
     @Override
     public Task execute()
-        throws InstantiationException, IllegalAccessException
     {
       if (has_right_zombie)
       {
         // Right child was stolen.
-        B s = my_body_class.newInstance();
-        my_body.get().join(s);
-        // s->~Body();
+        my_body.join(zombie);
+        zombie = null;
       }
       if (my_context == ReductionContext.left_child)
       {
         FinishReduce<R, B> parent = reduceParent();
-        parent.my_body.set(my_body.get());
+        parent.my_body = my_body;
       }
       return null;
     }
@@ -609,21 +1130,18 @@ public final class Parallel
       extends Task
   {
     // typedef finish_reduce<Body> finish_type;
-    private final AtomicReference<B> my_body;
+    private B my_body;
     private final R my_range;
-    private final Factory<FinishReduce<R, B>> finishReduceFactory;
-    private final Factory<StartReduce<R, B, P>> startReduceFactory = arguments -> new StartReduce<>(StartReduce.this);
     private P my_partition;
     private ReductionContext my_context;
 
     // ! Constructor used for root task
     StartReduce(R range, B body, P partitioner)
     {
-      my_body = new AtomicReference<>(body);
+      my_body = body;
       my_range = range.concept().dup(range);
-      my_partition.concept().clone(partitioner);
+      my_partition = partitioner.concept().clone(partitioner);
       my_context = ReductionContext.root;
-      finishReduceFactory = newFinishReduceFactory();
     }
 
     // ! Splitting constructor used to generate children.
@@ -634,10 +1152,9 @@ public final class Parallel
     StartReduce(StartReduce<R, B, P> parent)
     {
       my_body = parent.my_body;
-      my_range = parent.my_range.concept().split(parent.my_range);
+      my_range = parent.my_partition.splitRange(parent.my_range);
       my_partition = parent.my_partition.concept().split(parent.my_partition);
       my_context = ReductionContext.right_child;
-      finishReduceFactory = newFinishReduceFactory();
       my_partition.setAffinity(this);
       parent.my_context = ReductionContext.left_child;
     }
@@ -652,8 +1169,7 @@ public final class Parallel
         // and allows users to handle exceptions safely by wrapping
         // parallel_for in the try-block.
         TaskGroupContext context = new TaskGroupContext();
-        Factory<Task> factory = arguments -> new StartReduce<>(range, body, partitioner);
-        Task.spawnRootAndWait(Task.allocateRoot(context, factory));
+        Task.spawnRootAndWait(Task.allocateRoot(context, () -> new StartReduce<>(range, body, partitioner)));
       }
     }
 
@@ -662,54 +1178,40 @@ public final class Parallel
     {
       if (!range.isEmpty())
       {
-        Factory<Task> factory = arguments -> new StartReduce<>(range, body, partitioner);
-        Task.spawnRootAndWait(Task.allocateRoot(context, factory));
+        Task.spawnRootAndWait(Task.allocateRoot(context, () -> new StartReduce<>(range, body, partitioner)));
       }
     }
 
-    @SuppressWarnings("unchecked")
-    private Factory<FinishReduce<R, B>> newFinishReduceFactory()
-    {
-      return new Factory<FinishReduce<R, B>>()
-      {
-        private final Class<B> my_body_class = (Class<B>) my_body.get().getClass();
-
-        public FinishReduce<R, B> construct(Object... arguments)
-        {
-          return new FinishReduce<>(my_context, my_body_class);
-        }
-      };
-    }
-
     @Override
     public Task execute()
     {
       if (my_context == ReductionContext.right_child)
       {
         FinishReduce<R, B> p = reduceParent();
-        if (p.my_body.get() == null)
+        if (p.my_body == null)
         {
-          my_body.set(my_body.get().split());
+          my_body = my_body.split();
+          p.zombie = my_body;
           p.has_right_zombie = true;
         }
       }
       if (!my_range.isDivisible() || my_partition.shouldExecuteRange(my_range, this))
       {
-        my_body.get().apply(my_range);
+        my_body.apply(my_range);
         if (my_context == ReductionContext.left_child)
         {
           FinishReduce<R, B> parent = reduceParent();
-          parent.my_body.set(my_body.get());
+          parent.my_body = my_body;
         }
         return my_partition.continueAfterExecuteRange(this);
       }
       else
       {
-        FinishReduce<R, B> c = allocateContinuation(finishReduceFactory);
+        FinishReduce<R, B> c = allocateContinuation(() -> new FinishReduce<R, B>(my_context));
         recycleAsChildOf(c);
         c.setRefCount(2);
         boolean delay = my_partition.decideWhetherToDelay();
-        StartReduce<R, B, P> b = c.allocateChild(startReduceFactory);
+        StartReduce<R, B, P> b = c.allocateChild(() -> new StartReduce<>(this));
         my_partition.spawnOrDelay(delay, this, b);
         return this;
       }
@@ -730,6 +1232,82 @@ public final class Parallel
 
   }
 
+  // ! Task type used to join the bodies of parallel_deterministic_reduce.
+  private static class FinishDeterministicReduce<R extends RangeConcept<R>.Range, B extends ReduceBody<R, B>>
+      extends Task
+  {
+    private final B my_left_body;
+    private final B my_right_body;
+
+    FinishDeterministicReduce(B body)
+    {
+      my_left_body = body;
+      my_right_body = body.split();
+    }
+
+    @Override
+    public Task execute()
+    {
+      my_left_body.join(my_right_body);
+      return null;
+    }
+  }
+
+  private static class StartDeterministicReduce<R extends RangeConcept<R>.Range, B extends ReduceBody<R, B>, P extends PartitionerConcept<R, P>.Partitioner> //
+      extends Task
+  {
+    private final B my_body;
+    private final R my_range;
+    private final P my_partition;
+
+    // ! Constructor used for root task
+    StartDeterministicReduce(R range, B body, P partitioner)
+    {
+      my_body = body;
+      my_range = range.concept().dup(range);
+      my_partition = partitioner.concept().clone(partitioner);
+    }
+
+    /**
+     * this becomes left child. Newly constructed object is right child.
+     */
+    StartDeterministicReduce(StartDeterministicReduce<R, B, P> parent, FinishDeterministicReduce<R, B> c)
+    {
+      my_body = c.my_right_body;
+      my_range = parent.my_partition.splitRange(parent.my_range);
+      my_partition = parent.my_partition.concept().split(parent.my_partition);
+    }
+
+    static <R extends RangeConcept<R>.Range, B extends ReduceBody<R, B>, P extends PartitionerConcept<R, P>.Partitioner> //
+    void run(final R range, final B body, final P partitioner, TaskGroupContext context)
+    {
+      if (!range.isEmpty())
+      {
+        Task.spawnRootAndWait(Task.allocateRoot(context, () -> new StartDeterministicReduce<>(range, body,
+                                                                                               partitioner)));
+      }
+    }
+
+    @Override
+    public Task execute()
+    {
+      if (!my_range.isDivisible() || my_partition.shouldExecuteRange(my_range, this))
+      {
+        my_body.apply(my_range);
+        return null;
+      }
+      else
+      {
+        FinishDeterministicReduce<R, B> c = allocateContinuation(() -> new FinishDeterministicReduce<R, B>(my_body));
+        recycleAsChildOf(c);
+        c.setRefCount(2);
+        StartDeterministicReduce<R, B, P> b = c.allocateChild(() -> new StartDeterministicReduce<>(this, c));
+        spawn(b);
+        return this;
+      }
+    }
+  }
+
   // ! Performs final scan for a leaf
   private static class FinalSum<R extends RangeConcept<R>.Range, B extends ScanBody<R, B>> extends Task
   {
@@ -818,7 +1396,7 @@ public final class Parallel
         SumNode<R, B> c = this;
         Task b = c.createChild(range.concept().split(range), left_sum[0], right[0], left_sum[0], stuff_last);
         Task a = !left_is_final ? c.createChild(range, body, left[0], incoming, null) : null;
-        setRefCount((a != null ? 0 : 1) + (b != null ? 0 : 1));
+        setRefCount((a != null ? 1 : 0) + (b != null ? 1 : 0));
         body = null;
         if (a != null)
         {
@@ -862,25 +1440,26 @@ public final class Parallel
       // __TBB_ASSERT(
       // result._refCount()==(result.left!=NULL)+(result.right!=NULL),
       // NULL );
-      if (result[0].left != null)
+      SumNode<R, B> r = result[0];
+      if (r.left[0] != null)
       {
-        result[0].left_is_final = false;
+        r.left_is_final = false;
       }
       if (right_zombie != null && sum != null)
       {
-        sum[0].body.reverseJoin(result[0].left_sum[0].body);
+        sum[0].body.reverseJoin(r.left_sum[0].body);
       }
-      assert return_slot == null;
-      if (right_zombie != null || result[0].right != null)
+      assert return_slot[0] == null;
+      SumNode<R, B> right = r.right[0];
+      if (right_zombie != null || right != null)
       {
-        return_slot = result;
+        return_slot[0] = r;
       }
       else
       {
-        destroy(result[0]);
-        result[0] = null;
+        destroy(r);
       }
-      if (right_zombie != null && sum == null && result[0].right == null)
+      if (right_zombie != null && sum == null && right == null)
       {
         destroy(right_zombie);
         right_zombie = null;
@@ -901,20 +1480,6 @@ public final class Parallel
      * Null if computing root.
      */
     final SumNode<R, B>[] parent_sum;
-    private final Factory<SumNode<R, B>> sumNodeFactory = new Factory<SumNode<R, B>>()
-    {
-      public SumNode<R, B> construct(Object... arguments)
-      {
-        return new SumNode<R, B>(range, is_final);
-      }
-    };
-    private final Factory<FinalSum<R, B>> finalSumFactory = new Factory<FinalSum<R, B>>()
-    {
-      public FinalSum<R, B> construct(Object... arguments)
-      {
-        return new FinalSum<>(body[0].body);
-      }
-    };
     /**
      * Non-null if caller is requesting total.
      */
@@ -934,7 +1499,7 @@ public final class Parallel
       parent_sum = newSumNodeHolder();
       parent_sum[0] = parent_sum_;
       is_final = parent.is_final;
-      range = parent.range.concept().split(parent.range);
+      range = parent.partition.splitRange(parent.range);
       partition = parent.partition.concept().split(parent.partition);
       // __TBB_ASSERT( !*return_slot, NULL );
     }
@@ -954,15 +1519,18 @@ public final class Parallel
     static <R extends RangeConcept<R>.Range, B extends ScanBody<R, B>, P extends PartitionerConcept<R, P>.Partitioner> //
     void run(final R range, final B body, final P partitioner, TaskGroupContext context)
     {
+      // Each subrange is applied twice, so it must be copied, not moved.
+      if (range instanceof SpliteratorRangeConcept.SpliteratorRange)
+        throw new IllegalArgumentException("a spliterator range cannot be scanned");
       if (!range.isEmpty())
       {
         // typedef internal::start_scan<Range,Body,Partitioner>
         // start_pass1_type;
         final SumNode<R, B>[] root = newSumNodeHolder();
         // typedef internal::final_sum<Range,Body> final_sum_type;
-        final FinalSum<R, B> temp_body = Task.allocateRoot(context, arguments ->
+        final FinalSum<R, B> temp_body = Task.allocateRoot(context, () ->
             new FinalSum<R, B>(body));
-        StartScan<R, B, P> pass1 = Task.allocateRoot(context, arguments ->
+        StartScan<R, B, P> pass1 = Task.allocateRoot(context, () ->
             new StartScan<R, B, P>(root, range, temp_body, partitioner));
         Task.spawnRootAndWait(pass1);
         if (root[0] != null)
@@ -1002,7 +1570,8 @@ public final class Parallel
       {
         // Invocation is for right child that has been really stolen or
         // needs to be virtually stolen
-        p.right_zombie = body[0] = allocateRoot(context(), finalSumFactory);
+        final B incoming = body[0].body;
+        p.right_zombie = body[0] = allocateRoot(context(), () -> new FinalSum<>(incoming));
         is_final = false;
       }
 
@@ -1028,27 +1597,17 @@ public final class Parallel
         final SumNode<R, B> result;
         if (parent_sum[0] != null)
         {
-          result = allocateAdditionalChildOf(parent_sum[0], sumNodeFactory);
+          result = allocateAdditionalChildOf(parent_sum[0], () -> new SumNode<R, B>(range, is_final));
         }
         else
         {
-          result = allocateRoot(context(), sumNodeFactory);
+          final R my_range = range;
+          final boolean my_final = is_final;
+          result = allocateRoot(context(), () -> new SumNode<R, B>(my_range, my_final));
         }
-        FinishScan<R, B> c = allocateContinuation(new Factory<FinishScan<R, B>>()
-        {
-          public FinishScan<R, B> construct(Object... arguments)
-          {
-            return new FinishScan<>(return_slot, sum, result);
-          }
-        });
+        FinishScan<R, B> c = allocateContinuation(() -> new FinishScan<R, B>(return_slot, sum, result));
         // Split off right child
-        StartScan<R, B, P> b = c.allocateChild(new Factory<StartScan<R, B, P>>()
-        {
-          public StartScan<R, B, P> construct(Object... arguments)
-          {
-            return new StartScan<>(result.right, StartScan.this, result);
-          }
-        });
+        StartScan<R, B, P> b = c.allocateChild(() -> new StartScan<>(result.right, this, result));
         b.is_right_child = true;
         // Left child is recycling of *this. Must recycle this before
         // spawning b,
@@ -12,49 +12,45 @@
 package org.xiphis.concurrent;
 
 import io.netty.util.concurrent.EventExecutorGroup;
-import org.xiphis.utils.common.Factory;
 
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.function.Supplier;
 
 public abstract class ParallelDo<Item>
 {
 
   private final static int BLOCK_SPLIT_SIZE = 4;
 
-  private EmptyTask _barrier;
+  /**
+   * Largest number of items taken from an iterator at a time. The first
+   * chunk is a single item, and each following chunk is twice as large.
+   */
+  private final static int MAX_CHUNK_SIZE = 128;
+
+  private final TaskGroupContext _context;
+
+  /**
+   * Task which waits for all the iterations of the running loop.
+   */
+  private volatile Task _barrier;
 
   public ParallelDo(EventExecutorGroup executorGroup)
   {
-    _barrier = Task.allocateRoot(new TaskGroupContext(executorGroup), EmptyTask.FACTORY);
+    _context = new TaskGroupContext(executorGroup);
   }
 
   public ParallelDo(TaskGroupContext context)
   {
-    _barrier = Task.allocateRoot(context, EmptyTask.FACTORY);
-  }
-
-  @Override
-  protected void finalize()
-      throws Throwable
-  {
-    try
-    {
-      Task.destroy(_barrier);
-      _barrier = null;
-    }
-    finally
-    {
-      super.finalize();
-    }
+    _context = context;
   }
 
   protected void add(final Item item)
   {
-    IterationTask t = Task.currentTask().allocateAdditionalChildOf(_barrier, arguments -> new IterationTask(item));
+    IterationTask t = Task.currentTask().allocateAdditionalChildOf(_barrier, () -> new IterationTask(item));
     t.spawn(t);
   }
 
@@ -69,7 +65,6 @@ public abstract class ParallelDo<Item>
 
     @Override
     public Task execute()
-        throws InstantiationException, IllegalAccessException
     {
       operator(_value);
       return null;
@@ -79,54 +74,90 @@ public abstract class ParallelDo<Item>
 
   public void start(final Iterator<Item> iterator)
   {
-    IteratorTask t = _barrier.allocateChild(arguments -> new IteratorTask(iterator));
-    _barrier.setRefCount(2);
-    _barrier.spawnAndWaitForAll(t);
+    run(() -> new IteratorTask(iterator, 1));
   }
 
   public void start(final Item[] array)
   {
-    ArrayTask t = _barrier.allocateChild(arguments -> new ArrayTask(array, 0, array.length));
-    _barrier.setRefCount(2);
-    _barrier.spawnAndWaitForAll(t);
+    run(() -> new ArrayTask(array, 0, array.length));
   }
 
   public void start(final List<Item> list)
   {
-    ListTask t = _barrier.allocateChild(arguments -> new ListTask(list));
-    _barrier.setRefCount(2);
-    _barrier.spawnAndWaitForAll(t);
+    run(() -> new ListTask(list));
+  }
+
+  private void run(Supplier<? extends Task> first)
+  {
+    BarrierTask t = Task.allocateRoot(_context, () -> new BarrierTask(first));
+    Task.spawnRootAndWait(t);
+  }
+
+  /**
+   * Parent of the iterations, which are added to it while it waits.
+   */
+  private class BarrierTask extends Task
+  {
+    private final Supplier<? extends Task> my_first;
+
+    public BarrierTask(Supplier<? extends Task> first)
+    {
+      my_first = first;
+    }
+
+    @Override
+    public Task execute()
+    {
+      _barrier = this;
+      try
+      {
+        Task t = allocateChild(my_first);
+        setRefCount(2);
+        spawnAndWaitForAll(t);
+      }
+      finally
+      {
+        _barrier = null;
+      }
+      return null;
+    }
   }
 
   private class IteratorTask extends Task
   {
     private final Iterator<Item> my_iterator;
+    private final int my_chunk;
 
-    private final Factory<IterationTask> iterationTaskFactory;
-
-    public IteratorTask(Iterator<Item> iterator)
+    public IteratorTask(Iterator<Item> iterator, int chunk)
     {
-      this.my_iterator = iterator;
-      iterationTaskFactory = arguments -> new IterationTask(my_iterator.next());
+      my_iterator = iterator;
+      my_chunk = chunk;
     }
 
     @Override
     public Task execute()
-        throws InstantiationException, IllegalAccessException
     {
+      // The chunk is taken before the iterator is handed to the next task,
+      // so that only one task uses the iterator at a time.
+      List<Item> items = new ArrayList<>(my_chunk);
+      while (items.size() < my_chunk && my_iterator.hasNext())
+      {
+        items.add(my_iterator.next());
+      }
       if (my_iterator.hasNext())
       {
-        EmptyTask c = allocateContinuation(EmptyTask.FACTORY);
-        IterationTask t = c.allocateChild(iterationTaskFactory);
-        recycleAsChildOf(c);
-        t.setRefCount(2);
-        return this;
+        int chunk = Math.min(my_chunk << 1, MAX_CHUNK_SIZE);
+        spawn(allocateAdditionalChildOf(_barrier, () -> new IteratorTask(my_iterator, chunk)));
+      }
+      for (Item item : items)
+      {
+        operator(item);
       }
       return null;
     }
   }
 
-  private class ListIterationFactory implements Factory<IterationTask>
+  private class ListIterationFactory implements Supplier<IterationTask>
   {
     private final ListIterator<Item> it;
     private int count;
@@ -137,7 +168,8 @@ public abstract class ParallelDo<Item>
       count = 0;
     }
 
-    public IterationTask construct(Object... arguments)
+    @Override
+    public IterationTask get()
     {
       ++count;
       return new IterationTask(it.next());
@@ -157,13 +189,12 @@ public abstract class ParallelDo<Item>
   private class ListTask extends Task
   {
     private List<Item> my_list;
-    private final Factory<ListTask> listTaskFactory;
+    private final Supplier<ListTask> listTaskFactory;
 
     public ListTask(List<Item> list)
     {
       my_list = list;
-      listTaskFactory = arguments -> {
-        // TODO Auto-generated method stub
+      listTaskFactory = () -> {
         int size = my_list.size();
         int split = size / 2;
         List<Item> sublist = my_list.subList(size - split, size);
@@ -174,11 +205,10 @@ public abstract class ParallelDo<Item>
 
     @Override
     public Task execute()
-        throws InstantiationException, IllegalAccessException
     {
       if (my_list.size() > BLOCK_SPLIT_SIZE)
       {
-        EmptyTask c = allocateContinuation(EmptyTask.FACTORY);
+        EmptyTask c = allocateContinuation(EmptyTask.SUPPLIER);
         ListTask b = c.allocateChild(listTaskFactory);
         recycleAsChildOf(c);
         c.setRefCount(2);
@@ -213,14 +243,14 @@ public abstract class ParallelDo<Item>
     private final Item[] array;
     private int my_first;
     private int my_length;
-    private final Factory<ArrayTask> blockTaskFactory;
+    private final Supplier<ArrayTask> blockTaskFactory;
 
     public ArrayTask(Item[] arr, int first, int length)
     {
       this.array = arr;
       this.my_first = first;
       this.my_length = length;
-      blockTaskFactory = arguments -> {
+      blockTaskFactory = () -> {
         int split = my_length / 2;
         int first1 = my_first + my_length - split;
         my_length -= split;
@@ -230,11 +260,10 @@ public abstract class ParallelDo<Item>
 
     @Override
     public Task execute()
-        throws InstantiationException, IllegalAccessException
     {
       if (my_length > BLOCK_SPLIT_SIZE)
       {
-        EmptyTask c = allocateContinuation(EmptyTask.FACTORY);
+        EmptyTask c = allocateContinuation(EmptyTask.SUPPLIER);
         ArrayTask b = c.allocateChild(blockTaskFactory);
         recycleAsChildOf(c);
         c.setRefCount(2);
@@ -243,7 +272,7 @@ public abstract class ParallelDo<Item>
       }
       else if (my_length != 0)
       {
-        Factory<IterationTask> iterationTaskFactory = arguments -> new IterationTask(array[my_first]);
+        Supplier<IterationTask> iterationTaskFactory = () -> new IterationTask(array[my_first]);
         List<Task> list = new ArrayList<>(my_length);
         Task t;
         for (int k1 = 0; ; )
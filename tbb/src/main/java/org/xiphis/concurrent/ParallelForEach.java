@@ -0,0 +1,193 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+
+/**
+ * Loop over the elements of an iterable to which the body may add items,
+ * used by {@link Parallel}.
+ *
+ * <p>The source is consumed under a lock in chunks which start with a single
+ * element and double up to {@link #max_chunk}, so the first elements are
+ * handed out quickly and the lock is rarely taken once the loop is running.
+ * Each task which pulls a chunk spawns the task for the next chunk before
+ * processing its own, so idle workers pull the source concurrently.</p>
+ *
+ * <p>Items which the body adds are kept on a stack of the task which runs the
+ * body, and processed by that task, most recent first. Once the stack holds
+ * {@link #feed_block} items, the oldest half is spawned as a new task so that
+ * idle workers may steal it. No task is allocated per item.</p>
+ */
+final class ParallelForEach<T>
+{
+  static final int max_chunk = 128;
+  static final int feed_block = 16;
+
+  private final Spliterator<T> my_source;
+  private final BiConsumer<? super T, Parallel.Feeder<T>> my_body;
+  private Task my_barrier;
+
+  /**
+   * Number of elements to pull next, guarded by this.
+   */
+  private int my_chunk = 1;
+
+  /**
+   * Set once the source has no more elements, guarded by this.
+   */
+  private boolean my_exhausted;
+
+  private ParallelForEach(Spliterator<T> source, BiConsumer<? super T, Parallel.Feeder<T>> body)
+  {
+    my_source = source;
+    my_body = body;
+  }
+
+  static <T> void run(Iterable<T> items, BiConsumer<? super T, Parallel.Feeder<T>> body, TaskGroupContext context)
+  {
+    ParallelForEach<T> loop = new ParallelForEach<>(items.spliterator(), body);
+    BarrierTask<T> a = Task.allocateRoot(context, () -> new BarrierTask<>(loop));
+    Task.spawnRootAndWait(a);
+  }
+
+  /**
+   * Pulls the next chunk of elements onto the stack of the task, with the
+   * first element on top.
+   *
+   * @return {@code true} if there may be more elements.
+   */
+  private synchronized boolean pull(ForEachTask<T> task)
+  {
+    if (my_exhausted)
+    {
+      return false;
+    }
+    int n = my_chunk;
+    if (n < max_chunk)
+    {
+      my_chunk = n << 1;
+    }
+    int base = task.my_size;
+    int k = 0;
+    while (k < n && my_source.tryAdvance(task::push))
+    {
+      k++;
+    }
+    if (k < n)
+    {
+      my_exhausted = true;
+    }
+    Object[] stack = task.my_stack;
+    for (int i = base, j = task.my_size - 1; i < j; i++, j--)
+    {
+      Object item = stack[i];
+      stack[i] = stack[j];
+      stack[j] = item;
+    }
+    return !my_exhausted;
+  }
+
+  /**
+   * Parent of every task of the loop, which waits for them all.
+   */
+  private static final class BarrierTask<T> extends Task
+  {
+    private final ParallelForEach<T> my_loop;
+
+    BarrierTask(ParallelForEach<T> loop)
+    {
+      my_loop = loop;
+    }
+
+    @Override
+    public Task execute()
+    {
+      ParallelForEach<T> loop = my_loop;
+      loop.my_barrier = this;
+      setRefCount(2);
+      ForEachTask<T> t = allocateChild(() -> new ForEachTask<>(loop, true));
+      spawnAndWaitForAll(t);
+      return null;
+    }
+  }
+
+  private static final class ForEachTask<T> extends Task implements Parallel.Feeder<T>
+  {
+    private final ParallelForEach<T> my_loop;
+    private final boolean my_pull;
+    Object[] my_stack;
+    int my_size;
+
+    ForEachTask(ParallelForEach<T> loop, boolean pull)
+    {
+      my_loop = loop;
+      my_pull = pull;
+      my_stack = new Object[feed_block];
+    }
+
+    ForEachTask(ParallelForEach<T> loop, Object[] items, int size)
+    {
+      my_loop = loop;
+      my_pull = false;
+      my_stack = new Object[Math.max(size, feed_block)];
+      System.arraycopy(items, 0, my_stack, 0, size);
+      my_size = size;
+    }
+
+    void push(T item)
+    {
+      if (my_size == my_stack.length)
+      {
+        my_stack = Arrays.copyOf(my_stack, my_size << 1);
+      }
+      my_stack[my_size++] = item;
+    }
+
+    @Override
+    public void add(T item)
+    {
+      push(item);
+      if (my_size >= feed_block)
+      {
+        // Share the oldest half, which is the most likely to lead to more work.
+        int half = my_size >>> 1;
+        ForEachTask<T> t = allocateAdditionalChildOf(my_loop.my_barrier,
+                                                     () -> new ForEachTask<>(my_loop, my_stack, half));
+        System.arraycopy(my_stack, half, my_stack, 0, my_size - half);
+        Arrays.fill(my_stack, my_size - half, my_size, null);
+        my_size -= half;
+        spawn(t);
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Task execute()
+    {
+      ParallelForEach<T> loop = my_loop;
+      if (my_pull && loop.pull(this))
+      {
+        spawn(allocateAdditionalChildOf(loop.my_barrier, () -> new ForEachTask<>(loop, true)));
+      }
+      while (my_size > 0 && !isCancelled())
+      {
+        T item = (T) my_stack[--my_size];
+        my_stack[my_size] = null;
+        loop.my_body.accept(item, this);
+      }
+      return null;
+    }
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import java.util.function.IntConsumer;
+import java.util.function.IntToLongFunction;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Loops over primitive intervals used by {@link Parallel}.
+ *
+ * <p>The bounds are held in primitive fields of the tasks. A task splits by
+ * spawning a right child for the upper half and recycling itself as the left
+ * child, like {@code StartFor}, so no range or body object is allocated per
+ * split and the inner loops only ever see a single body type.</p>
+ */
+final class ParallelLoop
+{
+  private ParallelLoop()
+  {
+  }
+
+  /**
+   * Grainsize used when none is given, which yields about eight chunks per
+   * processor.
+   */
+  static long defaultGrain(long size)
+  {
+    return Math.max(1, size / (TBB.PROCESSORS * 8));
+  }
+
+  static void forEach(int from, int to, int grain, IntConsumer body, TaskGroupContext context)
+  {
+    if (grain < 1)
+      throw new IllegalArgumentException("grain");
+    if (from < to)
+    {
+      ForEachTask a = Task.allocateRoot(context, () -> new ForEachTask(from, to, grain, body));
+      Task.spawnRootAndWait(a);
+    }
+  }
+
+  static void forRange(long from, long to, long grain, Parallel.LongRangeConsumer body, TaskGroupContext context)
+  {
+    if (grain < 1)
+      throw new IllegalArgumentException("grain");
+    if (from < to)
+    {
+      ForRangeTask a = Task.allocateRoot(context, () -> new ForRangeTask(from, to, grain, body));
+      Task.spawnRootAndWait(a);
+    }
+  }
+
+  static long reduce(int from, int to, int grain, long identity, IntToLongFunction map, LongBinaryOperator op,
+                     TaskGroupContext context)
+  {
+    if (grain < 1)
+      throw new IllegalArgumentException("grain");
+    if (from >= to)
+      return identity;
+    long[] result = { identity };
+    ReduceTask a = Task.allocateRoot(context, () -> new ReduceTask(from, to, grain, identity, map, op, result));
+    Task.spawnRootAndWait(a);
+    return result[0];
+  }
+
+  private static int middle(int begin, int end)
+  {
+    return (int) (((long) begin + end) >> 1);
+  }
+
+  private static final class ForEachTask extends Task
+  {
+    private final int my_grain;
+    private final IntConsumer my_body;
+    private int my_begin;
+    private int my_end;
+
+    ForEachTask(int begin, int end, int grain, IntConsumer body)
+    {
+      my_begin = begin;
+      my_end = end;
+      my_grain = grain;
+      my_body = body;
+    }
+
+    @Override
+    public Task execute()
+    {
+      if ((long) my_end - my_begin <= my_grain)
+      {
+        IntConsumer body = my_body;
+        for (int i = my_begin, end = my_end; i < end; i++)
+        {
+          body.accept(i);
+        }
+        return null;
+      }
+      EmptyTask c = allocateContinuation(EmptyTask.SUPPLIER);
+      recycleAsChildOf(c);
+      c.setRefCount(2);
+      int mid = middle(my_begin, my_end);
+      int end = my_end;
+      ForEachTask b = c.allocateChild(() -> new ForEachTask(mid, end, my_grain, my_body));
+      spawn(b);
+      my_end = mid;
+      return this;
+    }
+  }
+
+  private static final class ForRangeTask extends Task
+  {
+    private final long my_grain;
+    private final Parallel.LongRangeConsumer my_body;
+    private long my_begin;
+    private long my_end;
+
+    ForRangeTask(long begin, long end, long grain, Parallel.LongRangeConsumer body)
+    {
+      my_begin = begin;
+      my_end = end;
+      my_grain = grain;
+      my_body = body;
+    }
+
+    @Override
+    public Task execute()
+    {
+      // Unsigned, as the interval may be wider than Long.MAX_VALUE.
+      long size = my_end - my_begin;
+      if (Long.compareUnsigned(size, my_grain) <= 0)
+      {
+        my_body.accept(my_begin, my_end);
+        return null;
+      }
+      EmptyTask c = allocateContinuation(EmptyTask.SUPPLIER);
+      recycleAsChildOf(c);
+      c.setRefCount(2);
+      long mid = my_begin + (size >>> 1);
+      long end = my_end;
+      ForRangeTask b = c.allocateChild(() -> new ForRangeTask(mid, end, my_grain, my_body));
+      spawn(b);
+      my_end = mid;
+      return this;
+    }
+  }
+
+  /**
+   * Reduces an interval, storing the result in its parent join, or in
+   * {@code result[0]} for the root.
+   */
+  private static final class ReduceTask extends Task
+  {
+    private final int my_grain;
+    private final long my_identity;
+    private final IntToLongFunction my_map;
+    private final LongBinaryOperator my_op;
+    private final long[] my_result;
+    private int my_begin;
+    private int my_end;
+    private ReduceJoin my_parent;
+    private boolean is_right;
+
+    ReduceTask(int begin, int end, int grain, long identity, IntToLongFunction map, LongBinaryOperator op,
+               long[] result)
+    {
+      my_begin = begin;
+      my_end = end;
+      my_grain = grain;
+      my_identity = identity;
+      my_map = map;
+      my_op = op;
+      my_result = result;
+    }
+
+    @Override
+    public Task execute()
+    {
+      if ((long) my_end - my_begin <= my_grain)
+      {
+        IntToLongFunction map = my_map;
+        LongBinaryOperator op = my_op;
+        long sum = my_identity;
+        for (int i = my_begin, end = my_end; i < end; i++)
+        {
+          sum = op.applyAsLong(sum, map.applyAsLong(i));
+        }
+        ReduceJoin.store(my_parent, is_right, my_result, sum);
+        return null;
+      }
+      ReduceJoin parent = my_parent;
+      boolean right = is_right;
+      ReduceJoin c = allocateContinuation(() -> new ReduceJoin(parent, right, my_op, my_result));
+      recycleAsChildOf(c);
+      c.setRefCount(2);
+      int mid = middle(my_begin, my_end);
+      int end = my_end;
+      ReduceTask b = c.allocateChild(() -> new ReduceTask(mid, end, my_grain, my_identity, my_map, my_op, my_result));
+      b.my_parent = c;
+      b.is_right = true;
+      spawn(b);
+      my_end = mid;
+      my_parent = c;
+      is_right = false;
+      return this;
+    }
+  }
+
+  /**
+   * Continuation which combines the results of two {@link ReduceTask}s.
+   */
+  private static final class ReduceJoin extends Task
+  {
+    private final ReduceJoin my_parent;
+    private final boolean is_right;
+    private final LongBinaryOperator my_op;
+    private final long[] my_result;
+    private long left_sum;
+    private long right_sum;
+
+    ReduceJoin(ReduceJoin parent, boolean right, LongBinaryOperator op, long[] result)
+    {
+      my_parent = parent;
+      is_right = right;
+      my_op = op;
+      my_result = result;
+    }
+
+    static void store(ReduceJoin parent, boolean right, long[] result, long sum)
+    {
+      if (parent == null)
+        result[0] = sum;
+      else if (right)
+        parent.right_sum = sum;
+      else
+        parent.left_sum = sum;
+    }
+
+    @Override
+    public Task execute()
+    {
+      store(my_parent, is_right, my_result, my_op.applyAsLong(left_sum, right_sum));
+      return null;
+    }
+  }
+}
@@ -0,0 +1,384 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import io.netty.util.concurrent.Future;
+import org.xiphis.utils.var.VarGroup;
+
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Pipeline whose stages may each change the type of the item, modelled on
+ * TBB's {@code parallel_pipeline} and {@code make_filter}.
+ *
+ * <p>A pipeline is built from a source, any number of intermediate stages and
+ * a sink:</p>
+ * <pre>
+ *   ParallelPipeline.source(reader::next)
+ *       .then(Filter.Mode.parallel, Record::parse)
+ *       .then(Filter.Mode.serial_in_order, enricher::enrich)
+ *       .sink(writer::write)
+ *       .run(16);
+ * </pre>
+ *
+ * <p>The source signals the end of input by returning {@code null}. Stages
+ * are executed by the token machinery of {@link Pipeline}, so the modes and
+ * the limit on live tokens behave exactly as they do there.</p>
+ */
+public final class ParallelPipeline
+{
+  private final Pipeline<Object> _pipeline;
+
+  private ParallelPipeline(Stage<?> last)
+  {
+    _pipeline = new Pipeline<>();
+    addStages(last);
+  }
+
+  /**
+   * Start a pipeline with a serial in order source.
+   *
+   * @param <A> Type of items produced by the source
+   * @param source supplier of items, returns {@code null} at end of input.
+   * @return first stage
+   */
+  public static <A> Stage<A> source(Supplier<A> source)
+  {
+    return source(Filter.Mode.serial_in_order, source);
+  }
+
+  /**
+   * Start a pipeline with a source.
+   *
+   * @param <A> Type of items produced by the source
+   * @param mode filter mode of the source
+   * @param source supplier of items, returns {@code null} at end of input.
+   * @return first stage
+   */
+  public static <A> Stage<A> source(Filter.Mode mode, Supplier<A> source)
+  {
+    if (source == null)
+      throw new NullPointerException("source");
+    return new Stage<>(null, mode, item -> source.get(), false);
+  }
+
+  /**
+   * Start a pipeline with an asynchronous source.
+   * <p>Tokens waiting for the source do not occupy a worker, see
+   * {@link AsyncFilter}.</p>
+   *
+   * @param <A> Type of items produced by the source
+   * @param mode filter mode of the source
+   * @param source supplier of futures of items, which complete with
+   *               {@code null} at end of input.
+   * @return first stage
+   */
+  public static <A> Stage<A> sourceAsync(Filter.Mode mode, Supplier<? extends Future<A>> source)
+  {
+    if (source == null)
+      throw new NullPointerException("source");
+    return new Stage<>(null, mode, item -> source.get(), true);
+  }
+
+  /**
+   * Carry a fixed number of items with each token.
+   *
+   * @param batch_size items per token, 1 disables batching.
+   * @return this pipeline
+   * @see Pipeline#setBatchSize(int)
+   */
+  public ParallelPipeline batchSize(int batch_size)
+  {
+    _pipeline.setBatchSize(batch_size);
+    return this;
+  }
+
+  /**
+   * Carry batches of items with each token, sized so that the stages spend
+   * about {@code target_nanos} on each batch.
+   *
+   * @param target_nanos target stage time per batch
+   * @param max_batch_size upper bound of the batch size
+   * @return this pipeline
+   * @see Pipeline#setAdaptiveBatchSize(long, int)
+   */
+  public ParallelPipeline adaptiveBatchSize(long target_nanos, int max_batch_size)
+  {
+    _pipeline.setAdaptiveBatchSize(target_nanos, max_batch_size);
+    return this;
+  }
+
+  /**
+   * Run the pipeline to completion.
+   *
+   * @param max_number_of_live_tokens max live tokens
+   */
+  public void run(int max_number_of_live_tokens)
+  {
+    _pipeline.run(max_number_of_live_tokens);
+  }
+
+  /**
+   * Run the pipeline to completion with user-supplied context.
+   *
+   * @param max_number_of_live_tokens max live tokens
+   * @param context Thread execution context
+   */
+  public void run(int max_number_of_live_tokens, TaskGroupContext context)
+  {
+    _pipeline.run(max_number_of_live_tokens, context);
+  }
+
+  /**
+   * Run the pipeline to completion, adjusting the number of live tokens
+   * between the given bounds.
+   *
+   * @param min_number_of_live_tokens min live tokens
+   * @param max_number_of_live_tokens max live tokens
+   * @see Pipeline#runAdaptive(int, int, TaskGroupContext)
+   */
+  public void runAdaptive(int min_number_of_live_tokens, int max_number_of_live_tokens)
+  {
+    _pipeline.runAdaptive(min_number_of_live_tokens, max_number_of_live_tokens);
+  }
+
+  /**
+   * Run the pipeline to completion with user-supplied context, adjusting the
+   * number of live tokens between the given bounds.
+   *
+   * @param min_number_of_live_tokens min live tokens
+   * @param max_number_of_live_tokens max live tokens
+   * @param context Thread execution context
+   * @see Pipeline#runAdaptive(int, int, TaskGroupContext)
+   */
+  public void runAdaptive(int min_number_of_live_tokens, int max_number_of_live_tokens, TaskGroupContext context)
+  {
+    _pipeline.runAdaptive(min_number_of_live_tokens, max_number_of_live_tokens, context);
+  }
+
+  /**
+   * Number of live tokens in circulation in the current or last run.
+   *
+   * @return live tokens
+   * @see Pipeline#getTokenLimit()
+   */
+  public int getTokenLimit()
+  {
+    return _pipeline.getTokenLimit();
+  }
+
+  /**
+   * Number of tokens waiting in front of each stage, source first.
+   *
+   * @return queue depths
+   * @see Pipeline#getQueueDepths()
+   */
+  public int[] getQueueDepths()
+  {
+    return _pipeline.getQueueDepths();
+  }
+
+  /**
+   * Enable or disable per-stage instrumentation.
+   *
+   * @param instrumented {@code true} to enable
+   * @return this pipeline
+   * @see Pipeline#setInstrumented(boolean)
+   */
+  public ParallelPipeline instrumented(boolean instrumented)
+  {
+    _pipeline.setInstrumented(instrumented);
+    return this;
+  }
+
+  /**
+   * Snapshot of the instrumentation of each stage, source first.
+   *
+   * @return snapshots
+   * @see Pipeline#statistics()
+   */
+  public List<FilterStatistics> statistics()
+  {
+    return _pipeline.statistics();
+  }
+
+  /**
+   * Registers the instrumentation of the stages as vars.
+   *
+   * @param base group under which the vars are registered
+   * @see Pipeline#register(VarGroup)
+   */
+  public void register(VarGroup base)
+  {
+    _pipeline.register(base);
+  }
+
+  private void addStages(Stage<?> stage)
+  {
+    if (stage._prev != null)
+    {
+      addStages(stage._prev);
+    }
+    if (stage._async)
+    {
+      _pipeline.addFilter(new AsyncStageFilter(stage._mode, stage._body));
+    }
+    else
+    {
+      _pipeline.addFilter(new StageFilter(stage._mode, stage._body));
+    }
+  }
+
+  /**
+   * Stage of a pipeline under construction which produces items of type
+   * {@code T}.
+   * <p>Stages are immutable, so a partially built pipeline may be shared
+   * and completed in more than one way.</p>
+   *
+   * @param <T> Type of items produced by this stage
+   */
+  public static final class Stage<T>
+  {
+    private final Stage<?> _prev;
+    private final Filter.Mode _mode;
+    private final Function<Object, ?> _body;
+    private final boolean _async;
+
+    private Stage(Stage<?> prev, Filter.Mode mode, Function<Object, ?> body, boolean async)
+    {
+      if (mode == null)
+        throw new NullPointerException("mode");
+      _prev = prev;
+      _mode = mode;
+      _body = body;
+      _async = async;
+    }
+
+    /**
+     * Append an intermediate stage.
+     *
+     * @param <R> Type of items produced by the new stage
+     * @param mode filter mode of the new stage
+     * @param function transformation of each item
+     * @return the new stage
+     */
+    @SuppressWarnings("unchecked")
+    public <R> Stage<R> then(Filter.Mode mode, Function<? super T, ? extends R> function)
+    {
+      if (function == null)
+        throw new NullPointerException("function");
+      return new Stage<>(this, mode, item -> function.apply((T) item), false);
+    }
+
+    /**
+     * Append an intermediate stage which completes asynchronously.
+     *
+     * @param <R> Type of items produced by the new stage
+     * @param mode filter mode of the new stage
+     * @param function starts the transformation of each item
+     * @return the new stage
+     * @see AsyncFilter
+     */
+    @SuppressWarnings("unchecked")
+    public <R> Stage<R> thenAsync(Filter.Mode mode, Function<? super T, ? extends Future<R>> function)
+    {
+      if (function == null)
+        throw new NullPointerException("function");
+      return new Stage<>(this, mode, item -> function.apply((T) item), true);
+    }
+
+    /**
+     * Complete the pipeline with a serial in order sink.
+     *
+     * @param sink consumer of items
+     * @return pipeline ready to run
+     */
+    public ParallelPipeline sink(Consumer<? super T> sink)
+    {
+      return sink(Filter.Mode.serial_in_order, sink);
+    }
+
+    /**
+     * Complete the pipeline with a sink.
+     *
+     * @param mode filter mode of the sink
+     * @param sink consumer of items
+     * @return pipeline ready to run
+     */
+    @SuppressWarnings("unchecked")
+    public ParallelPipeline sink(Filter.Mode mode, Consumer<? super T> sink)
+    {
+      if (sink == null)
+        throw new NullPointerException("sink");
+      return new ParallelPipeline(new Stage<Void>(this, mode, item -> {
+        sink.accept((T) item);
+        return null;
+      }, false));
+    }
+
+    /**
+     * Complete the pipeline with a sink which completes asynchronously.
+     * <p>A serial sink does not start the next item until the future of the
+     * previous item has completed.</p>
+     *
+     * @param mode filter mode of the sink
+     * @param sink starts consuming each item
+     * @return pipeline ready to run
+     * @see AsyncFilter
+     */
+    @SuppressWarnings("unchecked")
+    public ParallelPipeline sinkAsync(Filter.Mode mode, Function<? super T, ? extends Future<?>> sink)
+    {
+      if (sink == null)
+        throw new NullPointerException("sink");
+      return new ParallelPipeline(new Stage<Void>(this, mode, item -> sink.apply((T) item), true));
+    }
+  }
+
+  private static final class StageFilter extends Filter<Object>
+  {
+    private final Function<Object, ?> _body;
+
+    StageFilter(Filter.Mode mode, Function<Object, ?> body)
+    {
+      super(mode);
+      _body = body;
+    }
+
+    @Override
+    public Object operator(Object item)
+    {
+      return _body.apply(item);
+    }
+  }
+
+  private static final class AsyncStageFilter extends AsyncFilter<Object>
+  {
+    private final Function<Object, ?> _body;
+
+    AsyncStageFilter(Filter.Mode mode, Function<Object, ?> body)
+    {
+      super(mode);
+      _body = body;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Future<Object> operatorAsync(Object item)
+    {
+      return (Future<Object>) _body.apply(item);
+    }
+  }
+}
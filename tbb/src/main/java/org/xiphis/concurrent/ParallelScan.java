@@ -0,0 +1,280 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.IntBinaryOperator;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * Prefix sums of primitive arrays used by {@link Parallel}.
+ *
+ * <p>The array is divided into blocks which fit in a core's cache. The first
+ * pass sums every block in parallel, the block sums are scanned serially,
+ * and the second pass scans every block in parallel starting from the value
+ * carried into it. Unlike the generic {@code parallelScan}, no body or range
+ * object is created per block. The operator must be associative; as the
+ * grouping differs from a serial loop, floating point results may differ
+ * in the last bits.</p>
+ */
+final class ParallelScan
+{
+  /**
+   * Elements per block for 32-bit values, about 64KB.
+   */
+  static final int int_block = 1 << 14;
+
+  /**
+   * Elements per block for 64-bit values, about 64KB.
+   */
+  static final int long_block = 1 << 13;
+
+  private ParallelScan()
+  {
+  }
+
+  private static int blocks(int size, int block)
+  {
+    return (int) (((long) size + block - 1) / block);
+  }
+
+  static void scan(int[] src, int[] dst, boolean inclusive, int initial, IntBinaryOperator op, TaskGroupContext context)
+  {
+    int size = src.length;
+    if (dst.length < size)
+      throw new IllegalArgumentException("destination is too small");
+    int block = int_block;
+    int blocks = blocks(size, block);
+    if (blocks < 2)
+    {
+      scanBlock(src, dst, 0, size, inclusive, true, initial, op);
+      return;
+    }
+    // Pass 1: sum every block except the last.
+    int[] carry = new int[blocks];
+    ParallelLoop.forEach(0, blocks - 1, 1, b -> {
+      int begin = b * block;
+      int end = begin + block;
+      int sum = src[begin];
+      for (int i = begin + 1; i < end; i++)
+      {
+        sum = op.applyAsInt(sum, src[i]);
+      }
+      carry[b] = sum;
+    }, context);
+    // Turn the block sums into the value carried into each block.
+    int sum = carry[0];
+    carry[0] = initial;
+    if (!inclusive)
+    {
+      sum = op.applyAsInt(initial, sum);
+    }
+    for (int b = 1; b < blocks; b++)
+    {
+      int next = carry[b];
+      carry[b] = sum;
+      sum = op.applyAsInt(sum, next);
+    }
+    // Pass 2: scan every block starting from its carry.
+    ParallelLoop.forEach(0, blocks, 1, b -> {
+      int begin = b * block;
+      scanBlock(src, dst, begin, begin + Math.min(size - begin, block), inclusive, b == 0, carry[b], op);
+    }, context);
+  }
+
+  private static void scanBlock(int[] src, int[] dst, int begin, int end, boolean inclusive, boolean first,
+                                int carry, IntBinaryOperator op)
+  {
+    if (begin == end)
+    {
+      return;
+    }
+    int sum = carry;
+    if (inclusive)
+    {
+      int i = begin;
+      if (first)
+      {
+        sum = src[i];
+        dst[i++] = sum;
+      }
+      for (; i < end; i++)
+      {
+        sum = op.applyAsInt(sum, src[i]);
+        dst[i] = sum;
+      }
+    }
+    else
+    {
+      for (int i = begin; i < end; i++)
+      {
+        int value = src[i];
+        dst[i] = sum;
+        sum = op.applyAsInt(sum, value);
+      }
+    }
+  }
+
+  static void scan(long[] src, long[] dst, boolean inclusive, long initial, LongBinaryOperator op, TaskGroupContext context)
+  {
+    int size = src.length;
+    if (dst.length < size)
+      throw new IllegalArgumentException("destination is too small");
+    int block = long_block;
+    int blocks = blocks(size, block);
+    if (blocks < 2)
+    {
+      scanBlock(src, dst, 0, size, inclusive, true, initial, op);
+      return;
+    }
+    // Pass 1: sum every block except the last.
+    long[] carry = new long[blocks];
+    ParallelLoop.forEach(0, blocks - 1, 1, b -> {
+      int begin = b * block;
+      int end = begin + block;
+      long sum = src[begin];
+      for (int i = begin + 1; i < end; i++)
+      {
+        sum = op.applyAsLong(sum, src[i]);
+      }
+      carry[b] = sum;
+    }, context);
+    // Turn the block sums into the value carried into each block.
+    long sum = carry[0];
+    carry[0] = initial;
+    if (!inclusive)
+    {
+      sum = op.applyAsLong(initial, sum);
+    }
+    for (int b = 1; b < blocks; b++)
+    {
+      long next = carry[b];
+      carry[b] = sum;
+      sum = op.applyAsLong(sum, next);
+    }
+    // Pass 2: scan every block starting from its carry.
+    ParallelLoop.forEach(0, blocks, 1, b -> {
+      int begin = b * block;
+      scanBlock(src, dst, begin, begin + Math.min(size - begin, block), inclusive, b == 0, carry[b], op);
+    }, context);
+  }
+
+  private static void scanBlock(long[] src, long[] dst, int begin, int end, boolean inclusive, boolean first,
+                                long carry, LongBinaryOperator op)
+  {
+    if (begin == end)
+    {
+      return;
+    }
+    long sum = carry;
+    if (inclusive)
+    {
+      int i = begin;
+      if (first)
+      {
+        sum = src[i];
+        dst[i++] = sum;
+      }
+      for (; i < end; i++)
+      {
+        sum = op.applyAsLong(sum, src[i]);
+        dst[i] = sum;
+      }
+    }
+    else
+    {
+      for (int i = begin; i < end; i++)
+      {
+        long value = src[i];
+        dst[i] = sum;
+        sum = op.applyAsLong(sum, value);
+      }
+    }
+  }
+
+  static void scan(double[] src, double[] dst, boolean inclusive, double initial, DoubleBinaryOperator op, TaskGroupContext context)
+  {
+    int size = src.length;
+    if (dst.length < size)
+      throw new IllegalArgumentException("destination is too small");
+    int block = long_block;
+    int blocks = blocks(size, block);
+    if (blocks < 2)
+    {
+      scanBlock(src, dst, 0, size, inclusive, true, initial, op);
+      return;
+    }
+    // Pass 1: sum every block except the last.
+    double[] carry = new double[blocks];
+    ParallelLoop.forEach(0, blocks - 1, 1, b -> {
+      int begin = b * block;
+      int end = begin + block;
+      double sum = src[begin];
+      for (int i = begin + 1; i < end; i++)
+      {
+        sum = op.applyAsDouble(sum, src[i]);
+      }
+      carry[b] = sum;
+    }, context);
+    // Turn the block sums into the value carried into each block.
+    double sum = carry[0];
+    carry[0] = initial;
+    if (!inclusive)
+    {
+      sum = op.applyAsDouble(initial, sum);
+    }
+    for (int b = 1; b < blocks; b++)
+    {
+      double next = carry[b];
+      carry[b] = sum;
+      sum = op.applyAsDouble(sum, next);
+    }
+    // Pass 2: scan every block starting from its carry.
+    ParallelLoop.forEach(0, blocks, 1, b -> {
+      int begin = b * block;
+      scanBlock(src, dst, begin, begin + Math.min(size - begin, block), inclusive, b == 0, carry[b], op);
+    }, context);
+  }
+
+  private static void scanBlock(double[] src, double[] dst, int begin, int end, boolean inclusive, boolean first,
+                                double carry, DoubleBinaryOperator op)
+  {
+    if (begin == end)
+    {
+      return;
+    }
+    double sum = carry;
+    if (inclusive)
+    {
+      int i = begin;
+      if (first)
+      {
+        sum = src[i];
+        dst[i++] = sum;
+      }
+      for (; i < end; i++)
+      {
+        sum = op.applyAsDouble(sum, src[i]);
+        dst[i] = sum;
+      }
+    }
+    else
+    {
+      for (int i = begin; i < end; i++)
+      {
+        double value = src[i];
+        dst[i] = sum;
+        sum = op.applyAsDouble(sum, value);
+      }
+    }
+  }
+}
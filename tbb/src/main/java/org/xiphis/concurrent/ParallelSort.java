@@ -0,0 +1,846 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Sorting algorithms used by {@link Parallel}.
+ *
+ * <p>Primitive arrays are sorted by a parallel quick sort which partitions
+ * while splitting ranges, as {@code QuickSortRangeConcept} does for objects,
+ * and sorts small ranges with {@link Arrays#sort(int[], int, int)}, so keys
+ * are never boxed. Integral keys may instead be sorted by a parallel LSD
+ * radix sort, and objects by a parallel stable merge sort.</p>
+ */
+final class ParallelSort
+{
+  /**
+   * Ranges smaller than this are sorted serially.
+   */
+  static final int grainsize = 500;
+
+  /**
+   * Number of elements handled by each block of a radix sort pass.
+   */
+  static final int radix_block = 1 << 14;
+
+  /**
+   * Ranges smaller than this are merged serially.
+   */
+  static final int merge_grainsize = 2048;
+
+  private ParallelSort()
+  {
+  }
+
+  static void sort(int[] array, int begin, int end, TaskGroupContext context)
+  {
+    if (end - begin < grainsize)
+    {
+      Arrays.sort(array, begin, end);
+      return;
+    }
+    IntSortRangeConcept concept = new IntSortRangeConcept(array);
+    Parallel.parallelFor(concept.newInstance(begin, end - begin),
+                         (Parallel.Body<IntSortRangeConcept.SortRange>) IntSortRangeConcept.SortRange::sort, context);
+  }
+
+  static void sort(long[] array, int begin, int end, TaskGroupContext context)
+  {
+    if (end - begin < grainsize)
+    {
+      Arrays.sort(array, begin, end);
+      return;
+    }
+    LongSortRangeConcept concept = new LongSortRangeConcept(array);
+    Parallel.parallelFor(concept.newInstance(begin, end - begin),
+                         (Parallel.Body<LongSortRangeConcept.SortRange>) LongSortRangeConcept.SortRange::sort, context);
+  }
+
+  static void sort(double[] array, int begin, int end, TaskGroupContext context)
+  {
+    if (end - begin < grainsize)
+    {
+      Arrays.sort(array, begin, end);
+      return;
+    }
+    DoubleSortRangeConcept concept = new DoubleSortRangeConcept(array);
+    Parallel.parallelFor(concept.newInstance(begin, end - begin),
+                         (Parallel.Body<DoubleSortRangeConcept.SortRange>) DoubleSortRangeConcept.SortRange::sort,
+                         context);
+  }
+
+  // Radix sort
+
+  private static int radixBlocks(int size)
+  {
+    return Math.max(1, Math.min(TBB.PROCESSORS * 4, size / radix_block));
+  }
+
+  private static int blockBegin(int block, int blocks, int size)
+  {
+    return (int) ((long) block * size / blocks);
+  }
+
+  /**
+   * Converts the per block digit counts into the offset at which each block
+   * writes its first element of each digit.
+   *
+   * @return {@code false} if every element has the same digit, so the pass
+   * can be skipped.
+   */
+  private static boolean prefixSum(int[][] counts, int size)
+  {
+    int sum = 0;
+    for (int digit = 0; digit < 256; digit++)
+    {
+      int total = 0;
+      for (int[] count : counts)
+      {
+        int c = count[digit];
+        count[digit] = sum + total;
+        total += c;
+      }
+      if (total == size)
+      {
+        return false;
+      }
+      sum += total;
+    }
+    return true;
+  }
+
+  static void radixSort(int[] array, int begin, int end, TaskGroupContext context)
+  {
+    int size = end - begin;
+    if (size < radix_block)
+    {
+      Arrays.sort(array, begin, end);
+      return;
+    }
+    int blocks = radixBlocks(size);
+    int[][] counts = new int[blocks][256];
+    int[] src = array;
+    int srcOff = begin;
+    int[] dst = new int[size];
+    int dstOff = 0;
+    for (int shift = 0; shift < 32; shift += 8)
+    {
+      // Flip the sign bit of the most significant digit so that negative
+      // keys come first.
+      int flip = shift == 24 ? 0x80 : 0;
+      radixCount(src, srcOff, size, counts, shift, flip, context);
+      if (!prefixSum(counts, size))
+      {
+        continue;
+      }
+      radixScatter(src, srcOff, dst, dstOff, size, counts, shift, flip, context);
+      int[] t = src;
+      src = dst;
+      dst = t;
+      int o = srcOff;
+      srcOff = dstOff;
+      dstOff = o;
+    }
+    if (src != array)
+    {
+      System.arraycopy(src, srcOff, array, begin, size);
+    }
+  }
+
+  private static void radixCount(int[] src, int srcOff, int size, int[][] counts, int shift, int flip,
+                                 TaskGroupContext context)
+  {
+    int blocks = counts.length;
+    Parallel.parallelFor(new IntRangeConcept().newInstance(0, blocks), (Parallel.Body<IntRangeConcept.IntRange>) r -> {
+      for (int block = r.begin(); block < r.end(); block++)
+      {
+        int[] count = counts[block];
+        Arrays.fill(count, 0);
+        int end = srcOff + blockBegin(block + 1, blocks, size);
+        for (int i = srcOff + blockBegin(block, blocks, size); i < end; i++)
+        {
+          count[(src[i] >>> shift & 0xff) ^ flip]++;
+        }
+      }
+    }, context);
+  }
+
+  private static void radixScatter(int[] src, int srcOff, int[] dst, int dstOff, int size, int[][] counts, int shift,
+                                   int flip, TaskGroupContext context)
+  {
+    int blocks = counts.length;
+    Parallel.parallelFor(new IntRangeConcept().newInstance(0, blocks), (Parallel.Body<IntRangeConcept.IntRange>) r -> {
+      for (int block = r.begin(); block < r.end(); block++)
+      {
+        int[] offset = counts[block];
+        int end = srcOff + blockBegin(block + 1, blocks, size);
+        for (int i = srcOff + blockBegin(block, blocks, size); i < end; i++)
+        {
+          int v = src[i];
+          dst[dstOff + offset[(v >>> shift & 0xff) ^ flip]++] = v;
+        }
+      }
+    }, context);
+  }
+
+  static void radixSort(long[] array, int begin, int end, TaskGroupContext context)
+  {
+    int size = end - begin;
+    if (size < radix_block)
+    {
+      Arrays.sort(array, begin, end);
+      return;
+    }
+    int blocks = radixBlocks(size);
+    int[][] counts = new int[blocks][256];
+    long[] src = array;
+    int srcOff = begin;
+    long[] dst = new long[size];
+    int dstOff = 0;
+    for (int shift = 0; shift < 64; shift += 8)
+    {
+      // Flip the sign bit of the most significant digit so that negative
+      // keys come first.
+      int flip = shift == 56 ? 0x80 : 0;
+      radixCount(src, srcOff, size, counts, shift, flip, context);
+      if (!prefixSum(counts, size))
+      {
+        continue;
+      }
+      radixScatter(src, srcOff, dst, dstOff, size, counts, shift, flip, context);
+      long[] t = src;
+      src = dst;
+      dst = t;
+      int o = srcOff;
+      srcOff = dstOff;
+      dstOff = o;
+    }
+    if (src != array)
+    {
+      System.arraycopy(src, srcOff, array, begin, size);
+    }
+  }
+
+  private static void radixCount(long[] src, int srcOff, int size, int[][] counts, int shift, int flip,
+                                 TaskGroupContext context)
+  {
+    int blocks = counts.length;
+    Parallel.parallelFor(new IntRangeConcept().newInstance(0, blocks), (Parallel.Body<IntRangeConcept.IntRange>) r -> {
+      for (int block = r.begin(); block < r.end(); block++)
+      {
+        int[] count = counts[block];
+        Arrays.fill(count, 0);
+        int end = srcOff + blockBegin(block + 1, blocks, size);
+        for (int i = srcOff + blockBegin(block, blocks, size); i < end; i++)
+        {
+          count[((int) (src[i] >>> shift) & 0xff) ^ flip]++;
+        }
+      }
+    }, context);
+  }
+
+  private static void radixScatter(long[] src, int srcOff, long[] dst, int dstOff, int size, int[][] counts,
+                                   int shift, int flip, TaskGroupContext context)
+  {
+    int blocks = counts.length;
+    Parallel.parallelFor(new IntRangeConcept().newInstance(0, blocks), (Parallel.Body<IntRangeConcept.IntRange>) r -> {
+      for (int block = r.begin(); block < r.end(); block++)
+      {
+        int[] offset = counts[block];
+        int end = srcOff + blockBegin(block + 1, blocks, size);
+        for (int i = srcOff + blockBegin(block, blocks, size); i < end; i++)
+        {
+          long v = src[i];
+          dst[dstOff + offset[((int) (v >>> shift) & 0xff) ^ flip]++] = v;
+        }
+      }
+    }, context);
+  }
+
+  // Stable merge sort
+
+  @SuppressWarnings("unchecked")
+  static <T> void stableSort(T[] array, int begin, int end, Comparator<? super T> comp, TaskGroupContext context)
+  {
+    if (end - begin < merge_grainsize)
+    {
+      Arrays.sort(array, begin, end, comp);
+      return;
+    }
+    T[] buffer = (T[]) new Object[end - begin];
+    MergeSortTask<T> root = Task.allocateRoot(context, () -> new MergeSortTask<>(array, buffer, begin, begin, end,
+                                                                                 false, comp));
+    Task.spawnRootAndWait(root);
+  }
+
+  /**
+   * Sorts {@code [begin,end)} of the array, leaving the result either in the
+   * array or, if {@code to_buffer}, in the buffer. Position {@code p} of the
+   * array corresponds to position {@code p - base} of the buffer.
+   */
+  private static final class MergeSortTask<T> extends Task
+  {
+    private final T[] array;
+    private final T[] buffer;
+    private final int base;
+    private int begin;
+    private int end;
+    private boolean to_buffer;
+    private final Comparator<? super T> comp;
+
+    MergeSortTask(T[] array_, T[] buffer_, int base_, int begin_, int end_, boolean to_buffer_,
+                  Comparator<? super T> comp_)
+    {
+      array = array_;
+      buffer = buffer_;
+      base = base_;
+      begin = begin_;
+      end = end_;
+      to_buffer = to_buffer_;
+      comp = comp_;
+    }
+
+    @Override
+    public Task execute()
+    {
+      if (end - begin < merge_grainsize)
+      {
+        Arrays.sort(array, begin, end, comp);
+        if (to_buffer)
+        {
+          System.arraycopy(array, begin, buffer, begin - base, end - begin);
+        }
+        return null;
+      }
+      int mid = (begin + end) >>> 1;
+      // The halves are sorted into the other array and merged back.
+      MergeTask<T> c = to_buffer
+                       ? allocateContinuation(() -> new MergeTask<>(array, 0, buffer, base, begin, mid, mid, end,
+                                                                    begin, comp))
+                       : allocateContinuation(() -> new MergeTask<>(buffer, base, array, 0, begin, mid, mid, end,
+                                                                    begin, comp));
+      recycleAsChildOf(c);
+      c.setRefCount(2);
+      MergeSortTask<T> b = c.allocateChild(() -> new MergeSortTask<>(array, buffer, base, mid, end, !to_buffer,
+                                                                    comp));
+      spawn(b);
+      end = mid;
+      to_buffer = !to_buffer;
+      return this;
+    }
+  }
+
+  /**
+   * Stably merges the sorted runs {@code [lo1,hi1)} and {@code [lo2,hi2)} of
+   * src, where elements of the first run precede equal elements of the second,
+   * into dst starting at {@code out}. Position {@code p} of src and dst is at
+   * index {@code p - src_off} and {@code p - dst_off} respectively.
+   */
+  private static final class MergeTask<T> extends Task
+  {
+    private final T[] src;
+    private final int src_off;
+    private final T[] dst;
+    private final int dst_off;
+    private int lo1, hi1, lo2, hi2, out;
+    private final Comparator<? super T> comp;
+
+    MergeTask(T[] src_, int src_off_, T[] dst_, int dst_off_, int lo1_, int hi1_, int lo2_, int hi2_, int out_,
+              Comparator<? super T> comp_)
+    {
+      src = src_;
+      src_off = src_off_;
+      dst = dst_;
+      dst_off = dst_off_;
+      lo1 = lo1_;
+      hi1 = hi1_;
+      lo2 = lo2_;
+      hi2 = hi2_;
+      out = out_;
+      comp = comp_;
+    }
+
+    @Override
+    public Task execute()
+    {
+      int n1 = hi1 - lo1;
+      int n2 = hi2 - lo2;
+      if (n1 + n2 < merge_grainsize)
+      {
+        merge();
+        return null;
+      }
+      // Split the longer run in half and the other at the matching key.
+      int m1, m2;
+      if (n1 >= n2)
+      {
+        m1 = (lo1 + hi1) >>> 1;
+        m2 = lowerBound(src[m1 - src_off], lo2, hi2);
+      }
+      else
+      {
+        m2 = (lo2 + hi2) >>> 1;
+        m1 = upperBound(src[m2 - src_off], lo1, hi1);
+      }
+      int out2 = out + (m1 - lo1) + (m2 - lo2);
+      int hi1_ = hi1;
+      int hi2_ = hi2;
+      EmptyTask c = allocateContinuation(EmptyTask.SUPPLIER);
+      recycleAsChildOf(c);
+      c.setRefCount(2);
+      MergeTask<T> b = c.allocateChild(() -> new MergeTask<>(src, src_off, dst, dst_off, m1, hi1_, m2, hi2_, out2,
+                                                             comp));
+      spawn(b);
+      hi1 = m1;
+      hi2 = m2;
+      return this;
+    }
+
+    /**
+     * First position in {@code [lo,hi)} whose element is not less than key.
+     */
+    private int lowerBound(T key, int lo, int hi)
+    {
+      while (lo < hi)
+      {
+        int mid = (lo + hi) >>> 1;
+        if (comp.compare(src[mid - src_off], key) < 0)
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+      return lo;
+    }
+
+    /**
+     * First position in {@code [lo,hi)} whose element is greater than key.
+     */
+    private int upperBound(T key, int lo, int hi)
+    {
+      while (lo < hi)
+      {
+        int mid = (lo + hi) >>> 1;
+        if (comp.compare(key, src[mid - src_off]) < 0)
+          hi = mid;
+        else
+          lo = mid + 1;
+      }
+      return lo;
+    }
+
+    private void merge()
+    {
+      int i = lo1 - src_off, e1 = hi1 - src_off;
+      int j = lo2 - src_off, e2 = hi2 - src_off;
+      int k = out - dst_off;
+      while (i < e1 && j < e2)
+      {
+        dst[k++] = comp.compare(src[j], src[i]) < 0 ? src[j++] : src[i++];
+      }
+      System.arraycopy(src, i, dst, k, e1 - i);
+      System.arraycopy(src, j, dst, k + e1 - i, e2 - j);
+    }
+  }
+
+  /**
+   * Range of a {@code int[]} which is partitioned around a pseudo median
+   * when split, so that every element of the left part is less than or equal
+   * to every element of the right part.
+   */
+  static final class IntSortRangeConcept extends RangeConcept<IntSortRangeConcept.SortRange>
+  {
+    final int[] array;
+
+    IntSortRangeConcept(int[] array_)
+    {
+      array = array_;
+    }
+
+    private static boolean less(int a, int b)
+    {
+      return a < b;
+    }
+
+    private int median_of_three(int l, int m, int r)
+    {
+      int[] a = array;
+      return less(a[l], a[m]) ? (less(a[m], a[r]) ? m : (less(a[l], a[r]) ? r : l))
+                              : (less(a[r], a[m]) ? m : (less(a[r], a[l]) ? r : l));
+    }
+
+    private int pseudo_median_of_nine(SortRange range)
+    {
+      int offset = range.size / 8;
+      int begin = range.begin;
+      return median_of_three(median_of_three(begin, begin + offset, begin + offset * 2),
+                             median_of_three(begin + offset * 3, begin + offset * 4, begin + offset * 5),
+                             median_of_three(begin + offset * 6, begin + offset * 7, begin + range.size - 1));
+    }
+
+    SortRange newInstance(int begin, int size)
+    {
+      return new SortRange(begin, size);
+    }
+
+    @Override
+    public SortRange dup(SortRange range)
+    {
+      return new SortRange(range.begin, range.size);
+    }
+
+    @Override
+    public SortRange split(SortRange range)
+    {
+      int[] a = array;
+      int base = range.begin;
+      swap(base, pseudo_median_of_nine(range));
+      int key = a[base];
+
+      int i = 0;
+      int j = range.size;
+      // Partition interval [i+1,j-1] with key.
+      for (; ; )
+      {
+        // Loop must terminate since a[base]==key.
+        do
+        {
+          --j;
+        } while (less(key, a[base + j]));
+        do
+        {
+          if (i == j)
+          {
+            break;
+          }
+          ++i;
+        } while (less(a[base + i], key));
+        if (i == j)
+        {
+          break;
+        }
+        swap(base + i, base + j);
+      }
+
+      // Put the partition key were it belongs
+      swap(base + j, base);
+      int begin = base + j + 1;
+      int size = range.size - j - 1;
+      range.size = j;
+      return new SortRange(begin, size);
+    }
+
+    private void swap(int a, int b)
+    {
+      int tmp = array[a];
+      array[a] = array[b];
+      array[b] = tmp;
+    }
+
+    final class SortRange extends RangeConcept<SortRange>.Range
+    {
+      int begin;
+      int size;
+
+      SortRange(int begin_, int size_)
+      {
+        begin = begin_;
+        size = size_;
+      }
+
+      @Override
+      public int size()
+      {
+        return size;
+      }
+
+      @Override
+      public boolean isEmpty()
+      {
+        return size == 0;
+      }
+
+      @Override
+      public boolean isDivisible()
+      {
+        return size >= grainsize;
+      }
+
+      void sort()
+      {
+        Arrays.sort(array, begin, begin + size);
+      }
+    }
+  }
+
+  /**
+   * Range of a {@code long[]} which is partitioned around a pseudo median
+   * when split, so that every element of the left part is less than or equal
+   * to every element of the right part.
+   */
+  static final class LongSortRangeConcept extends RangeConcept<LongSortRangeConcept.SortRange>
+  {
+    final long[] array;
+
+    LongSortRangeConcept(long[] array_)
+    {
+      array = array_;
+    }
+
+    private static boolean less(long a, long b)
+    {
+      return a < b;
+    }
+
+    private int median_of_three(int l, int m, int r)
+    {
+      long[] a = array;
+      return less(a[l], a[m]) ? (less(a[m], a[r]) ? m : (less(a[l], a[r]) ? r : l))
+                              : (less(a[r], a[m]) ? m : (less(a[r], a[l]) ? r : l));
+    }
+
+    private int pseudo_median_of_nine(SortRange range)
+    {
+      int offset = range.size / 8;
+      int begin = range.begin;
+      return median_of_three(median_of_three(begin, begin + offset, begin + offset * 2),
+                             median_of_three(begin + offset * 3, begin + offset * 4, begin + offset * 5),
+                             median_of_three(begin + offset * 6, begin + offset * 7, begin + range.size - 1));
+    }
+
+    SortRange newInstance(int begin, int size)
+    {
+      return new SortRange(begin, size);
+    }
+
+    @Override
+    public SortRange dup(SortRange range)
+    {
+      return new SortRange(range.begin, range.size);
+    }
+
+    @Override
+    public SortRange split(SortRange range)
+    {
+      long[] a = array;
+      int base = range.begin;
+      swap(base, pseudo_median_of_nine(range));
+      long key = a[base];
+
+      int i = 0;
+      int j = range.size;
+      // Partition interval [i+1,j-1] with key.
+      for (; ; )
+      {
+        // Loop must terminate since a[base]==key.
+        do
+        {
+          --j;
+        } while (less(key, a[base + j]));
+        do
+        {
+          if (i == j)
+          {
+            break;
+          }
+          ++i;
+        } while (less(a[base + i], key));
+        if (i == j)
+        {
+          break;
+        }
+        swap(base + i, base + j);
+      }
+
+      // Put the partition key were it belongs
+      swap(base + j, base);
+      int begin = base + j + 1;
+      int size = range.size - j - 1;
+      range.size = j;
+      return new SortRange(begin, size);
+    }
+
+    private void swap(int a, int b)
+    {
+      long tmp = array[a];
+      array[a] = array[b];
+      array[b] = tmp;
+    }
+
+    final class SortRange extends RangeConcept<SortRange>.Range
+    {
+      int begin;
+      int size;
+
+      SortRange(int begin_, int size_)
+      {
+        begin = begin_;
+        size = size_;
+      }
+
+      @Override
+      public int size()
+      {
+        return size;
+      }
+
+      @Override
+      public boolean isEmpty()
+      {
+        return size == 0;
+      }
+
+      @Override
+      public boolean isDivisible()
+      {
+        return size >= grainsize;
+      }
+
+      void sort()
+      {
+        Arrays.sort(array, begin, begin + size);
+      }
+    }
+  }
+
+  /**
+   * Range of a {@code double[]} which is partitioned around a pseudo median
+   * when split, so that every element of the left part is less than or equal
+   * to every element of the right part.
+   */
+  static final class DoubleSortRangeConcept extends RangeConcept<DoubleSortRangeConcept.SortRange>
+  {
+    final double[] array;
+
+    DoubleSortRangeConcept(double[] array_)
+    {
+      array = array_;
+    }
+
+    private static boolean less(double a, double b)
+    {
+      return Double.compare(a, b) < 0;
+    }
+
+    private int median_of_three(int l, int m, int r)
+    {
+      double[] a = array;
+      return less(a[l], a[m]) ? (less(a[m], a[r]) ? m : (less(a[l], a[r]) ? r : l))
+                              : (less(a[r], a[m]) ? m : (less(a[r], a[l]) ? r : l));
+    }
+
+    private int pseudo_median_of_nine(SortRange range)
+    {
+      int offset = range.size / 8;
+      int begin = range.begin;
+      return median_of_three(median_of_three(begin, begin + offset, begin + offset * 2),
+                             median_of_three(begin + offset * 3, begin + offset * 4, begin + offset * 5),
+                             median_of_three(begin + offset * 6, begin + offset * 7, begin + range.size - 1));
+    }
+
+    SortRange newInstance(int begin, int size)
+    {
+      return new SortRange(begin, size);
+    }
+
+    @Override
+    public SortRange dup(SortRange range)
+    {
+      return new SortRange(range.begin, range.size);
+    }
+
+    @Override
+    public SortRange split(SortRange range)
+    {
+      double[] a = array;
+      int base = range.begin;
+      swap(base, pseudo_median_of_nine(range));
+      double key = a[base];
+
+      int i = 0;
+      int j = range.size;
+      // Partition interval [i+1,j-1] with key.
+      for (; ; )
+      {
+        // Loop must terminate since a[base]==key.
+        do
+        {
+          --j;
+        } while (less(key, a[base + j]));
+        do
+        {
+          if (i == j)
+          {
+            break;
+          }
+          ++i;
+        } while (less(a[base + i], key));
+        if (i == j)
+        {
+          break;
+        }
+        swap(base + i, base + j);
+      }
+
+      // Put the partition key were it belongs
+      swap(base + j, base);
+      int begin = base + j + 1;
+      int size = range.size - j - 1;
+      range.size = j;
+      return new SortRange(begin, size);
+    }
+
+    private void swap(int a, int b)
+    {
+      double tmp = array[a];
+      array[a] = array[b];
+      array[b] = tmp;
+    }
+
+    final class SortRange extends RangeConcept<SortRange>.Range
+    {
+      int begin;
+      int size;
+
+      SortRange(int begin_, int size_)
+      {
+        begin = begin_;
+        size = size_;
+      }
+
+      @Override
+      public int size()
+      {
+        return size;
+      }
+
+      @Override
+      public boolean isEmpty()
+      {
+        return size == 0;
+      }
+
+      @Override
+      public boolean isDivisible()
+      {
+        return size >= grainsize;
+      }
+
+      void sort()
+      {
+        Arrays.sort(array, begin, begin + size);
+      }
+    }
+  }
+}
@@ -11,23 +11,18 @@
  */
 package org.xiphis.concurrent;
 
-import org.xiphis.utils.common.Factory;
-
-import java.util.ArrayList;
-import java.util.List;
+import java.util.function.Consumer;
 
 public class ParallelWhile<T>
 {
-  private final Factory<WhileGroupTask<T>> _whileGroupTaskFactory;
   private Body<T> _body;
-  private EmptyTask _barrier;
+  private volatile Task _barrier;
 
   /**
    *
    */
   public ParallelWhile()
   {
-    _whileGroupTaskFactory = arguments -> new WhileGroupTask<>(_body);
   }
 
   @SuppressWarnings("unchecked")
@@ -42,16 +37,45 @@ public class ParallelWhile<T>
    */
   public void run(final Stream<T> stream, Body<T> body)
   {
-    EmptyTask barrier = Task.allocateRoot(EmptyTask.FACTORY);
     _body = body;
-    _barrier = barrier;
-    _barrier.setRefCount(2);
-    WhileTask<T> w = _barrier.allocateChild(arguments -> new WhileTask<>(stream, _whileGroupTaskFactory, _barrier));
-    _barrier.spawnAndWaitForAll(w);
-    _barrier.destroy(_barrier);
-    _barrier = null;
-    _body = null;
+    try
+    {
+      Task.spawnRootAndWait(Task.allocateRoot(() -> new BarrierTask(stream)));
+    }
+    finally
+    {
+      _body = null;
+    }
+  }
+
+  /**
+   * Parent of the iterations, which are added to it while it waits.
+   */
+  private class BarrierTask extends Task
+  {
+    private final Stream<T> my_stream;
 
+    public BarrierTask(Stream<T> stream)
+    {
+      my_stream = stream;
+    }
+
+    @Override
+    public Task execute()
+    {
+      _barrier = this;
+      try
+      {
+        WhileTask<T> w = allocateChild(() -> new WhileTask<>(my_stream, _body, this));
+        setRefCount(2);
+        spawnAndWaitForAll(w);
+      }
+      finally
+      {
+        _barrier = null;
+      }
+      return null;
+    }
   }
 
   /**
@@ -61,7 +85,7 @@ public class ParallelWhile<T>
   {
     assert _barrier != null : "attempt to add to parallel_while that is not running";
     Task t = Task.currentTask();
-    IterationTask<T> i = t.allocateAdditionalChildOf(_barrier, arguments -> new IterationTask<>(item, _body));
+    IterationTask<T> i = t.allocateAdditionalChildOf(_barrier, () -> new IterationTask<>(item, _body));
     t.spawn(i);
   }
 
@@ -84,10 +108,14 @@ public class ParallelWhile<T>
   public interface Stream<T>
   {
     /**
-     * @param item holder for item
+     * Passes the next item to the action, if there is one. An array holder
+     * cannot be used here, as the array created for a generic type would not
+     * be an array of the type of item.
+     *
+     * @param action receives the item
      * @return true if item available
      */
-    boolean popIfPresent(T[] item);
+    boolean popIfPresent(Consumer<? super T> action);
   }
 
   private static class IterationTask<T> extends Task
@@ -111,81 +139,79 @@ public class ParallelWhile<T>
 
   private static class WhileGroupTask<T> extends Task
   {
-    public static final int max_arg_size = 4;
+    /**
+     * Largest number of items in a group. The first group is a single item,
+     * and each following group is twice as large.
+     */
+    public static final int max_arg_size = 128;
     public final T[] my_arg;
     private final Body<T> my_body;
     public int size;
-    private int idx;
 
-    public WhileGroupTask(Body<T> body)
+    public WhileGroupTask(Body<T> body, int capacity)
     {
       my_body = body;
-      my_arg = newArray(max_arg_size);
+      my_arg = newArray(capacity);
     }
 
     @Override
     public Task execute()
     {
       assert size > 0;
-      List<Task> list = new ArrayList<>(size);
-      Task t;
-      idx = 0;
-      for (Factory<IterationTask<T>> iterationTaskFactory = arguments -> new IterationTask<>(my_arg[idx], my_body); ; )
+      for (int i = 0; i < size; i++)
       {
-        t = allocateChild(iterationTaskFactory);
-        if (++idx == size)
-        {
-          break;
-        }
-        list.add(t);
+        my_body.apply(my_arg[i]);
+        my_arg[i] = null;
       }
-      setRefCount(idx + 1);
-      spawn(list);
-      spawnAndWaitForAll(t);
       return null;
     }
   }
 
-  private static class WhileTask<T> extends Task
+  private static class WhileTask<T> extends Task implements Consumer<T>
   {
     private final Stream<T> my_stream;
-    private final EmptyTask my_barrier;
-    private final Factory<WhileGroupTask<T>> whileGroupTaskFactory;
-    private final T[] my_arg;
+    private final Task my_barrier;
+    private final Body<T> my_body;
+    private WhileGroupTask<T> my_group;
+    private int my_group_size = 1;
 
-    public WhileTask(Stream<T> stream, Factory<WhileGroupTask<T>> factory, EmptyTask barrier)
+    public WhileTask(Stream<T> stream, Body<T> body, Task barrier)
     {
       my_stream = stream;
-      whileGroupTaskFactory = factory;
+      my_body = body;
       my_barrier = barrier;
-      my_arg = newArray(1);
+    }
+
+    @Override
+    public void accept(T item)
+    {
+      // The group is only allocated once there is an item for it, as an
+      // additional child cannot be destroyed without releasing the barrier.
+      if (my_group == null)
+      {
+        int n = my_group_size;
+        my_group = allocateAdditionalChildOf(my_barrier, () -> new WhileGroupTask<>(my_body, n));
+      }
+      my_group.my_arg[my_group.size++] = item;
     }
 
     @Override
     public Task execute()
     {
-      WhileGroupTask<T> t = allocateAdditionalChildOf(my_barrier, whileGroupTaskFactory);
-      int k = 0;
-      while (my_stream.popIfPresent(my_arg))
+      int n = my_group_size;
+      while (my_stream.popIfPresent(this))
       {
-        t.my_arg[k] = my_arg[0];
-        if (++k == WhileGroupTask.max_arg_size)
+        if (my_group.size == n)
         {
+          my_group_size = Math.min(n << 1, WhileGroupTask.max_arg_size);
           // There might be more iterations.
           recycleToReexecute();
           break;
         }
       }
-      if (k == 0)
-      {
-        destroy(t);
-        return null;
-      }
-      else
-      {
-        t.size = k;
-        return t;
-      }
+      WhileGroupTask<T> t = my_group;
+      my_group = null;
+      return t;
     }
   }
 }
@@ -43,6 +43,18 @@ public abstract class PartitionerConcept<R extends RangeConcept<R>.Range, P exte
       return false;
     }
 
+    /**
+     * Splits the range when the task is split. The default splits the range
+     * in half.
+     *
+     * @param range range to split, which keeps the left part
+     * @return right part
+     */
+    public R splitRange(R range)
+    {
+      return range.concept().split(range);
+    }
+
     public Task continueAfterExecuteRange(Task t)
     {
       return null;
@@ -11,10 +11,16 @@
  */
 package org.xiphis.concurrent;
 
-import org.xiphis.utils.common.Factory;
+import io.netty.util.concurrent.Future;
 import org.xiphis.utils.common.Utils;
+import org.xiphis.utils.var.VarFuncNumber;
+import org.xiphis.utils.var.VarGroup;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
 
 public class Pipeline<T>
 {
@@ -33,7 +39,7 @@ public class Pipeline<T>
    * Global counter of tokens
    */
   final AtomicInteger _tokenCounter;
-  private final Factory<PipelineTask> _pipelineTaskFactory = arguments -> new PipelineTask();
+  private final Supplier<PipelineTask> _pipelineTaskFactory = PipelineTask::new;
   /**
    * Pointer to first filter in the pipeline.
    */
@@ -55,6 +61,63 @@ public class Pipeline<T>
    * True if the pipeline contains a thread-bound filter; false otherwise.
    */
   boolean _hasThreadBoundFilters;
+  /**
+   * True if the pipeline contains an {@link AsyncFilter}; false otherwise.
+   */
+  boolean _hasAsyncFilters;
+  /**
+   * Number of items carried by each token, 1 if batching is disabled.
+   * <p/>
+   * Adjusted while the pipeline runs when adaptive batching is enabled.
+   */
+  volatile int _batchSize = 1;
+  /**
+   * Upper bound of the batch size for adaptive batching.
+   */
+  int _maxBatchSize = 1;
+  /**
+   * Target filter time for each batch, 0 if the batch size is fixed.
+   */
+  long _batchTargetNanos;
+  /**
+   * True if tokens carry batches of items in the current run.
+   */
+  boolean _batched;
+  /**
+   * True if the live-token budget is adjusted while the pipeline runs.
+   */
+  boolean _adaptiveTokens;
+  /**
+   * True if the time spent in filters is measured in the current run.
+   */
+  boolean _timed;
+  /**
+   * True if per-filter instrumentation is enabled.
+   */
+  boolean _instrumented;
+  /**
+   * Bounds of the live-token budget.
+   */
+  int _minTokens, _maxTokens;
+  /**
+   * Live-token budget chosen by the adaptive control.
+   */
+  volatile int _tokenTarget;
+  /**
+   * Number of tokens in circulation, whether idle or carrying items.
+   */
+  final AtomicInteger _tokensIssued = new AtomicInteger();
+  /**
+   * Number of tokens which have reached the end of the pipe in this run.
+   */
+  final AtomicInteger _tokensCompleted = new AtomicInteger();
+
+  /**
+   * Number of completed tokens between adjustments of the live-token budget.
+   * <p/>
+   * Must be a power of 2
+   */
+  static final int _tokenSamplePeriod = 64;
 
   // ! Construct empty pipeline.
   public Pipeline()
@@ -87,6 +150,10 @@ public class Pipeline<T>
     }
     filter.next_filter_in_pipeline = null;
     _filterEnd = filter;
+    if (filter instanceof AsyncFilter)
+    {
+      _hasAsyncFilters = true;
+    }
 
     if (filter.isSerial())
     {
@@ -103,7 +170,64 @@ public class Pipeline<T>
         filter.input_buffer = new OrderedBuffer<>(false, false);
       }
     }
+    if (_instrumented)
+    {
+      instrument(filter);
+    }
+
+  }
 
+  /**
+   * Carry a fixed number of items with each token.
+   * <p>The input filter is invoked up to {@code batch_size} times for each
+   * token and subsequent filters receive the items through
+   * {@link Filter#operatorBatch(List)}. A batch size of 1 disables
+   * batching. Batching is not used for pipelines which contain an
+   * {@link AsyncFilter}.</p>
+   *
+   * @param batch_size items per token
+   */
+  public final void setBatchSize(int batch_size)
+  {
+    if (batch_size < 1)
+      throw new IllegalArgumentException("batch size must be positive");
+    assert _endCounter == null : "invocation of setBatchSize on running pipeline";
+    _batchSize = batch_size;
+    _maxBatchSize = batch_size;
+    _batchTargetNanos = 0;
+  }
+
+  /**
+   * Carry batches of items with each token, and adjust the batch size while
+   * running so that the filters spend about {@code target_nanos} on each
+   * batch.
+   * <p>Batches start with the current batch size, are doubled while they
+   * take less than the target and are halved when they take more than twice
+   * the target.</p>
+   *
+   * @param target_nanos target filter time per batch
+   * @param max_batch_size upper bound of the batch size
+   */
+  public final void setAdaptiveBatchSize(long target_nanos, int max_batch_size)
+  {
+    if (target_nanos <= 0)
+      throw new IllegalArgumentException("target must be positive");
+    if (max_batch_size < 1)
+      throw new IllegalArgumentException("batch size must be positive");
+    assert _endCounter == null : "invocation of setAdaptiveBatchSize on running pipeline";
+    _batchTargetNanos = target_nanos;
+    _maxBatchSize = max_batch_size;
+    _batchSize = Math.min(_batchSize, max_batch_size);
+  }
+
+  /**
+   * Current number of items carried by each token.
+   *
+   * @return batch size
+   */
+  public final int getBatchSize()
+  {
+    return _batchSize;
   }
 
   /**
@@ -119,6 +243,11 @@ public class Pipeline<T>
 
   /**
    * Run the pipeline to completion with user-supplied context.
+   * <p>The input buffers of serial filters are sized for
+   * {@code max_number_of_live_tokens} before the pipeline starts, and are
+   * not grown while it runs. This relies on never issuing more tokens than
+   * that: a token beyond the reserved capacity is a bug, and the buffer
+   * throws {@link IllegalStateException} instead of overwriting a slot.</p>
    *
    * @param max_number_of_live_tokens max live tokens
    * @param context Thread execution context
@@ -126,6 +255,54 @@ public class Pipeline<T>
   public final void run(int max_number_of_live_tokens, TaskGroupContext context)
   {
     assert max_number_of_live_tokens > 0 : "pipeline::run must have at least one token";
+    run(false, max_number_of_live_tokens, max_number_of_live_tokens, max_number_of_live_tokens, context);
+  }
+
+  /**
+   * Run the pipeline to completion, adjusting the number of live tokens
+   * between the given bounds.
+   *
+   * @param min_number_of_live_tokens min live tokens
+   * @param max_number_of_live_tokens max live tokens
+   * @see #runAdaptive(int, int, TaskGroupContext)
+   */
+  public final void runAdaptive(int min_number_of_live_tokens, int max_number_of_live_tokens)
+  {
+    TaskGroupContext context = new TaskGroupContext();
+    runAdaptive(min_number_of_live_tokens, max_number_of_live_tokens, context);
+  }
+
+  /**
+   * Run the pipeline to completion with user-supplied context, adjusting the
+   * number of live tokens between the given bounds.
+   * <p>The time each filter spends on a token is measured while running.
+   * From those, the budget is set to twice the number of tokens needed to
+   * keep the slowest serial filter, or all processors, busy. While at least
+   * half of the tokens are waiting in the input buffer of a serial filter,
+   * the budget is reduced instead, since more tokens would only pile up
+   * there. The current budget and buffer depths are reported by
+   * {@link #getTokenLimit()} and {@link #getQueueDepths()}.</p>
+   * <p>The budget never exceeds {@code max_number_of_live_tokens}, which is
+   * the capacity reserved in the input buffers of serial filters, as
+   * described for {@link #run(int, TaskGroupContext)}.</p>
+   *
+   * @param min_number_of_live_tokens min live tokens
+   * @param max_number_of_live_tokens max live tokens
+   * @param context Thread execution context
+   */
+  public final void runAdaptive(int min_number_of_live_tokens, int max_number_of_live_tokens,
+                                TaskGroupContext context)
+  {
+    if (min_number_of_live_tokens < 1 || max_number_of_live_tokens < min_number_of_live_tokens)
+      throw new IllegalArgumentException("invalid live token bounds");
+    int initial = Math.min(Math.max(Runtime.getRuntime().availableProcessors(), min_number_of_live_tokens),
+                           max_number_of_live_tokens);
+    run(true, initial, min_number_of_live_tokens, max_number_of_live_tokens, context);
+  }
+
+  private void run(boolean adaptive, int number_of_live_tokens, int min_number_of_live_tokens,
+                   int max_number_of_live_tokens, TaskGroupContext context)
+  {
     assert _endCounter == null : "pipeline already running?";
     if (_filterList != null)
     {
@@ -134,8 +311,17 @@ public class Pipeline<T>
         try
         {
           _endOfInput = false;
-          _endCounter = Task.allocateRoot(context, arguments -> new RootTask());
-          _inputTokens.set(max_number_of_live_tokens);
+          _batched = _maxBatchSize > 1 && !_hasAsyncFilters;
+          _adaptiveTokens = adaptive;
+          _timed = adaptive || _batchTargetNanos > 0;
+          _minTokens = min_number_of_live_tokens;
+          _maxTokens = max_number_of_live_tokens;
+          _tokenTarget = number_of_live_tokens;
+          _tokensIssued.set(number_of_live_tokens);
+          _tokensCompleted.set(0);
+          _endCounter = Task.allocateRoot(context, () -> new RootTask());
+          _inputTokens.set(number_of_live_tokens);
+          reserveTokens(max_number_of_live_tokens);
           // Start execution of tasks
           Task.spawnRootAndWait(_endCounter);
         }
@@ -160,6 +346,193 @@ public class Pipeline<T>
     }
   }
 
+  /**
+   * Enable or disable per-filter instrumentation.
+   * <p>While enabled, each filter records the number of items processed and
+   * the time spent in its operator, and each input buffer records how long
+   * tokens wait in it. The cost is two calls to {@link System#nanoTime()}
+   * and a few uncontended adds for each filter invoked on a token, and two
+   * more for a token which waits in a buffer. Buffer depths are tracked
+   * regardless. Enabling resets the counters.</p>
+   *
+   * @param instrumented {@code true} to enable
+   * @see #statistics()
+   */
+  public final void setInstrumented(boolean instrumented)
+  {
+    _instrumented = instrumented;
+    for (Filter<T> f = _filterList; f != null; f = f.next_filter_in_pipeline)
+    {
+      instrument(f);
+    }
+  }
+
+  private void instrument(Filter<T> filter)
+  {
+    FilterStatistics.Counters counters = _instrumented ? new FilterStatistics.Counters() : null;
+    filter._counters = counters;
+    if (filter.input_buffer != null)
+    {
+      filter.input_buffer._counters = counters;
+    }
+  }
+
+  /**
+   * Snapshot of the instrumentation of each filter, in pipeline order.
+   * <p>Counters are zero for filters which are not instrumented.</p>
+   *
+   * @return snapshots
+   * @see #setInstrumented(boolean)
+   */
+  public final List<FilterStatistics> statistics()
+  {
+    List<FilterStatistics> result = new ArrayList<>();
+    for (Filter<T> f = _filterList; f != null; f = f.next_filter_in_pipeline)
+    {
+      result.add(statistics(f, result.size()));
+    }
+    return result;
+  }
+
+  private static FilterStatistics statistics(Filter<?> f, int index)
+  {
+    FilterStatistics.Counters c = f._counters;
+    OrderedBuffer<?> b = f.input_buffer;
+    int depth = b != null ? b.depth() : 0;
+    int highWater = b != null ? b.highWaterDepth() : 0;
+    if (c == null)
+    {
+      long[] empty = new long[Histogram.BUCKETS];
+      return new FilterStatistics(index, 0, 0, empty, 0, empty, depth, highWater);
+    }
+    return new FilterStatistics(index, c.items.sum(), c.operator.total(), c.operator.counts(), c.wait.total(),
+                                c.wait.counts(), depth, highWater);
+  }
+
+  /**
+   * Registers the instrumentation of the filters as {@link VarFuncNumber}
+   * vars named {@code stage<i>.<counter>}, where {@code i} is the position of
+   * the filter in the pipeline.
+   *
+   * @param base group under which the vars are registered
+   */
+  public final void register(VarGroup base)
+  {
+    int index = 0;
+    for (Filter<T> f = _filterList; f != null; f = f.next_filter_in_pipeline, index++)
+    {
+      String prefix = "stage" + index + ".";
+      register(base, prefix + "items", f, index, FilterStatistics::itemCount);
+      register(base, prefix + "operatorNanos", f, index, FilterStatistics::operatorNanos);
+      register(base, prefix + "operatorP50Nanos", f, index, s -> s.operatorQuantile(0.5));
+      register(base, prefix + "operatorP99Nanos", f, index, s -> s.operatorQuantile(0.99));
+      register(base, prefix + "waits", f, index, FilterStatistics::waitCount);
+      register(base, prefix + "waitNanos", f, index, FilterStatistics::waitNanos);
+      register(base, prefix + "depth", f, index, FilterStatistics::depth);
+      register(base, prefix + "highWaterDepth", f, index, FilterStatistics::highWaterDepth);
+    }
+  }
+
+  private static void register(VarGroup base, String path, Filter<?> filter, int index,
+                               ToLongFunction<FilterStatistics> counter)
+  {
+    VarFuncNumber.builder(base, path, () -> counter.applyAsLong(statistics(filter, index))).build();
+  }
+
+  /**
+   * Number of live tokens in circulation in the current or last run.
+   * <p>For {@link #runAdaptive(int, int, TaskGroupContext)} this is the
+   * budget chosen by the adaptive control.</p>
+   *
+   * @return live tokens
+   */
+  public final int getTokenLimit()
+  {
+    return _tokensIssued.get();
+  }
+
+  /**
+   * Number of tokens waiting in the input buffer of each filter, in pipeline
+   * order. Filters without an input buffer report 0.
+   *
+   * @return queue depths
+   */
+  public final int[] getQueueDepths()
+  {
+    int n = 0;
+    for (Filter<T> f = _filterList; f != null; f = f.next_filter_in_pipeline)
+    {
+      n++;
+    }
+    int[] depths = new int[n];
+    n = 0;
+    for (Filter<T> f = _filterList; f != null; f = f.next_filter_in_pipeline)
+    {
+      OrderedBuffer<T> b = f.input_buffer;
+      depths[n++] = b != null ? b.depth() : 0;
+    }
+    return depths;
+  }
+
+  /**
+   * Recompute the live-token budget from the filter service times and the
+   * depth of the input buffers.
+   */
+  private void retargetTokens()
+  {
+    long total = 0;
+    long serial = 0;
+    int depth = 0;
+    for (Filter<T> f = _filterList; f != null; f = f.next_filter_in_pipeline)
+    {
+      long nanos = f._serviceNanos;
+      total += nanos;
+      if (f.isSerial() && nanos > serial)
+      {
+        serial = nanos;
+      }
+      OrderedBuffer<T> b = f.input_buffer;
+      if (b != null)
+      {
+        depth = Math.max(depth, b.depth());
+      }
+    }
+    int issued = _tokensIssued.get();
+    int target;
+    if (2 * depth >= issued)
+    {
+      // Tokens are piling up behind a serial filter.
+      target = issued - 1;
+    }
+    else
+    {
+      double concurrency = Runtime.getRuntime().availableProcessors();
+      if (serial > 0)
+      {
+        concurrency = Math.min(concurrency, (double) total / serial);
+      }
+      target = (int) Math.ceil(2 * concurrency);
+    }
+    _tokenTarget = Math.max(_minTokens, Math.min(target, _maxTokens));
+  }
+
+  /**
+   * Size the input buffers of the filters for the number of live tokens.
+   *
+   * @param max_number_of_live_tokens max live tokens
+   */
+  private void reserveTokens(int max_number_of_live_tokens)
+  {
+    for (Filter<T> f = _filterList; f != null; f = f.next_filter_in_pipeline)
+    {
+      OrderedBuffer<T> b = f.input_buffer;
+      if (b != null)
+      {
+        b.reserve(max_number_of_live_tokens);
+      }
+    }
+  }
+
   /**
    * Remove all filters from the pipeline.
    */
@@ -236,12 +609,16 @@ public class Pipeline<T>
 
   private final class PipelineTask extends Task implements StageTask<T>
   {
-    private final Info _taskInfo;
+    private final OrderedBuffer.TaskInfo<T> _taskInfo;
     /**
      * True if this task has not yet read the input.
      */
     boolean _atStart;
     private Filter<T> _filter;
+    /**
+     * Pending operation of an async filter, while being parked or resumed.
+     */
+    private Future<T> _resume;
 
     /**
      * Construct stage_task for first stage in a pipeline.
@@ -250,7 +627,7 @@ public class Pipeline<T>
      */
     public PipelineTask()
     {
-      _taskInfo = new Info();
+      _taskInfo = new OrderedBuffer.TaskInfo<>();
       _filter = _filterList;
       _atStart = true;
     }
@@ -263,51 +640,301 @@ public class Pipeline<T>
      */
     public PipelineTask(Filter<T> filter_, OrderedBuffer.TaskInfo<T> info)
     {
-      _taskInfo = new Info(info);
+      _taskInfo = info;
       _filter = filter_;
       _atStart = false;
     }
 
+    /**
+     * Construct stage_task to resume a token parked on an async filter.
+     *
+     * @param filter_
+     * @param info
+     * @param at_start
+     * @param future
+     */
+    PipelineTask(Filter<T> filter_, OrderedBuffer.TaskInfo<T> info, boolean at_start, Future<T> future)
+    {
+      _taskInfo = info;
+      _filter = filter_;
+      _atStart = at_start;
+      _resume = future;
+    }
+
+    /**
+     * Read the next item, or batch of items, from the input filter.
+     *
+     * @return {@code false} at end of input
+     */
+    private boolean readInput()
+    {
+      if (!_batched)
+      {
+        long start = _timed || _filter._counters != null ? System.nanoTime() : 0L;
+        if (_filter instanceof AsyncFilter)
+        {
+          startAsync(((AsyncFilter<T>) _filter).operatorAsync(_taskInfo._object));
+        }
+        else
+        {
+          _taskInfo._object = _filter.operator(_taskInfo._object);
+        }
+        if (start != 0L)
+        {
+          served(System.nanoTime() - start, _taskInfo._object != null || _resume != null ? 1 : 0);
+        }
+        return _taskInfo._object != null;
+      }
+      if (_endOfInput)
+      {
+        return false;
+      }
+      long start = _timed || _filter._counters != null ? System.nanoTime() : 0L;
+      int batch_size = _batchSize;
+      Batch<T> batch = new Batch<>(batch_size);
+      do
+      {
+        T item = _filter.operator(null);
+        if (item == null)
+        {
+          // Deliver the partial batch; the next input task sees the end.
+          _endOfInput = true;
+          break;
+        }
+        batch.add(item);
+      } while (batch.size() < batch_size);
+      if (batch.isEmpty())
+      {
+        return false;
+      }
+      if (start != 0L)
+      {
+        batch._nanos = System.nanoTime() - start;
+        served(batch._nanos, batch.size());
+      }
+      _taskInfo._batch = batch;
+      return true;
+    }
+
+    /**
+     * Account for the time the current filter spent on the token.
+     *
+     * @param nanos time spent
+     * @param items number of items carried by the token
+     */
+    private void served(long nanos, int items)
+    {
+      _filter.noteServiceTime(nanos);
+      FilterStatistics.Counters counters = _filter._counters;
+      if (counters != null)
+      {
+        counters.recordOperator(nanos, items);
+      }
+    }
+
+    /**
+     * Pass the item, or batch of items, through the current filter.
+     */
+    private void applyFilter()
+    {
+      List<T> batch = _taskInfo._batch;
+      long start = _timed || _filter._counters != null ? System.nanoTime() : 0L;
+      if (batch != null)
+      {
+        _filter.operatorBatch(batch);
+      }
+      else if (_filter instanceof AsyncFilter)
+      {
+        startAsync(((AsyncFilter<T>) _filter).operatorAsync(_taskInfo._object));
+      }
+      else
+      {
+        _taskInfo._object = _filter.operator(_taskInfo._object);
+      }
+      if (start != 0L)
+      {
+        long nanos = System.nanoTime() - start;
+        served(nanos, batch != null ? batch.size() : 1);
+        if (batch != null)
+        {
+          ((Batch<T>) batch)._nanos += nanos;
+        }
+      }
+    }
+
+    /**
+     * Grow or shrink the batch size towards the target time, given the time
+     * spent by the filters on the completed batch.
+     */
+    private void adaptBatchSize()
+    {
+      Batch<T> batch = (Batch<T>) _taskInfo._batch;
+      int batch_size = _batchSize;
+      if (batch._nanos < _batchTargetNanos)
+      {
+        if (batch.size() >= batch_size && batch_size < _maxBatchSize)
+        {
+          _batchSize = Math.min(batch_size * 2, _maxBatchSize);
+        }
+      }
+      else if (batch._nanos > 2 * _batchTargetNanos && batch_size > 1)
+      {
+        _batchSize = batch_size / 2;
+      }
+    }
+
+    /**
+     * Move the number of tokens in circulation a step towards the budget.
+     *
+     * @return number of tokens to return to the input stage; 0 retires the
+     * token which reached the end of the pipe, 2 issues an extra one.
+     */
+    private int adaptTokens()
+    {
+      if ((_tokensCompleted.incrementAndGet() & _tokenSamplePeriod - 1) == 0)
+      {
+        retargetTokens();
+      }
+      int target = _tokenTarget;
+      int issued = _tokensIssued.get();
+      if (issued > target && _tokensIssued.compareAndSet(issued, issued - 1))
+      {
+        return 0;
+      }
+      if (issued < target && _tokensIssued.compareAndSet(issued, issued + 1))
+      {
+        return 2;
+      }
+      return 1;
+    }
+
+    /**
+     * Complete reading from the input filter.
+     *
+     * @param more {@code false} if the input filter reached the end of input.
+     * @return {@code false} if the token is finished.
+     */
+    private boolean inputRead(boolean more)
+    {
+      if (_filter.isSerial())
+      {
+        if (more)
+        {
+          if (_filter.isOrdered())
+          {
+            _taskInfo._token = _tokenCounter.getAndIncrement(); // ideally,
+            // with
+            // relaxed
+            // semantics
+            _taskInfo._tokenReady = true;
+          }
+          else if (_hasThreadBoundFilters)
+          {
+            _tokenCounter.getAndIncrement();
+          } // ideally, with relaxed semantics
+          // ITT_NOTIFY( sync_releasing, &my_pipeline._inputTokens );
+          if (_inputTokens.decrementAndGet() > 0)
+          {
+            spawn(allocateAdditionalChildOf(parent(), _pipelineTaskFactory));
+          }
+        }
+        else
+        {
+          _endOfInput = true;
+          return false;
+        }
+      }
+      else if (!more)
+      {
+        _endOfInput = true;
+        if (_hasThreadBoundFilters)
+        {
+          _tokenCounter.getAndDecrement();
+        }
+        return false;
+      }
+      _atStart = false;
+      return true;
+    }
+
+    /**
+     * Start the operation of an async filter.
+     * <p>If the future is already complete, its result becomes the current
+     * item. Otherwise {@link #_resume} is set and {@link #parked()} must be
+     * returned from {@link #execute()}.</p>
+     *
+     * @param future future of the output item
+     */
+    private void startAsync(Future<T> future)
+    {
+      if (future.isDone())
+      {
+        if (!future.isSuccess())
+        {
+          throw new TaskException(context(), future.cause());
+        }
+        _taskInfo._object = future.getNow();
+      }
+      else
+      {
+        _resume = future;
+      }
+    }
+
+    /**
+     * Park the token until the pending future completes.
+     * <p>A task to resume the token is allocated as an additional child of
+     * the root, which keeps the pipeline running, and enqueued by the thread
+     * which completes the future.</p>
+     *
+     * @return {@code null}
+     */
+    private Task parked()
+    {
+      final Future<T> future = _resume;
+      final Filter<T> filter = _filter;
+      final boolean at_start = _atStart;
+      _resume = null;
+      _filter = null;
+      PipelineTask resume = allocateAdditionalChildOf(parent(),
+                                                      () -> new PipelineTask(filter, _taskInfo, at_start, future));
+      future.addListener(f -> Task.enqueue(resume));
+      return null;
+    }
+
     /**
      * The virtual task execution method
      */
     @Override
     public Task execute()
     {
-      assert !_atStart || _taskInfo._object == null;
+      assert !_atStart || _taskInfo._object == null || _resume != null;
       assert !_filter.isBound();
-      if (_atStart)
+      if (_resume != null)
       {
-        if (_filter.isSerial())
+        // The operation of an async filter has completed.
+        Future<T> future = _resume;
+        _resume = null;
+        if (!future.isSuccess())
         {
-          _taskInfo._object = _filter.operator(_taskInfo._object);
-          if (_taskInfo._object != null)
-          {
-            if (_filter.isOrdered())
-            {
-              _taskInfo._token = _tokenCounter.getAndIncrement(); // ideally,
-              // with
-              // relaxed
-              // semantics
-              _taskInfo._tokenReady = true;
-            }
-            else if (_hasThreadBoundFilters)
-            {
-              _tokenCounter.getAndIncrement();
-            } // ideally, with relaxed semantics
-            // ITT_NOTIFY( sync_releasing, &my_pipeline._inputTokens );
-            if (_inputTokens.decrementAndGet() > 0)
-            {
-              spawn(allocateAdditionalChildOf(parent(), _pipelineTaskFactory));
-            }
-          }
-          else
+          throw new TaskException(context(), future.cause());
+        }
+        _taskInfo._object = future.getNow();
+        if (_atStart)
+        {
+          if (!inputRead(_taskInfo._object != null))
           {
-            _endOfInput = true;
             return null;
           }
         }
-        else /* not is_serial */
+        else if (_filter.isSerial())
+        {
+          _filter.input_buffer.noteDone(_taskInfo._token, this);
+        }
+      }
+      else if (_atStart)
+      {
+        if (!_filter.isSerial())
         {
           if (_endOfInput)
           {
@@ -322,22 +949,24 @@ public class Pipeline<T>
           {
             spawn(allocateAdditionalChildOf(parent(), _pipelineTaskFactory));
           }
-          _taskInfo._object = _filter.operator(_taskInfo._object);
-          if (_taskInfo._object == null)
-          {
-            _endOfInput = true;
-            if (_hasThreadBoundFilters)
-            {
-              _tokenCounter.getAndDecrement();
-            }
-            return null;
-          }
         }
-        _atStart = false;
+        boolean more = readInput();
+        if (_resume != null)
+        {
+          return parked();
+        }
+        if (!inputRead(more))
+        {
+          return null;
+        }
       }
       else
       {
-        _taskInfo._object = _filter.operator(_taskInfo._object);
+        applyFilter();
+        if (_resume != null)
+        {
+          return parked();
+        }
         if (_filter.isSerial())
         {
           _filter.input_buffer.noteDone(_taskInfo._token, this);
@@ -391,7 +1020,12 @@ public class Pipeline<T>
         // to prevent the
         // parent's reference count from prematurely reaching 0.
         setDepth(parent().depth() + 1);
-        if (_inputTokens.incrementAndGet() == 1)
+        if (_taskInfo._batch != null && _batchTargetNanos > 0)
+        {
+          adaptBatchSize();
+        }
+        int returned = _adaptiveTokens ? adaptTokens() : 1;
+        if (returned > 0 && _inputTokens.getAndAdd(returned) == 0)
         {
           // ITT_NOTIFY( sync_acquired, &my_pipeline._inputTokens );
           if (!_endOfInput && !_filterList.isBound())
@@ -435,14 +1069,12 @@ public class Pipeline<T>
     }
 
     /**
-     * Puts current task information
+     * Current task information, handed over to the input buffer of the next
+     * stage when the task is deferred.
      */
-    public void putTaskInfo(OrderedBuffer.TaskInfo<T> where_to_put)
+    public OrderedBuffer.TaskInfo<T> taskInfo()
     {
-      where_to_put._object = _taskInfo._object;
-      where_to_put._token = _taskInfo._token;
-      where_to_put._tokenReady = _taskInfo._tokenReady;
-      where_to_put._valid = true;
+      return _taskInfo;
     }
 
     /**
@@ -450,26 +1082,26 @@ public class Pipeline<T>
      */
     public void spawnStageTask(final OrderedBuffer.TaskInfo<T> info)
     {
-      PipelineTask clone = allocateAdditionalChildOf(parent(), arguments -> new PipelineTask(_filter, info));
+      PipelineTask clone = allocateAdditionalChildOf(parent(), () -> new PipelineTask(_filter, info));
       spawn(clone);
     }
+  }
 
-    class Info extends OrderedBuffer.TaskInfo<T>
-    {
-      public Info()
-      {
-
-      }
+  /**
+   * Items carried by a token in batch mode.
+   */
+  private static final class Batch<T> extends ArrayList<T>
+  {
+    private static final long serialVersionUID = 3570712064521843207L;
 
-      public Info(OrderedBuffer.TaskInfo<T> info)
-      {
-        super(info);
-      }
+    /**
+     * Time spent by filters on the batch so far.
+     */
+    long _nanos;
 
-      final PipelineTask task()
-      {
-        return PipelineTask.this;
-      }
+    Batch(int capacity)
+    {
+      super(capacity);
     }
   }
 
@@ -532,7 +1164,7 @@ public class Pipeline<T>
               final Filter<T> filter = current_filter;
               setRefCount(1);
               recycleAsContinuation();
-              return allocateChild(arguments -> new PipelineTask(filter, info));
+              return allocateChild(() -> new PipelineTask(filter, info));
             }
             current_filter = current_filter.next_segment;
             if (current_filter == null)
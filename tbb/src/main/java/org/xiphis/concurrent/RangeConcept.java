@@ -30,6 +30,31 @@ public abstract class RangeConcept<R extends RangeConcept<R>.Range>
    */
   public abstract R split(R range);
 
+  /**
+   * Split range into two subranges whose sizes are in the ratio
+   * {@code left:right}, if the range supports it. The default splits the
+   * range in half.
+   *
+   * @param range range to split, which keeps the left part
+   * @param left relative size of the left part
+   * @param right relative size of the right part
+   * @return new instance
+   */
+  public R split(R range, int left, int right)
+  {
+    return split(range);
+  }
+
+  /**
+   * Returns the size of the left part of a proportional split of
+   * {@code size} elements, at least one and less than {@code size}.
+   */
+  static int proportion(int size, int left, int right)
+  {
+    int split = (int) ((long) size * left / ((long) left + right));
+    return Math.max(1, Math.min(size - 1, split));
+  }
+
   public abstract class Range
   {
     /**
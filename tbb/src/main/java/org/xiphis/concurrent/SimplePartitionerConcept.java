@@ -0,0 +1,46 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+/**
+ * Partitioner which always splits a range until it is no longer divisible,
+ * so the chunks depend only on the range and its grainsize.
+ */
+public class SimplePartitionerConcept<R extends RangeConcept<R>.Range>
+    extends PartitionerConcept<R, SimplePartitionerConcept<R>.SimplePartitioner>
+{
+  public static <R extends RangeConcept<R>.Range> //
+  SimplePartitionerConcept<R>.SimplePartitioner newInstance()
+  {
+    return new SimplePartitionerConcept<R>().clone(null);
+  }
+
+  @Override
+  public SimplePartitioner clone(SimplePartitioner partitioner)
+  {
+    return new SimplePartitioner();
+  }
+
+  @Override
+  public SimplePartitioner split(SimplePartitioner partitioner)
+  {
+    return new SimplePartitioner();
+  }
+
+  public class SimplePartitioner
+      extends PartitionerConcept<R, SimplePartitioner>.Partitioner
+  {
+    SimplePartitioner()
+    {
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import java.util.Collection;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * Range of the elements of a {@link Spliterator}, so that any collection or
+ * stream source may be used with {@link Parallel#parallelFor} and
+ * {@link Parallel#parallelReduce} without first copying it into a list.
+ *
+ * <p>Ranges are split with {@link Spliterator#trySplit()}; the original range
+ * keeps the prefix, so bodies are joined in encounter order. A range is
+ * divisible while its estimated size is larger than its grainsize and the
+ * spliterator has not declined to split. When no grainsize is given, the
+ * source is divided into about eight chunks per processor by its estimated
+ * size, which is exact for {@link Spliterator#SIZED} and
+ * {@link Spliterator#SUBSIZED} sources, and a source of unknown size is split
+ * for as long as it allows.</p>
+ *
+ * <p>A spliterator cannot be copied, so {@link #dup} moves the elements into
+ * the new range, and the original range throws an
+ * {@link IllegalStateException} if it is used again. For the same reason the
+ * ranges cannot be used with {@link Parallel#parallelScan}, which applies each
+ * subrange twice.</p>
+ *
+ * @param <T> element type
+ */
+public final class SpliteratorRangeConcept<T>
+    extends RangeConcept<SpliteratorRangeConcept<T>.SpliteratorRange>
+{
+  private final int _grainsize;
+
+  public SpliteratorRangeConcept()
+  {
+    _grainsize = 0;
+  }
+
+  public SpliteratorRangeConcept(int grainsize)
+  {
+    if (grainsize <= 0)
+      throw new IllegalArgumentException();
+    _grainsize = grainsize;
+  }
+
+  public static <T> //
+  SpliteratorRangeConcept<T>.SpliteratorRange newInstance(Spliterator<T> spliterator)
+  {
+    return new SpliteratorRangeConcept<T>().newRange(spliterator);
+  }
+
+  public static <T> //
+  SpliteratorRangeConcept<T>.SpliteratorRange newInstance(Collection<T> collection)
+  {
+    return newInstance(collection.spliterator());
+  }
+
+  public SpliteratorRange newRange(Spliterator<T> spliterator)
+  {
+    int grainsize = _grainsize;
+    if (grainsize == 0)
+    {
+      long size = spliterator.estimateSize();
+      grainsize = size == Long.MAX_VALUE ? 1 : (int) Math.min(Math.max(1, size / (TBB.PROCESSORS * 8)), Integer.MAX_VALUE);
+    }
+    return new SpliteratorRange(spliterator, grainsize);
+  }
+
+  /**
+   * Move the elements of the range into a new range.
+   *
+   * @param range range to move, which may not be used afterwards
+   * @return new instance
+   */
+  @Override
+  public SpliteratorRange dup(SpliteratorRange range)
+  {
+    SpliteratorRange result = new SpliteratorRange(range.spliterator(), range._grainsize);
+    result._indivisible = range._indivisible;
+    range._spliterator = null;
+    return result;
+  }
+
+  /**
+   * Split range into two subranges.
+   *
+   * @param range range to split, which keeps the prefix
+   * @return new instance, empty if the spliterator declined to split.
+   */
+  @Override
+  public SpliteratorRange split(SpliteratorRange range)
+  {
+    assert range.isDivisible() : "cannot split indivisible range";
+    Spliterator<T> prefix = range.spliterator().trySplit();
+    if (prefix == null)
+    {
+      range._indivisible = true;
+      SpliteratorRange result = new SpliteratorRange(Spliterators.emptySpliterator(), range._grainsize);
+      result._indivisible = true;
+      return result;
+    }
+    SpliteratorRange result = new SpliteratorRange(range._spliterator, range._grainsize);
+    range._spliterator = prefix;
+    return result;
+  }
+
+  public final class SpliteratorRange
+      extends RangeConcept<SpliteratorRange>.Range
+  {
+    Spliterator<T> _spliterator;
+    final int _grainsize;
+    boolean _indivisible;
+
+    SpliteratorRange(Spliterator<T> spliterator, int grainsize)
+    {
+      _spliterator = spliterator;
+      _grainsize = grainsize;
+    }
+
+    /**
+     * @return spliterator over the elements of the range.
+     * @throws IllegalStateException if the elements were moved to another range.
+     */
+    public Spliterator<T> spliterator()
+    {
+      Spliterator<T> spliterator = _spliterator;
+      if (spliterator == null)
+        throw new IllegalStateException("range was moved");
+      return spliterator;
+    }
+
+    /**
+     * Performs the action for each element of the range.
+     *
+     * @param action action
+     */
+    public void forEach(Consumer<? super T> action)
+    {
+      spliterator().forEachRemaining(action);
+    }
+
+    /**
+     * @return estimated number of elements, {@link Integer#MAX_VALUE} if
+     * unknown.
+     */
+    @Override
+    public int size()
+    {
+      return (int) Math.min(spliterator().estimateSize(), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+      return spliterator().getExactSizeIfKnown() == 0;
+    }
+
+    @Override
+    public boolean isDivisible()
+    {
+      return !_indivisible && spliterator().estimateSize() > _grainsize;
+    }
+
+    @Override
+    public int grainSize()
+    {
+      return _grainsize;
+    }
+  }
+}
@@ -22,7 +22,7 @@ public interface StageTask<T>
 
   void setToken(int i);
 
-  void putTaskInfo(OrderedBuffer.TaskInfo<T> info);
+  OrderedBuffer.TaskInfo<T> taskInfo();
 
   void spawnStageTask(OrderedBuffer.TaskInfo<T> info);
 }
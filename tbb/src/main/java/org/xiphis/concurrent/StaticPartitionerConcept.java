@@ -0,0 +1,71 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+/**
+ * Partitioner which splits a range up front into one chunk per processor,
+ * or fewer if the range is not divisible that far, and never splits a chunk
+ * further when it is stolen.
+ *
+ * <p>Ranges are split in proportion to the number of chunks on each side, so
+ * the chunks are of equal size when the number of processors is not a power
+ * of two, provided that the range supports
+ * {@link RangeConcept#split(RangeConcept.Range, int, int)}. Other ranges are
+ * split in half.</p>
+ */
+public class StaticPartitionerConcept<R extends RangeConcept<R>.Range>
+    extends PartitionerConcept<R, StaticPartitionerConcept<R>.StaticPartitioner>
+{
+  public static <R extends RangeConcept<R>.Range> //
+  StaticPartitionerConcept<R>.StaticPartitioner newInstance()
+  {
+    return new StaticPartitionerConcept<R>().clone(null);
+  }
+
+  @Override
+  public StaticPartitioner clone(StaticPartitioner partitioner)
+  {
+    return new StaticPartitioner(partitioner != null ? partitioner.num_chunks : TBB.PROCESSORS);
+  }
+
+  @Override
+  public StaticPartitioner split(StaticPartitioner partitioner)
+  {
+    int right = partitioner.num_chunks / 2;
+    partitioner.num_chunks -= right;
+    return new StaticPartitioner(right);
+  }
+
+  public class StaticPartitioner
+      extends PartitionerConcept<R, StaticPartitioner>.Partitioner
+  {
+    private int num_chunks;
+
+    StaticPartitioner(int num_chunks)
+    {
+      this.num_chunks = num_chunks;
+    }
+
+    @Override
+    public R splitRange(R range)
+    {
+      int right = num_chunks / 2;
+      return range.concept().split(range, num_chunks - right, right);
+    }
+
+    @Override
+    public boolean shouldExecuteRange(R range, Task t)
+    {
+      return num_chunks <= 1;
+    }
+  }
+}
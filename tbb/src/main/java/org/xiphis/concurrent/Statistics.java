@@ -11,63 +11,257 @@
  */
 package org.xiphis.concurrent;
 
-public class Statistics
+import org.xiphis.utils.var.VarFuncNumber;
+import org.xiphis.utils.var.VarGroup;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Read-only snapshot of the counters of a task scheduler.
+ *
+ * <p>Each thread which executes tasks has its own scheduler, which updates
+ * its counters with plain writes. A snapshot may therefore be slightly stale
+ * and its counters are not read atomically with respect to each other.</p>
+ */
+public final class Statistics
 {
+  private final String name;
+  private final long loopCount;
+  private final long executeCount;
+  private final long continueCount;
+  private final long localBypassCount;
+  private final long pushedCount;
+  private final long stolenCount;
+  private final long stealAttemptCount;
+  private final long stealFailCount;
+  private final long innerExitCount;
+  private final long spinCount;
+  private final long parkCount;
+  private final long mailReceivedCount;
+
+  Statistics(String name, long loopCount, long executeCount, long continueCount, long localBypassCount,
+             long pushedCount, long stolenCount, long stealAttemptCount, long stealFailCount,
+             long innerExitCount, long spinCount, long parkCount, long mailReceivedCount)
+  {
+    this.name = name;
+    this.loopCount = loopCount;
+    this.executeCount = executeCount;
+    this.continueCount = continueCount;
+    this.localBypassCount = localBypassCount;
+    this.pushedCount = pushedCount;
+    this.stolenCount = stolenCount;
+    this.stealAttemptCount = stealAttemptCount;
+    this.stealFailCount = stealFailCount;
+    this.innerExitCount = innerExitCount;
+    this.spinCount = spinCount;
+    this.parkCount = parkCount;
+    this.mailReceivedCount = mailReceivedCount;
+  }
+
+  /**
+   * Returns a snapshot of the counters of every scheduler.
+   * @return list of snapshots
+   */
+  public static List<Statistics> snapshot()
+  {
+    return Task.statistics();
+  }
+
+  /**
+   * Returns the sum of the counters of every scheduler.
+   * @return aggregated snapshot
+   */
+  public static Statistics aggregate()
+  {
+    return aggregate(snapshot());
+  }
+
+  /**
+   * Returns the sum of the provided snapshots.
+   * @param snapshots snapshots
+   * @return aggregated snapshot
+   */
+  public static Statistics aggregate(Collection<Statistics> snapshots)
+  {
+    long loop = 0, execute = 0, cont = 0, bypass = 0, pushed = 0, stolen = 0;
+    long attempts = 0, fails = 0, exits = 0, spins = 0, parks = 0, mail = 0;
+    for (Statistics s : snapshots)
+    {
+      loop += s.loopCount;
+      execute += s.executeCount;
+      cont += s.continueCount;
+      bypass += s.localBypassCount;
+      pushed += s.pushedCount;
+      stolen += s.stolenCount;
+      attempts += s.stealAttemptCount;
+      fails += s.stealFailCount;
+      exits += s.innerExitCount;
+      spins += s.spinCount;
+      parks += s.parkCount;
+      mail += s.mailReceivedCount;
+    }
+    return new Statistics("total", loop, execute, cont, bypass, pushed, stolen, attempts, fails, exits, spins, parks, mail);
+  }
+
+  /**
+   * Registers the aggregated counters as {@link VarFuncNumber} vars.
+   * @param base group under which the vars are registered
+   */
+  public static void register(VarGroup base)
+  {
+    register(base, "loops", Statistics::loopCount);
+    register(base, "executed", Statistics::executeCount);
+    register(base, "continued", Statistics::continueCount);
+    register(base, "localBypass", Statistics::localBypassCount);
+    register(base, "pushed", Statistics::pushedCount);
+    register(base, "stolen", Statistics::stolenCount);
+    register(base, "stealAttempts", Statistics::stealAttemptCount);
+    register(base, "stealFails", Statistics::stealFailCount);
+    register(base, "innerExits", Statistics::innerExitCount);
+    register(base, "spins", Statistics::spinCount);
+    register(base, "parks", Statistics::parkCount);
+    register(base, "mailReceived", Statistics::mailReceivedCount);
+  }
+
+  private static void register(VarGroup base, String path, ToLongFunction<Statistics> counter)
+  {
+    VarFuncNumber.builder(base, path, () -> counter.applyAsLong(aggregate())).build();
+  }
+
+  /**
+   * Name of the thread which owns the scheduler.
+   * @return thread name
+   */
+  public String name()
+  {
+    return name;
+  }
+
+  /**
+   * Number of times a scheduler loop was entered.
+   * @return count
+   */
+  public long loopCount()
+  {
+    return loopCount;
+  }
+
+  /**
+   * Number of tasks executed.
+   * @return count
+   */
+  public long executeCount()
+  {
+    return executeCount;
+  }
+
+  /**
+   * Number of tasks executed because they were returned by the previous task.
+   * @return count
+   */
+  public long continueCount()
+  {
+    return continueCount;
+  }
 
-  public final int[] execute_count = new int[1];
-  public final int[] proxy_bypass_count = new int[1];
-  public final int[] proxy_execute_count = new int[1];
-  public final int[] proxy_steal_count = new int[1];
-  public final int[] mail_received_count = new int[1];
-  public final int[] reflect_construct_count = new int[1];
-  public final int[] reflect_newinstance_count = new int[1];
-  public final int[] steal_count = new int[1];
-  public final long[] allocate_overhead = new long[1];
-  public final long[] spawn_overhead = new long[1];
-  public final long[] wait_for_all_overhead = new long[1];
-  public final int[] current_active = new int[1];
-
-  public synchronized void record(Statistics source)
-  {
-    execute_count[0] += source.execute_count[0];
-    proxy_bypass_count[0] += source.proxy_bypass_count[0];
-    proxy_execute_count[0] += source.proxy_execute_count[0];
-    proxy_steal_count[0] += source.proxy_steal_count[0];
-    mail_received_count[0] += source.mail_received_count[0];
-    reflect_construct_count[0] += source.reflect_construct_count[0];
-    reflect_newinstance_count[0] += source.reflect_newinstance_count[0];
-    steal_count[0] += source.steal_count[0];
-    allocate_overhead[0] += source.allocate_overhead[0];
-    spawn_overhead[0] += source.spawn_overhead[0];
-    wait_for_all_overhead[0] += source.wait_for_all_overhead[0];
+  /**
+   * Number of tasks taken from the scheduler's own deque.
+   * @return count
+   */
+  public long localBypassCount()
+  {
+    return localBypassCount;
+  }
+
+  /**
+   * Number of tasks passed to other executors.
+   * @return count
+   */
+  public long pushedCount()
+  {
+    return pushedCount;
+  }
+
+  /**
+   * Number of tasks stolen from other schedulers.
+   * @return count
+   */
+  public long stolenCount()
+  {
+    return stolenCount;
+  }
+
+  /**
+   * Number of steal attempts made on non-empty victims.
+   * @return count
+   */
+  public long stealAttemptCount()
+  {
+    return stealAttemptCount;
+  }
+
+  /**
+   * Number of steal attempts which lost a race.
+   * @return count
+   */
+  public long stealFailCount()
+  {
+    return stealFailCount;
+  }
+
+  /**
+   * Number of times a scheduler loop exited because its parent completed.
+   * @return count
+   */
+  public long innerExitCount()
+  {
+    return innerExitCount;
+  }
+
+  /**
+   * Number of idle iterations.
+   * @return count
+   */
+  public long spinCount()
+  {
+    return spinCount;
+  }
+
+  /**
+   * Number of times a worker parked.
+   * @return count
+   */
+  public long parkCount()
+  {
+    return parkCount;
+  }
+
+  /**
+   * Number of tasks taken from the scheduler's mailbox because of their affinity.
+   * @return count
+   */
+  public long mailReceivedCount()
+  {
+    return mailReceivedCount;
   }
 
   @Override
   public String toString()
   {
-    return "Statistics:" +
-           "\nexecute_count=" +
-           execute_count[0] +
-           "\nproxy_bypass_count=" +
-           proxy_bypass_count[0] +
-           "\nproxy_execute_count=" +
-           proxy_execute_count[0] +
-           "\nproxy_steal_count=" +
-           proxy_steal_count[0] +
-           "\nmail_received_count=" +
-           mail_received_count[0] +
-           "\nreflect_construct_count=" +
-           reflect_construct_count[0] +
-           "\nreflect_newinstance_count=" +
-           reflect_newinstance_count[0] +
-           "\nsteal_count=" +
-           steal_count[0] +
-           "\nallocate_overhead=" +
-           allocate_overhead[0] +
-           "ms\nspawn_overhead=" +
-           spawn_overhead[0] +
-           "ms\nwait_for_all_overhead=" +
-           wait_for_all_overhead[0] +
-           "ms";
+    return "Statistics for " + name +
+           " loops:" + loopCount +
+           " executed:" + executeCount +
+           " continuation:" + continueCount +
+           " local:" + localBypassCount +
+           " pushed:" + pushedCount +
+           " stolen:" + stolenCount +
+           " stealAttempts:" + stealAttemptCount +
+           " stealFails:" + stealFailCount +
+           " innerExits:" + innerExitCount +
+           " spins:" + spinCount +
+           " parks:" + parkCount +
+           " mailReceived:" + mailReceivedCount;
   }
 }
@@ -12,6 +12,9 @@
 
 package org.xiphis.concurrent;
 
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+
 /**
  * @author atcurtis
  * @since 2014-08-22
@@ -22,6 +25,71 @@ public final class TBB
 
   public static final int PROCESSORS = Runtime.getRuntime().availableProcessors();
 
+  private static final Object defaultLock = new Object();
+
+  /**
+   * Context which contexts created on threads that are not running tasks are
+   * bound to.
+   */
+  private static volatile TaskGroupContext defaultContext;
+
+  /**
+   * Pool created for {@link #defaultContext}, or {@code null} if the
+   * executors were provided by the application.
+   */
+  private static WorkerPool defaultPool;
+
+  static TaskGroupContext defaultContext()
+  {
+    TaskGroupContext context = defaultContext;
+    if (context != null)
+      return context;
+    synchronized (defaultLock)
+    {
+      if (defaultContext == null)
+      {
+        defaultPool = new WorkerPool(PROCESSORS, new DefaultThreadFactory(WorkerPool.class, true));
+        defaultContext = new TaskGroupContext(defaultPool, TaskGroupContext.Kind.ISOLATED);
+      }
+      return defaultContext;
+    }
+  }
+
+  /**
+   * Returns the executors used by contexts which are created on threads that
+   * are not running tasks, such as by {@code new TaskGroupContext()} or the
+   * {@link Parallel} methods which do not take a context. Unless set by
+   * {@link #setDefaultExecutorGroup(EventExecutorGroup)}, this is a
+   * {@link WorkerPool} of {@link #PROCESSORS} daemon threads which is
+   * created on first use.
+   * @return default executors
+   */
+  public static EventExecutorGroup defaultExecutorGroup()
+  {
+    return defaultContext().eventExecutorGroup();
+  }
+
+  /**
+   * Sets the executors used by contexts which are created on threads that
+   * are not running tasks. If the previous default was the pool created by
+   * this class, it is shut down once its queued tasks have completed.
+   * @param eventExecutors executors to use, or {@code null} to create a new
+   *                       default pool on next use.
+   */
+  public static void setDefaultExecutorGroup(EventExecutorGroup eventExecutors)
+  {
+    WorkerPool pool;
+    synchronized (defaultLock)
+    {
+      pool = defaultPool;
+      defaultPool = null;
+      defaultContext = eventExecutors != null
+          ? new TaskGroupContext(eventExecutors, TaskGroupContext.Kind.ISOLATED) : null;
+    }
+    if (pool != null)
+      pool.shutdownGracefully();
+  }
+
   public static int factor(int factor)
   {
     assert (factor&(factor-1))==0 : "factor must be power of two";
@@ -0,0 +1,826 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BinaryOperator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collector;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Parallel {@link Stream}s which are evaluated by tasks of the scheduler
+ * instead of the common {@link java.util.concurrent.ForkJoinPool}.
+ *
+ * <p>Stateless intermediate operations are fused into a consumer of the
+ * source elements, and terminal operations run {@link Parallel#parallelReduce}
+ * over a {@link SpliteratorRangeConcept} of the source, so each chunk of the
+ * source is consumed by a task and the partial results are joined in
+ * encounter order. Short-circuiting operations cancel the remaining tasks
+ * once they have a result.</p>
+ *
+ * <p>{@code sorted} and {@code distinct} collect the elements in parallel when
+ * the stream is evaluated, as does {@code skip} after other operations; it
+ * skips the leading elements of the source itself on the calling thread.
+ * {@code limit} consumes the leading elements on the calling thread.
+ * {@code mapToInt} and the other conversions to primitive streams collect the
+ * values in parallel, and the operations of the primitive stream run on the
+ * calling thread, as do
+ * {@code forEachOrdered}, {@code findFirst}, {@code iterator} and
+ * {@code sequential}.</p>
+ *
+ * <p>Each terminal operation runs in a new context which is bound to the
+ * given context, or to the current context, so cancelling that context
+ * cancels the operation. The first exception thrown by a function passed to
+ * the stream is rethrown by the terminal operation.</p>
+ */
+public final class TBBStreams
+{
+  private TBBStreams()
+  {
+  }
+
+  public static <T> Stream<T> parallel(Spliterator<T> spliterator)
+  {
+    return new TaskStream<T>(spliterator, new State(null));
+  }
+
+  public static <T> Stream<T> parallel(Spliterator<T> spliterator, TaskGroupContext context)
+  {
+    if (context == null)
+      throw new NullPointerException();
+    return new TaskStream<T>(spliterator, new State(context));
+  }
+
+  public static <T> Stream<T> parallel(Collection<T> collection)
+  {
+    return parallel(collection.spliterator());
+  }
+
+  public static <T> Stream<T> parallel(Collection<T> collection, TaskGroupContext context)
+  {
+    return parallel(collection.spliterator(), context);
+  }
+
+  /**
+   * State shared by the stages of a stream.
+   */
+  private static final class State
+  {
+    final TaskGroupContext context;
+    Runnable closeHandler;
+    boolean closed;
+
+    State(TaskGroupContext context)
+    {
+      this.context = context;
+    }
+  }
+
+  /**
+   * A single terminal operation.
+   */
+  private static final class Evaluation
+  {
+    final TaskGroupContext context;
+    final boolean shortCircuit;
+    final AtomicReference<Throwable> failure = new AtomicReference<>();
+    volatile boolean done;
+
+    Evaluation(TaskGroupContext parent, boolean shortCircuit)
+    {
+      this.context = parent != null ? new TaskGroupContext(parent) : new TaskGroupContext();
+      this.shortCircuit = shortCircuit;
+    }
+
+    void failed(Throwable e)
+    {
+      failure.compareAndSet(null, e);
+    }
+
+    /**
+     * Skips the remaining elements once a short-circuiting operation has its
+     * result.
+     */
+    void stop()
+    {
+      done = true;
+      context.cancelGroupExecution();
+    }
+
+    /**
+     * Rethrows the first failure, as the scheduler only cancels the context of
+     * a task which throws.
+     */
+    void check()
+    {
+      Throwable e = failure.get();
+      if (e instanceof RuntimeException)
+        throw (RuntimeException) e;
+      if (e instanceof Error)
+        throw (Error) e;
+      if (!done && context.isGroupExecutionCancelled())
+        throw new CancellationException();
+    }
+  }
+
+  /**
+   * Accumulates the elements of the ranges which it is applied to into a
+   * container.
+   */
+  private static final class Accumulation<A>
+      implements Parallel.ReduceBody<SpliteratorRangeConcept<Object>.SpliteratorRange, Accumulation<A>>
+  {
+    private final Evaluation my_evaluation;
+    private final Function<Consumer<Object>, Consumer<Object>> my_sink;
+    private final Supplier<A> my_supplier;
+    private final BiConsumer<A, Object> my_accumulator;
+    private final BinaryOperator<A> my_combiner;
+    private final Consumer<Object> my_consumer;
+    A my_container;
+
+    Accumulation(Evaluation evaluation, Function<Consumer<Object>, Consumer<Object>> sink, Supplier<A> supplier,
+                 BiConsumer<A, Object> accumulator, BinaryOperator<A> combiner)
+    {
+      my_evaluation = evaluation;
+      my_sink = sink;
+      my_supplier = supplier;
+      my_accumulator = accumulator;
+      my_combiner = combiner;
+      my_container = supplier.get();
+      Consumer<Object> consumer = t -> accumulator.accept(my_container, t);
+      my_consumer = sink != null ? sink.apply(consumer) : consumer;
+    }
+
+    @Override
+    public void apply(SpliteratorRangeConcept<Object>.SpliteratorRange range)
+    {
+      try
+      {
+        if (my_evaluation.shortCircuit)
+        {
+          Spliterator<Object> spliterator = range.spliterator();
+          while (!my_evaluation.done && spliterator.tryAdvance(my_consumer))
+          {
+          }
+        }
+        else
+        {
+          range.forEach(my_consumer);
+        }
+      }
+      catch (RuntimeException | Error e)
+      {
+        my_evaluation.failed(e);
+        throw e;
+      }
+    }
+
+    @Override
+    public Accumulation<A> split()
+    {
+      return new Accumulation<A>(my_evaluation, my_sink, my_supplier, my_accumulator, my_combiner);
+    }
+
+    @Override
+    public void join(Accumulation<A> rhs)
+    {
+      my_container = my_combiner.apply(my_container, rhs.my_container);
+    }
+  }
+
+  /**
+   * Spliterator which is created when first used, so that stages which
+   * collect the elements only do so when the stream is evaluated.
+   */
+  private static final class DeferredSpliterator implements Spliterator<Object>
+  {
+    private Supplier<Spliterator<Object>> _supplier;
+    private Spliterator<Object> _spliterator;
+
+    DeferredSpliterator(Supplier<Spliterator<Object>> supplier)
+    {
+      _supplier = supplier;
+    }
+
+    private Spliterator<Object> get()
+    {
+      if (_spliterator == null)
+      {
+        _spliterator = _supplier.get();
+        _supplier = null;
+      }
+      return _spliterator;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Object> action)
+    {
+      return get().tryAdvance(action);
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Object> action)
+    {
+      get().forEachRemaining(action);
+    }
+
+    @Override
+    public Spliterator<Object> trySplit()
+    {
+      return get().trySplit();
+    }
+
+    @Override
+    public long estimateSize()
+    {
+      return get().estimateSize();
+    }
+
+    @Override
+    public int characteristics()
+    {
+      return get().characteristics();
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static final class TaskStream<T> implements Stream<T>
+  {
+    private static final Object NONE = new Object();
+
+    private final Spliterator<Object> _source;
+
+    /**
+     * Wraps a consumer of the elements of this stage as a consumer of the
+     * source elements, {@code null} if there are no operations.
+     */
+    private final Function<Consumer<Object>, Consumer<Object>> _sink;
+
+    /**
+     * Applies the operations of this stage to a stream of the source elements.
+     */
+    private final Function<Stream<Object>, Stream<T>> _replay;
+
+    private final State _state;
+    private boolean _linked;
+
+    TaskStream(Spliterator<T> source, State state)
+    {
+      _source = (Spliterator<Object>) source;
+      _sink = null;
+      _replay = stream -> (Stream<T>) stream;
+      _state = state;
+    }
+
+    private TaskStream(TaskStream<?> upstream, Function<Consumer<Object>, Consumer<Object>> stage,
+                       Function<Stream<Object>, Stream<T>> replay)
+    {
+      upstream.link();
+      _source = upstream._source;
+      _sink = upstream._sink != null ? stage.andThen(upstream._sink) : stage;
+      _replay = replay;
+      _state = upstream._state;
+    }
+
+    private void link()
+    {
+      if (_linked || _state.closed)
+        throw new IllegalStateException("stream has already been operated upon or closed");
+      _linked = true;
+    }
+
+    private <R> Stream<R> stage(Function<Consumer<Object>, Consumer<Object>> stage,
+                                Function<Stream<T>, Stream<R>> operation)
+    {
+      return new TaskStream<R>(this, stage, _replay.andThen(operation));
+    }
+
+    /**
+     * Continues with a new source, which is created when the stream is
+     * evaluated.
+     */
+    private Stream<T> restart(Supplier<Spliterator<Object>> source)
+    {
+      link();
+      return new TaskStream<T>((Spliterator<T>) (Spliterator<?>) new DeferredSpliterator(source), _state);
+    }
+
+    private Spliterator<T> sequentialSpliterator()
+    {
+      if (_sink == null)
+        return (Spliterator<T>) _source;
+      return _replay.apply(StreamSupport.stream(_source, false)).spliterator();
+    }
+
+    private <A> A evaluate(Evaluation evaluation, Supplier<A> supplier, BiConsumer<A, Object> accumulator,
+                           BinaryOperator<A> combiner)
+    {
+      Accumulation<A> body = new Accumulation<A>(evaluation, _sink, supplier, accumulator, combiner);
+      Parallel.parallelReduce(SpliteratorRangeConcept.newInstance(_source), body, evaluation.context);
+      evaluation.check();
+      return body.my_container;
+    }
+
+    private <A> A evaluate(Supplier<A> supplier, BiConsumer<A, Object> accumulator, BinaryOperator<A> combiner)
+    {
+      return evaluate(new Evaluation(_state.context, false), supplier, accumulator, combiner);
+    }
+
+    private ArrayList<Object> collectList()
+    {
+      return evaluate(ArrayList::new, ArrayList::add, (a, b) -> {
+        a.addAll(b);
+        return a;
+      });
+    }
+
+    // Intermediate operations
+
+    @Override
+    public Stream<T> filter(Predicate<? super T> predicate)
+    {
+      return stage(down -> t -> {
+        if (predicate.test((T) t))
+          down.accept(t);
+      }, stream -> stream.filter(predicate));
+    }
+
+    @Override
+    public <R> Stream<R> map(Function<? super T, ? extends R> mapper)
+    {
+      return stage(down -> t -> down.accept(mapper.apply((T) t)), stream -> stream.map(mapper));
+    }
+
+    @Override
+    public <R> Stream<R> flatMap(Function<? super T, ? extends Stream<? extends R>> mapper)
+    {
+      return stage(down -> t -> {
+        try (Stream<? extends R> result = mapper.apply((T) t))
+        {
+          if (result != null)
+            result.sequential().forEach(down);
+        }
+      }, stream -> stream.flatMap(mapper));
+    }
+
+    @Override
+    public Stream<T> peek(Consumer<? super T> action)
+    {
+      return stage(down -> t -> {
+        action.accept((T) t);
+        down.accept(t);
+      }, stream -> stream.peek(action));
+    }
+
+    @Override
+    public Stream<T> distinct()
+    {
+      return restart(() -> evaluate(LinkedHashSet::new, LinkedHashSet::add, (a, b) -> {
+        a.addAll(b);
+        return a;
+      }).spliterator());
+    }
+
+    @Override
+    public Stream<T> sorted()
+    {
+      return sorted((Comparator<? super T>) Comparator.naturalOrder());
+    }
+
+    @Override
+    public Stream<T> sorted(Comparator<? super T> comparator)
+    {
+      return restart(() -> {
+        Object[] array = collectList().toArray();
+        Evaluation evaluation = new Evaluation(_state.context, false);
+        ParallelSort.stableSort(array, 0, array.length, (a, b) -> {
+          try
+          {
+            return comparator.compare((T) a, (T) b);
+          }
+          catch (RuntimeException | Error e)
+          {
+            evaluation.failed(e);
+            throw e;
+          }
+        }, evaluation.context);
+        evaluation.check();
+        return Spliterators.spliterator(array, Spliterator.ORDERED);
+      });
+    }
+
+    @Override
+    public Stream<T> limit(long maxSize)
+    {
+      if (maxSize < 0)
+        throw new IllegalArgumentException(Long.toString(maxSize));
+      return restart(() -> {
+        Spliterator<T> spliterator = sequentialSpliterator();
+        ArrayList<Object> list = new ArrayList<>();
+        while (list.size() < maxSize && spliterator.tryAdvance(list::add))
+        {
+        }
+        return list.spliterator();
+      });
+    }
+
+    @Override
+    public Stream<T> skip(long n)
+    {
+      if (n < 0)
+        throw new IllegalArgumentException(Long.toString(n));
+      return restart(() -> {
+        if (_sink == null)
+        {
+          for (long i = 0; i < n && _source.tryAdvance(t -> {}); i++)
+          {
+          }
+          return _source;
+        }
+        // The JDK's spliterator of the remaining stages would run the rest
+        // of the stream as a single task.
+        Object[] array = collectList().toArray();
+        return Spliterators.spliterator(array, (int) Math.min(n, array.length), array.length, Spliterator.ORDERED);
+      });
+    }
+
+    /**
+     * Characteristics of the spliterator of the values of a primitive stream.
+     */
+    private static final int BUILT = Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.ORDERED;
+
+    /**
+     * Collects the primitive values which the accumulator adds for each
+     * element into a builder per chunk, in encounter order. Joining chunks
+     * appends their builders, so the values are copied only once, when all of
+     * them are known.
+     */
+    private <B> ArrayList<B> chunks(Supplier<B> builder, BiConsumer<B, Object> accumulator)
+    {
+      return evaluate(() -> {
+        ArrayList<B> chunks = new ArrayList<>();
+        chunks.add(builder.get());
+        return chunks;
+      }, (chunks, t) -> accumulator.accept(chunks.get(chunks.size() - 1), t), (a, b) -> {
+        a.addAll(b);
+        return a;
+      });
+    }
+
+    /**
+     * Returns a stream of the JDK over the primitive values which the
+     * accumulator adds for each element. The values are collected in parallel
+     * when the returned stream is evaluated, and the operations on them run on
+     * the calling thread.
+     */
+    private IntStream intStream(BiConsumer<IntStream.Builder, Object> accumulator)
+    {
+      link();
+      return StreamSupport.intStream(() -> Spliterators.spliterator(
+          chunks(IntStream::builder, accumulator).stream().flatMapToInt(IntStream.Builder::build).toArray(),
+          Spliterator.ORDERED), BUILT, false).onClose(this::close);
+    }
+
+    private LongStream longStream(BiConsumer<LongStream.Builder, Object> accumulator)
+    {
+      link();
+      return StreamSupport.longStream(() -> Spliterators.spliterator(
+          chunks(LongStream::builder, accumulator).stream().flatMapToLong(LongStream.Builder::build).toArray(),
+          Spliterator.ORDERED), BUILT, false).onClose(this::close);
+    }
+
+    private DoubleStream doubleStream(BiConsumer<DoubleStream.Builder, Object> accumulator)
+    {
+      link();
+      return StreamSupport.doubleStream(() -> Spliterators.spliterator(
+          chunks(DoubleStream::builder, accumulator).stream().flatMapToDouble(DoubleStream.Builder::build).toArray(),
+          Spliterator.ORDERED), BUILT, false).onClose(this::close);
+    }
+
+    @Override
+    public IntStream mapToInt(ToIntFunction<? super T> mapper)
+    {
+      return intStream((values, t) -> values.add(mapper.applyAsInt((T) t)));
+    }
+
+    @Override
+    public LongStream mapToLong(ToLongFunction<? super T> mapper)
+    {
+      return longStream((values, t) -> values.add(mapper.applyAsLong((T) t)));
+    }
+
+    @Override
+    public DoubleStream mapToDouble(ToDoubleFunction<? super T> mapper)
+    {
+      return doubleStream((values, t) -> values.add(mapper.applyAsDouble((T) t)));
+    }
+
+    @Override
+    public IntStream flatMapToInt(Function<? super T, ? extends IntStream> mapper)
+    {
+      return intStream((values, t) -> {
+        try (IntStream result = mapper.apply((T) t))
+        {
+          if (result != null)
+            result.sequential().forEach(values);
+        }
+      });
+    }
+
+    @Override
+    public LongStream flatMapToLong(Function<? super T, ? extends LongStream> mapper)
+    {
+      return longStream((values, t) -> {
+        try (LongStream result = mapper.apply((T) t))
+        {
+          if (result != null)
+            result.sequential().forEach(values);
+        }
+      });
+    }
+
+    @Override
+    public DoubleStream flatMapToDouble(Function<? super T, ? extends DoubleStream> mapper)
+    {
+      return doubleStream((values, t) -> {
+        try (DoubleStream result = mapper.apply((T) t))
+        {
+          if (result != null)
+            result.sequential().forEach(values);
+        }
+      });
+    }
+
+    // Terminal operations
+
+    @Override
+    public void forEach(Consumer<? super T> action)
+    {
+      link();
+      evaluate(() -> null, (a, t) -> action.accept((T) t), (a, b) -> null);
+    }
+
+    @Override
+    public void forEachOrdered(Consumer<? super T> action)
+    {
+      link();
+      sequentialSpliterator().forEachRemaining(action);
+    }
+
+    @Override
+    public Object[] toArray()
+    {
+      link();
+      return collectList().toArray();
+    }
+
+    @Override
+    public <A> A[] toArray(IntFunction<A[]> generator)
+    {
+      link();
+      ArrayList<Object> list = collectList();
+      return list.toArray(generator.apply(list.size()));
+    }
+
+    @Override
+    public T reduce(T identity, BinaryOperator<T> accumulator)
+    {
+      return reduce(identity, accumulator, accumulator);
+    }
+
+    @Override
+    public Optional<T> reduce(BinaryOperator<T> accumulator)
+    {
+      link();
+      Object[] result = evaluate(() -> new Object[] { NONE }, (box, t) -> {
+        box[0] = box[0] == NONE ? t : accumulator.apply((T) box[0], (T) t);
+      }, (a, b) -> {
+        if (a[0] == NONE)
+          return b;
+        if (b[0] != NONE)
+          a[0] = accumulator.apply((T) a[0], (T) b[0]);
+        return a;
+      });
+      return result[0] == NONE ? Optional.empty() : Optional.of((T) result[0]);
+    }
+
+    @Override
+    public <U> U reduce(U identity, BiFunction<U, ? super T, U> accumulator, BinaryOperator<U> combiner)
+    {
+      link();
+      Object[] result = evaluate(() -> new Object[] { identity }, (box, t) -> {
+        box[0] = accumulator.apply((U) box[0], (T) t);
+      }, (a, b) -> {
+        a[0] = combiner.apply((U) a[0], (U) b[0]);
+        return a;
+      });
+      return (U) result[0];
+    }
+
+    @Override
+    public <R> R collect(Supplier<R> supplier, BiConsumer<R, ? super T> accumulator, BiConsumer<R, R> combiner)
+    {
+      link();
+      return evaluate(supplier, (r, t) -> accumulator.accept(r, (T) t), (a, b) -> {
+        combiner.accept(a, b);
+        return a;
+      });
+    }
+
+    @Override
+    public <R, A> R collect(Collector<? super T, A, R> collector)
+    {
+      link();
+      BiConsumer<A, ? super T> accumulator = collector.accumulator();
+      A container = evaluate(collector.supplier(), (a, t) -> ((BiConsumer<A, T>) accumulator).accept(a, (T) t),
+                             collector.combiner());
+      return collector.characteristics().contains(Collector.Characteristics.IDENTITY_FINISH)
+          ? (R) container : collector.finisher().apply(container);
+    }
+
+    @Override
+    public Optional<T> min(Comparator<? super T> comparator)
+    {
+      return reduce(BinaryOperator.minBy(comparator));
+    }
+
+    @Override
+    public Optional<T> max(Comparator<? super T> comparator)
+    {
+      return reduce(BinaryOperator.maxBy(comparator));
+    }
+
+    @Override
+    public long count()
+    {
+      link();
+      if (_sink == null && _source.hasCharacteristics(Spliterator.SIZED))
+        return _source.estimateSize();
+      return evaluate(() -> new long[1], (n, t) -> n[0]++, (a, b) -> {
+        a[0] += b[0];
+        return a;
+      })[0];
+    }
+
+    /**
+     * Tests if any element matches, skipping the remaining elements once one
+     * is found.
+     */
+    private boolean find(Predicate<? super T> predicate)
+    {
+      link();
+      Evaluation evaluation = new Evaluation(_state.context, true);
+      evaluate(evaluation, () -> null, (a, t) -> {
+        if (predicate.test((T) t))
+          evaluation.stop();
+      }, (a, b) -> null);
+      return evaluation.done;
+    }
+
+    @Override
+    public boolean anyMatch(Predicate<? super T> predicate)
+    {
+      return find(predicate);
+    }
+
+    @Override
+    public boolean allMatch(Predicate<? super T> predicate)
+    {
+      return !find(t -> !predicate.test(t));
+    }
+
+    @Override
+    public boolean noneMatch(Predicate<? super T> predicate)
+    {
+      return !find(predicate);
+    }
+
+    @Override
+    public Optional<T> findFirst()
+    {
+      link();
+      Object[] box = { NONE };
+      sequentialSpliterator().tryAdvance(t -> box[0] = t);
+      return box[0] == NONE ? Optional.empty() : Optional.of((T) box[0]);
+    }
+
+    @Override
+    public Optional<T> findAny()
+    {
+      link();
+      Evaluation evaluation = new Evaluation(_state.context, true);
+      AtomicReference<Object> found = new AtomicReference<>(NONE);
+      evaluate(evaluation, () -> null, (a, t) -> {
+        if (found.compareAndSet(NONE, t))
+          evaluation.stop();
+      }, (a, b) -> null);
+      return found.get() == NONE ? Optional.empty() : Optional.of((T) found.get());
+    }
+
+    // BaseStream
+
+    @Override
+    public Iterator<T> iterator()
+    {
+      return Spliterators.iterator(spliterator());
+    }
+
+    @Override
+    public Spliterator<T> spliterator()
+    {
+      link();
+      return sequentialSpliterator();
+    }
+
+    @Override
+    public boolean isParallel()
+    {
+      return true;
+    }
+
+    /**
+     * Returns a stream of the JDK which evaluates the remaining operations on
+     * the calling thread.
+     */
+    @Override
+    public Stream<T> sequential()
+    {
+      return StreamSupport.stream(spliterator(), false).onClose(this::close);
+    }
+
+    @Override
+    public Stream<T> parallel()
+    {
+      return this;
+    }
+
+    @Override
+    public Stream<T> unordered()
+    {
+      return this;
+    }
+
+    @Override
+    public Stream<T> onClose(Runnable closeHandler)
+    {
+      if (closeHandler == null)
+        throw new NullPointerException();
+      if (_linked || _state.closed)
+        throw new IllegalStateException("stream has already been operated upon or closed");
+      Runnable first = _state.closeHandler;
+      _state.closeHandler = first == null ? closeHandler : () -> {
+        try
+        {
+          first.run();
+        }
+        finally
+        {
+          closeHandler.run();
+        }
+      };
+      return this;
+    }
+
+    @Override
+    public void close()
+    {
+      _state.closed = true;
+      Runnable closeHandler = _state.closeHandler;
+      _state.closeHandler = null;
+      if (closeHandler != null)
+        closeHandler.run();
+    }
+  }
+}
@@ -23,19 +23,21 @@ import org.xiphis.utils.common.Utils;
 import java.lang.ref.PhantomReference;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
 /**
  *
@@ -126,6 +128,11 @@ public abstract class Task
     private Task task;
     private volatile int refCount;
     private int depth;
+
+    /**
+     * Trace id of the latest execution of the task, or 0 if it was not traced.
+     */
+    private long traceId;
   }
 
   private static final long refCountOffset;
@@ -136,16 +143,30 @@ public abstract class Task
     try
     {
       refCountOffset = Utils.getUnsafe().objectFieldOffset(Prefix.class.getDeclaredField("refCount"));
-
-      singleThreadEventExecutorTaskQueue =
-          Utils.getUnsafe().objectFieldOffset(SingleThreadEventExecutor.class.getDeclaredField("taskQueue"));
-      singleThreadEventExecutorDelayedTaskQueue =
-          Utils.getUnsafe().objectFieldOffset(SingleThreadEventExecutor.class.getDeclaredField("delayedTaskQueue"));
     }
     catch (NoSuchFieldException e)
     {
       throw new RuntimeException(e);
     }
+    singleThreadEventExecutorTaskQueue = executorFieldOffset("taskQueue");
+    singleThreadEventExecutorDelayedTaskQueue = executorFieldOffset("delayedTaskQueue");
+  }
+
+  /**
+   * Offset of a field of {@link SingleThreadEventExecutor}, or -1 if the field
+   * does not exist in this version of Netty.
+   */
+  private static long executorFieldOffset(String name)
+  {
+    try
+    {
+      return Utils.getUnsafe().objectFieldOffset(SingleThreadEventExecutor.class.getDeclaredField(name));
+    }
+    catch (NoSuchFieldException e)
+    {
+      LOG.warn("Unable to access SingleThreadEventExecutor." + name);
+      return -1;
+    }
   }
 
   private Group context;
@@ -155,8 +176,6 @@ public abstract class Task
   private int affinity;
   private boolean stolen;
 
-  private static volatile int statgen;
-
   /**
    * Abstract method which must be overridden to perform the task.
    * @return continuation task
@@ -169,9 +188,200 @@ public abstract class Task
   private static final ConcurrentIdentityHashMap<Reference<?>,Scheduler> map = new ConcurrentIdentityHashMap<>();
   private static final ThreadLocal<Scheduler[]> SCHEDULER = new ThreadLocal<>();
 
+  /**
+   * Logs the statistics of every scheduler.
+   * @deprecated use {@link Statistics#snapshot()}
+   */
+  @Deprecated
   public static void printStats()
   {
-    statgen++;
+    for (Statistics s : statistics())
+      LOG.info(s.toString());
+  }
+
+  /**
+   * Starts an allocated task from any thread, including threads which do not
+   * run a scheduler such as those completing a future.
+   * <p>The task is handed to one of the executors of its context.</p>
+   *
+   * @param task task
+   */
+  public static void enqueue(Task task)
+  {
+    if (task.state != State.allocated)
+      throw new IllegalStateException();
+    task.context.submit(task);
+  }
+
+  /**
+   * Executes a task which was passed directly to a worker.
+   */
+  static void executeRoot(EventExecutor executor, Task task)
+  {
+    task.context.receive(executor, task);
+  }
+
+  static void setTracing(boolean enabled)
+  {
+    for (Scheduler s : map.values())
+    {
+      Thread t = s.thread;
+      s.trace = enabled ? TaskTracer.newBuffer(t != null ? t.getName() : "unknown") : null;
+    }
+  }
+
+  static List<Statistics> statistics()
+  {
+    ArrayList<Statistics> list = new ArrayList<>();
+    for (Scheduler s : map.values())
+      list.add(s.statistics());
+    return list;
+  }
+
+  private static final Object affinityLock = new Object();
+  private static volatile Scheduler[] affinityTable = new Scheduler[16];
+  private static int nextAffinityId = 1;
+
+  /**
+   * Ids released by schedulers whose thread exited, guarded by affinityLock.
+   */
+  private static int[] freeAffinityIds = new int[16];
+  private static int freeAffinityIdCount;
+
+  private static int registerAffinity(Scheduler scheduler)
+  {
+    synchronized (affinityLock)
+    {
+      int id = freeAffinityIdCount > 0 ? freeAffinityIds[--freeAffinityIdCount] : nextAffinityId++;
+      Scheduler[] table = affinityTable;
+      if (id >= table.length)
+        table = Arrays.copyOf(table, table.length * 2);
+      table[id] = scheduler;
+      affinityTable = table;
+      return id;
+    }
+  }
+
+  private static void unregisterAffinity(Scheduler scheduler)
+  {
+    synchronized (affinityLock)
+    {
+      int id = scheduler.affinityId;
+      Scheduler[] table = affinityTable;
+      if (table[id] != scheduler)
+        return;
+      table[id] = null;
+      if (freeAffinityIdCount == freeAffinityIds.length)
+        freeAffinityIds = Arrays.copyOf(freeAffinityIds, freeAffinityIdCount * 2);
+      freeAffinityIds[freeAffinityIdCount++] = id;
+    }
+  }
+
+  private static Scheduler forAffinity(int id)
+  {
+    Scheduler[] table = affinityTable;
+    return id > 0 && id < table.length ? table[id] : null;
+  }
+
+  /**
+   * Placeholder for a task which was offered to a mailbox. Both the mailbox
+   * and a deque refer to the same proxy, which may be claimed only once.
+   */
+  private static final class Proxy extends Task
+  {
+    private static final long taskOffset;
+    static
+    {
+      try
+      {
+        taskOffset = Utils.getUnsafe().objectFieldOffset(Proxy.class.getDeclaredField("task"));
+      }
+      catch (NoSuchFieldException e)
+      {
+        throw new RuntimeException(e);
+      }
+    }
+
+    private volatile Task task;
+    private final Scheduler target;
+
+    private Proxy(Task task, Scheduler target)
+    {
+      this.task = task;
+      this.target = target;
+      ((Task) this).context = task.context;
+    }
+
+    /**
+     * Claims the task for the scheduler which took the proxy from its mailbox.
+     */
+    private Task receive()
+    {
+      Task t = task;
+      return t != null && Utils.getUnsafe().compareAndSwapObject(this, taskOffset, t, null) ? t : null;
+    }
+
+    /**
+     * Claims the task for a scheduler which took the proxy from a deque, and
+     * drops the proxy from the mailbox so that claimed proxies do not pile up
+     * there while the target is busy.
+     */
+    private Task claim()
+    {
+      Task t = receive();
+      if (t != null)
+        target.mailbox.remove(this);
+      return t;
+    }
+
+    @Override
+    protected Task execute()
+    {
+      throw new IllegalStateException("proxy");
+    }
+  }
+
+  /**
+   * Runs an action as a root task and signals a thread waiting for it.
+   */
+  private static final class SignalTask extends Task
+  {
+    private final Runnable action;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private Throwable failure;
+
+    private SignalTask(Runnable action)
+    {
+      this.action = action;
+    }
+
+    @Override
+    protected Task execute()
+    {
+      try
+      {
+        action.run();
+      }
+      catch (Throwable ex)
+      {
+        failure = ex;
+      }
+      finally
+      {
+        done.countDown();
+      }
+      return null;
+    }
+
+    private void await()
+        throws InterruptedException
+    {
+      done.await();
+      if (failure instanceof RuntimeException)
+        throw (RuntimeException) failure;
+      if (failure instanceof Error)
+        throw (Error) failure;
+    }
   }
 
   private static Scheduler getOrCreateScheduler()
@@ -192,12 +402,42 @@ public abstract class Task
         if (LOG.isDebugEnabled())
           LOG.debug("Recycling a scheduler for " + Thread.currentThread().getName());
       }
-      map.put(new PhantomReference<>(r = new Scheduler[] {s}, referenceQueue), s);
+      s.thread = Thread.currentThread();
+      s.trace = TaskTracer.newBuffer(s.thread.getName());
+      if (s.affinityId == 0)
+        s.affinityId = registerAffinity(s);
+      map.put(s.reference = new PhantomReference<>(r = new Scheduler[] {s}, referenceQueue), s);
       SCHEDULER.set(r);
     }
     return r[0];
   }
 
+  /**
+   * Releases the scheduler of the current thread, which is about to exit, so
+   * that it may be recycled by another thread without waiting for the
+   * collector. Its affinity id is released too.
+   */
+  static void releaseScheduler()
+  {
+    Scheduler[] r = SCHEDULER.get();
+    if (r != null)
+    {
+      SCHEDULER.remove();
+      r[0].release();
+    }
+  }
+
+  /**
+   * Returns the context of the task being executed by the current thread.
+   * @return context or {@code null}
+   */
+  private static Group currentGroup()
+  {
+    Scheduler[] r = SCHEDULER.get();
+    Scheduler s;
+    return r != null && (s = r[0]) != null && s.current != null ? s.current.context : null;
+  }
+
   private static Scheduler getScheduler()
   {
     return SCHEDULER.get()[0];
@@ -281,7 +521,8 @@ public abstract class Task
   {
     if (task == null || task.context != null || task.prefix != null)
       throw new IllegalStateException("Bad Factory");
-    (task.prefix = new Prefix()).task = task;
+    Scheduler[] r = SCHEDULER.get();
+    (task.prefix = r != null && r[0] != null ? r[0].allocatePrefix() : new Prefix()).task = task;
     task.context = context;
     task.state = State.allocated;
   }
@@ -318,6 +559,38 @@ public abstract class Task
     return t;
   }
 
+  /**
+   * Constructs a root task using the provided supplier.
+   * <p>Unlike the {@link Factory} variant, no argument array is allocated.</p>
+   * @param supplier task supplier
+   * @param <T> Generic type of Task
+   * @return new task
+   */
+  public static <T extends Task> T allocateRoot(Supplier<T> supplier)
+  {
+    TaskGroupContext context = new TaskGroupContext();
+    T t = supplier.get();
+    setContext(t, context);
+    return t;
+  }
+
+  /**
+   * Constructs a root task using the provided supplier.
+   * <p>Unlike the {@link Factory} variant, no argument array is allocated.</p>
+   * @param context executor context
+   * @param supplier task supplier
+   * @param <T> Generic type of Task
+   * @return new task
+   */
+  public static <T extends Task> T allocateRoot(TaskGroupContext context, Supplier<T> supplier)
+  {
+    if (context == null)
+      throw new NullPointerException("context");
+    T t = supplier.get();
+    setContext(t, context);
+    return t;
+  }
+
   /**
    * Executes the provided tasks and waits for them to complete.
    * Note that this increases the stack depth.
@@ -385,10 +658,7 @@ public abstract class Task
       if (t.context == null || t.prefix.parent != null)
         throw new IllegalArgumentException("not a root task, or already running");
     EventExecutor executor = context.eventExecutorGroup().next();
-    executor.submit(() ->
-    {
-      getOrCreateScheduler().spawnRootAndWait(tasks);
-    }).sync();
+    ((Group) context).runAndWait(executor, () -> getOrCreateScheduler().spawnRootAndWait(tasks));
   }
 
   private static void resetExtraState(Task t)
@@ -486,7 +756,9 @@ public abstract class Task
 
   private static void initTask(Task task, Task parent, int depth, Group context, Scheduler owner)
   {
-    Prefix prefix = new Prefix();
+    if (task.prefix != null)
+      throw new IllegalStateException("task already allocated");
+    Prefix prefix = owner.allocatePrefix();
     prefix.depth = depth;
     prefix.parent = parent.prefix;
     initTask(task, prefix, context, owner);
@@ -552,10 +824,74 @@ public abstract class Task
   protected final <T extends Task> T allocateAdditionalChildOf(Task parent, Factory<T> cls, Object... arguments)
   {
     T t = cls.construct(arguments);
-    initTask(t, parent, parent.prefix.depth + 1, parent.context, parent.owner);
+    Utils.getUnsafe().getAndAddInt(parent.prefix, refCountOffset, 1);
+    initTask(t, parent, parent.prefix.depth + 1, parent.context, getOrCreateScheduler());
+    return t;
+  }
+
+  /**
+   * Returns a child task of this.
+   * <p>Unlike the {@link Factory} variant, no argument array is allocated.</p>
+   *
+   * @param <T> Generic type of Task
+   * @param supplier task supplier. Lambda can be used here.
+   * @return  a task initialized as a child.
+   */
+  public final <T extends Task> T allocateChild(Supplier<T> supplier)
+  {
+    if (!isOwnedByCurrentThread())
+      throw new IllegalStateException("thread does not own this");
+    T t = supplier.get();
+    initTask(t, this, prefix.depth + 1, context, owner);
+    return t;
+  }
+
+  /**
+   * Returns a continuation task of *this.
+   * <p>Unlike the {@link Factory} variant, no argument array is allocated.</p>
+   *
+   * @param <T> Generic type of Task
+   * @param supplier task supplier. Lambda can be used here.
+   * @return a task initialized as a continuation.
+   */
+  protected final <T extends Task> T allocateContinuation(Supplier<T> supplier)
+  {
+    if (!isOwnedByCurrentThread())
+      throw new IllegalStateException("thread does not own this");
+    T t = supplier.get();
+    initTask(t, prefix, context, owner);
+    this.prefix = null;
     return t;
   }
 
+  /**
+   * Like allocateChild, except that task's parent becomes "parent", not this.
+   * <p>Unlike the {@link Factory} variant, no argument array is allocated.</p>
+   *
+   * @param <T> Generic type of Task
+   * @param parent Parent.
+   * @param supplier task supplier. Lambda can be used here.
+   * @return a task initialized as a child.
+   */
+  protected final <T extends Task> T allocateAdditionalChildOf(Task parent, Supplier<T> supplier)
+  {
+    T t = supplier.get();
+    Utils.getUnsafe().getAndAddInt(parent.prefix, refCountOffset, 1);
+    initTask(t, parent, parent.prefix.depth + 1, parent.context, getOrCreateScheduler());
+    return t;
+  }
+
+  /**
+   * Returns an {@link EmptyTask}, reusing one which was previously executed
+   * by the current thread if possible.
+   * @return empty task
+   */
+  static EmptyTask allocateEmptyTask()
+  {
+    Scheduler[] r = SCHEDULER.get();
+    return r != null && r[0] != null ? r[0].allocateEmptyTask() : new EmptyTask();
+  }
+
   // ------------------------------------------------------------------------
   // Recycling of tasks
   // ------------------------------------------------------------------------
@@ -599,7 +935,7 @@ public abstract class Task
     assert new_parent.state != null && new_parent.state != State.freed : "parent already freed";
     state = State.allocated;
     if (prefix == null)
-      prefix = new Prefix();
+      prefix = owner != null ? owner.allocatePrefix() : new Prefix();
     prefix.parent = new_parent.prefix;
     prefix.depth = new_parent.prefix.depth + 1;
     context = new_parent.context;
@@ -619,32 +955,136 @@ public abstract class Task
 
   final static class Scheduler
   {
+    /**
+     * Upper bound on the number of recycled objects kept by each free list.
+     */
+    private static final int MAX_FREE = 256;
+
+    /**
+     * Upper bound on the number of tasks taken from a victim in one steal.
+     */
+    private static final int MAX_STEAL_BATCH = 32;
+
     private final Task workerTask = new EmptyTask();
-    private final Deque<Task> localBypass = new ArrayDeque<>();
-    private final ConcurrentLinkedQueue<Task> submitted = new ConcurrentLinkedQueue<>();
+    private final WorkStealingDeque deque = new WorkStealingDeque();
     private final ArrayList<Task> parents = new ArrayList<>();
     private final AtomicInteger runCount = new AtomicInteger();
 
+    /**
+     * Wake token. Set while the scheduler is parked, and cleared by the
+     * enqueuer which is responsible for waking it.
+     */
+    private final AtomicInteger parked = new AtomicInteger();
+    private volatile Thread thread;
+    private volatile TaskTracer.Buffer trace;
+
+    /**
+     * Free list of prefixes, linked through {@link Prefix#parent}.
+     */
+    private Prefix freePrefix;
+    private int freePrefixCount;
+    private final EmptyTask[] freeEmptyTasks = new EmptyTask[MAX_FREE];
+
+    /**
+     * Identifies this scheduler for task affinity. 0 while released.
+     */
+    private int affinityId;
+    private final ConcurrentLinkedQueue<Proxy> mailbox = new ConcurrentLinkedQueue<>();
+    private Reference<Scheduler[]> reference;
+    private int freeEmptyTaskCount;
+
     private EventExecutor eventExecutor;
     private Task current;
     private Group context;
-    private int stat;
-
-    private int innerStart;
-    private int executeCount;
-    private int continueCount;
-    private int localBypassCount;
-    private int submittedCount;
-    private int pushedCount;
-    private int innerExits;
-    private int stolenCount;
-    private int spinCount;
+
+    // Counters are only written by the owning thread and are read without
+    // synchronization by statistics().
+    private long innerStart;
+    private long executeCount;
+    private long continueCount;
+    private long localBypassCount;
+    private long pushedCount;
+    private long innerExits;
+    private long stolenCount;
+    private long stealAttemptCount;
+    private long stealFailCount;
+    private long spinCount;
+    private long parkCount;
+    private long mailReceivedCount;
 
     public Task currentTask()
     {
       return current;
     }
 
+    Statistics statistics()
+    {
+      Thread t = thread;
+      return new Statistics(t != null ? t.getName() : "unknown", innerStart, executeCount, continueCount,
+                            localBypassCount, pushedCount, stolenCount, stealAttemptCount, stealFailCount,
+                            innerExits, spinCount, parkCount, mailReceivedCount);
+    }
+
+    /**
+     * Called by the thread of this scheduler before it exits.
+     */
+    private void release()
+    {
+      unregisterAffinity(this);
+      affinityId = 0;
+      thread = null;
+      // Every mailed task is also in a deque, from which it will be claimed.
+      mailbox.clear();
+      reference.enqueue();
+    }
+
+    private Prefix allocatePrefix()
+    {
+      Prefix p = freePrefix;
+      if (p == null)
+        return new Prefix();
+      freePrefix = p.parent;
+      freePrefixCount--;
+      p.parent = null;
+      p.traceId = 0;
+      return p;
+    }
+
+    private EmptyTask allocateEmptyTask()
+    {
+      if (freeEmptyTaskCount == 0)
+        return new EmptyTask();
+      EmptyTask t = freeEmptyTasks[--freeEmptyTaskCount];
+      freeEmptyTasks[freeEmptyTaskCount] = null;
+      return t;
+    }
+
+    /**
+     * Destroys an executed task and recycles its prefix, and the task itself
+     * when it is an {@link EmptyTask}, into this scheduler's free lists.
+     */
+    private void destroyExecuted(Task t)
+    {
+      Prefix p = t.prefix;
+      destroy(t);
+      if (freePrefixCount < MAX_FREE)
+      {
+        p.parent = freePrefix;
+        p.depth = 0;
+        Utils.getUnsafe().putOrderedInt(p, refCountOffset, 0);
+        freePrefix = p;
+        freePrefixCount++;
+      }
+      if (t instanceof EmptyTask && freeEmptyTaskCount < MAX_FREE)
+      {
+        t.context = null;
+        t.owner = null;
+        t.affinity = 0;
+        t.stolen = false;
+        freeEmptyTasks[freeEmptyTaskCount++] = (EmptyTask) t;
+      }
+    }
+
     @SuppressWarnings("unchecked")
     public TaskGroupContext currentContext()
     {
@@ -656,10 +1096,9 @@ public abstract class Task
       for (Task t : tasks)
         if (t.parent() != null)
           throw new IllegalStateException("non-root tasks");
-      Task dummy = new EmptyTask();
-      (dummy.prefix = new Prefix()).task = dummy;
       Task first = tasks.removeFirst();
-      dummy.context = first.context;
+      Task dummy = allocateEmptyTask();
+      initTask(dummy, allocatePrefix(), first.context, this);
       int n = 1;
       first.prefix.parent = dummy.prefix;
       for (Task t : tasks)
@@ -670,6 +1109,8 @@ public abstract class Task
       dummy.prefix.refCount = n + 1;
       if (!tasks.isEmpty()) spawn(tasks);
       waitForAll(dummy, first);
+      // All of the roots have completed, so nothing refers to the placeholder.
+      destroyExecuted(dummy);
     }
 
     private void waitForAll(Task parent, Task child)
@@ -680,6 +1121,28 @@ public abstract class Task
     }
 
     private Task executeInner(Task t)
+    {
+      TaskTracer.Buffer trace = this.trace;
+      if (trace == null)
+        return executeTask(t);
+
+      boolean stolen = t.stolen || (t.owner != null && t.owner != this);
+      int depth = t.prefix.depth;
+      long parentId = t.prefix.parent != null ? t.prefix.parent.traceId : 0;
+      long id = trace.nextId();
+      t.prefix.traceId = id;
+      long start = System.nanoTime();
+      try
+      {
+        return executeTask(t);
+      }
+      finally
+      {
+        trace.record(t.getClass(), id, parentId, start, System.nanoTime(), stolen, depth);
+      }
+    }
+
+    private Task executeTask(Task t)
     {
       Task savedCurrent = current;
       Group savedContext = context;
@@ -698,6 +1161,8 @@ public abstract class Task
           {
             executeCount++;
             currentThread.isInterrupted(); // clear flag
+            if (t.affinity != affinityId)
+              t.noteAffinity(affinityId);
             next = t.execute();
             if (currentThread.isInterrupted())
             {
@@ -725,7 +1190,7 @@ public abstract class Task
           Prefix s = t.prefix.parent;
           assert t.prefix.refCount == 0 :
               "Task still has children after it has been executed";
-          destroy(t);
+          destroyExecuted(t);
           if (s != null)
             next = tallyCompletionOfPredecessor(s, next);
           break;
@@ -762,118 +1227,67 @@ public abstract class Task
 
     private void executeLoop(final Task parent, Task t)
     {
-      final Thread currentThread = Thread.currentThread();
-      if (stat != statgen)
-      {
-        stat = statgen;
-        System.out.println("Status for " + currentThread.getName() +
-            " innerStart:" + innerStart +
-            " executed:" + executeCount +
-            " continuation:" + continueCount +
-            " local:" + localBypassCount +
-            " submitted:" + submittedCount +
-            " pushed:" + pushedCount +
-            " stolen:" + stolenCount +
-            " innerExits:" + innerExits +
-            " spins:" + spinCount);
-        innerStart = 0;
-        executeCount = 0;
-        continueCount = 0;
-        localBypassCount = 0;
-        submittedCount = 0;
-        pushedCount = 0;
-        stolenCount = 0;
-        innerExits = 0;
-        spinCount = 0;
-      }
-
       parents.add(parent);
       innerStart++;
-      long idle = -1;
+      long idleStart = -1;
       try
       {
-        loop:
         for (;;)
         {
           while (t != null)
           {
-            idle = -1;
+            idleStart = -1;
+            // A mailed task may already have been taken from its other location.
+            if (t instanceof Proxy && (t = ((Proxy) t).claim()) == null)
+              break;
             if ((t = executeInner(t)) != null)
               continueCount++;
           }
 
-          for (Task p : parents)
+          // Only our own wait may end this loop; a nested wait must not
+          // return before its root completes, even if an enclosing wait has.
+          if (parent != workerTask && parent.prefix.refCount == 1)
           {
-            if (p != workerTask && p.prefix.refCount == 1)
+            innerExits++;
+
+            if (parents.size() == 1)
             {
-              innerExits++;
-
-              if (parents.size() == 1)
-              {
-                if (!localBypass.isEmpty() || !submitted.isEmpty())
-                {
-                  ArrayList<Task> tasks = new ArrayList<>(localBypass);
-                  localBypass.clear();
-                  Task drain;
-                  while ((drain = submitted.poll()) != null)
-                    tasks.add(drain);
-                  Iterator<Task> it = tasks.iterator();
-                  Task first = it.next();
-                  first.context.enqueue(this, first, it);
-                }
-              }
-
-              break loop;
+              // Nothing left in our deque can be executed by us once we
+              // leave the outermost loop, so hand it to the workers.
+              Task drain;
+              while ((drain = deque.pop()) != null)
+                drain.context.handOff(this, drain);
             }
+
+            break;
           }
 
-          if ((t = localBypass.pollFirst()) != null)
+          // Let work of a more important context in before our own.
+          if (eventExecutor instanceof WorkerPool.Worker && parent.context.priority != TaskArena.Priority.HIGH)
+            ((WorkerPool.Worker) eventExecutor).runPending(parent.context.priority);
+
+          if ((t = deque.pop()) != null)
           {
             localBypassCount++;
             continue;
           }
 
-          if ((t = submitted.poll()) != null)
+          // anything sent to us because of its affinity?
+          Proxy proxy = mailbox.poll();
+          if (proxy != null)
           {
-            int maxDrain = 8;
-            int count = 0;
-            Task drain;
-            while (count < maxDrain && (drain = submitted.poll()) != null)
-            {
-              localBypass.add(drain);
-              count++;
-            }
-            submittedCount += count + 1;
+            mailReceivedCount++;
+            t = proxy.receive();
             continue;
           }
 
           // maybe we can steal a task?
-          EventExecutor victimExecutor = parent.context.eventExecutors.next();
-          Scheduler victim;
-          if (!victimExecutor.inEventLoop(currentThread) &&
-              (victim = parent.context.runMap.get(victimExecutor)) != null)
-          {
-            t = victim.submitted.poll();
-            if (t != null)
-            {
-              stolenCount++;
-              t.stolen = true;
-
-              if (parent == workerTask || localBypass.isEmpty())
-              {
-                int maxSteals = victim.submitted.size() / 2 - 1;
-
-                Task stolen;
-                while (maxSteals-- > 0 && (stolen = victim.submitted.poll()) != null)
-                {
-                  stolenCount++;
-                  stolen.stolen = true;
-                  localBypass.addLast(stolen);
-                }
-              }
-              continue;
-            }
-          }
+          if ((t = steal(parent.context)) != null)
+            continue;
+
+          // or take a task which was left in our arena?
+          if (parent.context.arena != null && (t = parent.context.arena.poll()) != null)
+            continue;
 
           if (parent != workerTask)
           {
@@ -884,16 +1298,26 @@ public abstract class Task
             continue;
           }
 
-          if (idle < 0)
+          // Run anything which was submitted to our executor while we were
+          // busy, it may have handed work to us.
+          if (eventExecutor != null && executeOneTask(eventExecutor))
           {
-            idle = System.nanoTime() + 10;
-            spinCount++;
+            idleStart = -1;
             continue;
           }
-          if (idle > System.nanoTime())
+
+          // Only the outermost worker loop waits. A loop which was started
+          // while running the queue of an enclosing loop returns to it, so
+          // that roots of new contexts do not pile up on the stack.
+          if (parents.size() > 1 || eventExecutor != null && eventExecutor.isShuttingDown())
+            break;
+
+          long now = System.nanoTime();
+          if (idleStart < 0)
+            idleStart = now;
+          if (parent.context.waitStrategy.idle(this, parent.context, now - idleStart))
           {
             spinCount++;
-            Utils.Yield();
             continue;
           }
 
@@ -907,6 +1331,86 @@ public abstract class Task
       }
     }
 
+    /**
+     * Attempts to steal work from the other schedulers of the group.
+     * <p>Victims are visited starting at a random position so that idle
+     * workers spread their attempts over the whole group. On success, up to
+     * half of the victim's remaining tasks are moved into our own deque.</p>
+     *
+     * @param group task group
+     * @return stolen task or {@code null} if no work was found.
+     */
+    private Task steal(Group group)
+    {
+      Scheduler[] victims = group.victims;
+      int n = victims.length;
+      if (n == 0)
+        return null;
+      int index = n > 1 ? ThreadLocalRandom.current().nextInt(n) : 0;
+      for (int i = 0; i < n; i++, index = index + 1 < n ? index + 1 : 0)
+      {
+        Scheduler victim = victims[index];
+        if (victim == this || victim.deque.isEmpty())
+          continue;
+        stealAttemptCount++;
+        Task t = victim.deque.steal();
+        if (t == null)
+        {
+          stealFailCount++;
+          continue;
+        }
+        stolenCount++;
+        t.stolen = true;
+
+        // Our deque is empty, so take up to half of the victim's work.
+        int maxSteals = Math.min(victim.deque.size() / 2, MAX_STEAL_BATCH) - 1;
+
+        Task stolen;
+        while (maxSteals-- > 0 && (stolen = victim.deque.steal()) != null)
+        {
+          stolenCount++;
+          stolen.stolen = true;
+          deque.push(stolen);
+        }
+        return t;
+      }
+      return null;
+    }
+
+    /**
+     * Parks the current worker until it is woken by an enqueuer or the
+     * timeout elapses.
+     * <p>Must only be called by the thread which owns this scheduler.</p>
+     *
+     * @param group task group which the worker is serving
+     * @param nanos maximum time to park
+     */
+    void park(Group group, long nanos)
+    {
+      parked.set(1);
+      group.sleepers.incrementAndGet();
+      try
+      {
+        // Check again now that we are visible to enqueuers. A task which was
+        // pushed concurrently with the check may still be missed, in which
+        // case we only sleep for the timeout.
+        if (!deque.isEmpty() || group.hasStealableWork(this))
+          return;
+        parkCount++;
+        while (parked.get() != 0 && nanos > 0)
+        {
+          long start = System.nanoTime();
+          LockSupport.parkNanos(this, nanos);
+          nanos -= System.nanoTime() - start;
+        }
+      }
+      finally
+      {
+        parked.set(0);
+        group.sleepers.decrementAndGet();
+      }
+    }
+
     private Task tallyCompletionOfPredecessor(Prefix s, Task bypass)
     {
 
@@ -924,17 +1428,43 @@ public abstract class Task
       }
       else
       {
-        localBypass.addFirst(s.task);
+        deque.push(s.task);
       }
       return bypass;
     }
 
 
+    /**
+     * Offers a task with affinity for another scheduler to that scheduler's
+     * mailbox. The task also remains in our deque so that it may be stolen
+     * as usual, whichever is taken first is executed.
+     *
+     * @param task task
+     * @return {@code false} if the task should be spawned normally.
+     */
+    private boolean spawnWithAffinity(Task task)
+    {
+      Scheduler target = forAffinity(task.affinity);
+      if (target == null || target == this)
+        return false;
+      Proxy proxy = new Proxy(task, target);
+      deque.push(proxy);
+      target.mailbox.offer(proxy);
+      if (target.parked.get() != 0 && target.parked.compareAndSet(1, 0))
+        LockSupport.unpark(target.thread);
+      else
+        task.context.wakeOne();
+      return true;
+    }
+
     private void spawn(Task task)
     {
-      if (context == task.context && localBypass.isEmpty())
+      if (task.affinity != 0 && spawnWithAffinity(task))
+        return;
+      if (context == task.context)
       {
-        localBypass.addFirst(task);
+        deque.push(task);
+        context.wakeOne();
       }
       else
         task.context.enqueue(this, task, null);
@@ -957,6 +1487,24 @@ public abstract class Task
       Group group = taskGroupContext;
       if (group.runMap.putIfAbsent(executor, this) == null)
       {
+        TaskArena arena = group.arena;
+        if (arena != null)
+        {
+          // The task is left in the arena, to be taken by us or by one of the
+          // workers already executing tasks of the arena.
+          if (!arena.enter(work))
+          {
+            group.runMap.remove(executor);
+            return;
+          }
+          work = arena.poll();
+        }
+
+        // Idle workers run tasks from their executor's queue, so we may be
+        // nested within the worker loop of another group.
+        EventExecutor savedExecutor = eventExecutor;
+        Group savedGroup = workerTask.context;
+        group.addVictim(this);
         try
         {
           eventExecutor = executor;
@@ -965,13 +1513,21 @@ public abstract class Task
         }
         finally
         {
+          group.removeVictim(this);
           group.runMap.remove(executor);
-          eventExecutor = null;
+          eventExecutor = savedExecutor;
+          workerTask.context = savedGroup;
+          if (arena != null && arena.leave())
+          {
+            Task left = arena.poll();
+            if (left != null)
+              left.context.handOff(this, left);
+          }
         }
       }
       else
       {
-        localBypass.addFirst(work);
+        deque.push(work);
       }
     }
   }
@@ -979,8 +1535,11 @@ public abstract class Task
   @SuppressWarnings("unchecked")
   private static boolean executeOneTask(EventExecutor executor)
   {
+    if (executor instanceof WorkerPool.Worker)
+      return ((WorkerPool.Worker) executor).runPending();
     Runnable task = null;
-    if (executor instanceof SingleThreadEventExecutor)
+    if (executor instanceof SingleThreadEventExecutor &&
+        singleThreadEventExecutorTaskQueue >= 0 && singleThreadEventExecutorDelayedTaskQueue >= 0)
     {
       Queue<ScheduledFuture<?>> delayedTaskQueue = (Queue<ScheduledFuture<?>>)
           Utils.getUnsafe().getObject(executor, singleThreadEventExecutorDelayedTaskQueue);
@@ -1016,18 +1575,72 @@ public abstract class Task
    */
   static abstract class Group
   {
+    private static final Scheduler[] NO_VICTIMS = new Scheduler[0];
+
     private final EventExecutorGroup eventExecutors;
+    private final TaskArena arena;
+    private final TaskArena.Priority priority;
     private volatile Throwable groupExecutionCancelled;
+
+    /**
+     * Incremented whenever any context is cancelled.
+     */
+    private static final AtomicInteger cancelEpoch = new AtomicInteger();
+
+    /**
+     * Context whose cancellation also cancels this, or {@code null} if isolated.
+     */
+    private final Group parent;
+
+    /**
+     * Value of {@link #cancelEpoch} when neither this nor any ancestor was
+     * found to be cancelled.
+     */
+    private int checkedEpoch;
     private final ConcurrentIdentityHashMap<EventExecutor, Scheduler> runMap = new ConcurrentIdentityHashMap<>();
 
+    /**
+     * Snapshot of the schedulers in {@link #runMap}, used for victim selection
+     * without iterating the map. Replaced on every change.
+     */
+    private volatile Scheduler[] victims = NO_VICTIMS;
+
+    /**
+     * Number of workers which are parked, or about to park.
+     */
+    private final AtomicInteger sleepers = new AtomicInteger();
+    private volatile WaitStrategy waitStrategy = WaitStrategy.DEFAULT;
+
     Group()
     {
-      this(getScheduler().context);
+      this(callerContext());
     }
 
     Group(Group context)
     {
-      this(context.eventExecutors);
+      this(context, false);
+    }
+
+    Group(boolean isolated)
+    {
+      this(callerContext(), isolated);
+    }
+
+    /**
+     * Returns the context of the current scheduler, or the default context when
+     * called from a thread which is not running tasks.
+     */
+    private static Group callerContext()
+    {
+      Scheduler[] r = SCHEDULER.get();
+      Scheduler s;
+      return r != null && (s = r[0]) != null && s.context != null ? s.context : TBB.defaultContext();
+    }
+
+    Group(Group context, boolean isolated)
+    {
+      this(context.eventExecutors, context.arena, isolated ? null : context);
+      this.waitStrategy = context.waitStrategy;
     }
 
     Group(EventExecutor eventExecutor)
@@ -1039,20 +1652,135 @@ public abstract class Task
     }
 
     public Group(EventExecutorGroup eventExecutors)
+    {
+      this(eventExecutors, null);
+    }
+
+    Group(EventExecutorGroup eventExecutors, TaskArena arena)
+    {
+      this(eventExecutors, arena, currentGroup());
+    }
+
+    Group(EventExecutorGroup eventExecutors, boolean isolated)
+    {
+      this(eventExecutors, null, isolated ? null : currentGroup());
+    }
+
+    Group(EventExecutorGroup eventExecutors, TaskArena arena, Group parent)
     {
       if (eventExecutors == null || eventExecutors.next() == null)
         throw new IllegalArgumentException();
 
       this.eventExecutors = eventExecutors;
+      this.arena = arena;
+      this.priority = arena != null ? arena.priority() : TaskArena.Priority.NORMAL;
+      this.parent = parent;
+      // Forces the first check to look at the ancestors.
+      this.checkedEpoch = cancelEpoch.get() - 1;
+    }
+
+    /**
+     * Returns the context which this context is bound to.
+     * @return parent context or {@code null} if isolated.
+     */
+    public TaskGroupContext parent()
+    {
+      return parent != null ? parent.self() : null;
     }
 
     protected abstract TaskGroupContext self();
 
+    private synchronized void addVictim(Scheduler scheduler)
+    {
+      Scheduler[] old = victims;
+      Scheduler[] a = Arrays.copyOf(old, old.length + 1);
+      a[old.length] = scheduler;
+      victims = a;
+    }
+
+    private synchronized void removeVictim(Scheduler scheduler)
+    {
+      Scheduler[] old = victims;
+      for (int i = 0; i < old.length; i++)
+      {
+        if (old[i] == scheduler)
+        {
+          Scheduler[] a = new Scheduler[old.length - 1];
+          System.arraycopy(old, 0, a, 0, i);
+          System.arraycopy(old, i + 1, a, i, a.length - i);
+          victims = a;
+          return;
+        }
+      }
+    }
+
     public EventExecutorGroup eventExecutorGroup()
     {
       return eventExecutors;
     }
 
+    /**
+     * Returns the arena which this context belongs to.
+     * @return arena or {@code null}
+     */
+    public TaskArena arena()
+    {
+      return arena;
+    }
+
+    /**
+     * Returns the strategy used by workers of this context when idle.
+     * @return wait strategy
+     */
+    public WaitStrategy waitStrategy()
+    {
+      return waitStrategy;
+    }
+
+    /**
+     * Sets the strategy used by workers of this context when idle.
+     * @param waitStrategy wait strategy
+     */
+    public void setWaitStrategy(WaitStrategy waitStrategy)
+    {
+      if (waitStrategy == null)
+        throw new NullPointerException("waitStrategy");
+      this.waitStrategy = waitStrategy;
+    }
+
+    /**
+     * Unparks exactly one parked worker, if there is one.
+     * @return {@code true} if a worker was woken.
+     */
+    private boolean wakeOne()
+    {
+      if (sleepers.get() == 0)
+        return false;
+      Scheduler[] a = victims;
+      int n = a.length;
+      int index = n > 1 ? ThreadLocalRandom.current().nextInt(n) : 0;
+      for (int i = 0; i < n; i++, index = index + 1 < n ? index + 1 : 0)
+      {
+        Scheduler s = a[index];
+        if (s.parked.get() != 0 && s.parked.compareAndSet(1, 0))
+        {
+          LockSupport.unpark(s.thread);
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private boolean hasStealableWork(Scheduler self)
+    {
+      for (Scheduler s : victims)
+      {
+        if (s != self && !s.deque.isEmpty())
+          return true;
+      }
+      return false;
+    }
+
     public void prepare()
         throws InterruptedException
     {
@@ -1060,7 +1788,33 @@ public abstract class Task
       {
         Task task = new EmptyTask();
         setContext(task, self());
-        executor.submit(() -> send(executor, task)).sync();
+        runAndWait(executor, () -> send(executor, task));
+      }
+    }
+
+    /**
+     * Runs the action on the executor and waits for it to complete. Workers of
+     * a {@link WorkerPool} receive it as a task in an isolated context, so that
+     * it still runs if this context is cancelled.
+     */
+    private void runAndWait(EventExecutor executor, Runnable action)
+        throws InterruptedException
+    {
+      if (!(executor instanceof WorkerPool.Worker))
+      {
+        executor.submit(action).sync();
+      }
+      else if (executor.inEventLoop())
+      {
+        action.run();
+      }
+      else
+      {
+        SignalTask task = new SignalTask(action);
+        TaskGroupContext isolated = new TaskGroupContext(self(), TaskGroupContext.Kind.ISOLATED);
+        setContext(task, isolated);
+        ((Group) isolated).dispatch(executor, task);
+        task.await();
       }
     }
 
@@ -1069,12 +1823,55 @@ public abstract class Task
       getOrCreateScheduler().execute(executor, self(), work);
     }
 
+    /**
+     * Starts executing the task on the executor. Workers of a {@link WorkerPool}
+     * receive the task directly in their queue.
+     */
+    private void dispatch(EventExecutor executor, Task task)
+    {
+      if (executor instanceof WorkerPool.Worker)
+        ((WorkerPool.Worker) executor).submit(task, priority);
+      else
+        executor.execute(() -> receive(executor, task));
+    }
+
+    /**
+     * Starts executing the task on one of the executors, without using the
+     * deque of the calling thread.
+     */
+    private void submit(Task task)
+    {
+      task.stolen = true;
+      dispatch(eventExecutors.next(), task);
+    }
+
+    private void receive(EventExecutor executor, Task task)
+    {
+      send(executor, task);
+    }
+
+    /**
+     * Passes the task directly to one of the executors, starting a worker
+     * loop there if one is not already running.
+     */
+    private void handOff(Scheduler scheduler, Task task)
+    {
+      EventExecutor executor = eventExecutors.next();
+      scheduler.pushedCount++;
+      task.stolen = true;
+      dispatch(executor, task);
+    }
+
     private void enqueue(Scheduler scheduler, Task task, Iterator<Task> it)
     {
       if (task == null)
         throw new NullPointerException();
       if (task.state != State.allocated && task.state != State.to_enqueue)
         throw new IllegalStateException();
+      if (scheduler == null)
+        scheduler = getOrCreateScheduler();
+      if (task.affinity != 0 && it == null && scheduler.spawnWithAffinity(task))
+        return;
 
       EventExecutor executor = eventExecutors.next();
       boolean inEventLoop = executor.inEventLoop();
@@ -1085,13 +1882,11 @@ public abstract class Task
         nextScheduler = getOrCreateScheduler();
         if (!nextScheduler.parents.isEmpty())
         {
-          //if (nextScheduler.localBypass.isEmpty())
-          //  nextScheduler.localBypass.add(task);
-          //else
-          //  nextScheduler.submitted.add(task);
-          nextScheduler.localBypass.add(task);
+          // Push the task last so that it is the next one we pop.
           while (it != null && it.hasNext())
-            nextScheduler.submitted.add(it.next());
+            nextScheduler.deque.push(it.next());
+          nextScheduler.deque.push(task);
+          wakeOne();
           return;
         }
       }
@@ -1102,23 +1897,22 @@ public abstract class Task
 
       if (nextScheduler == null)
       {
+        // The remaining tasks stay in our deque where the new worker can
+        // steal them.
         while (it != null && it.hasNext())
-        {
-          Task pushed = it.next();
-          scheduler.pushedCount++;
-          pushed.stolen = true;
-          nextScheduler.submitted.add(pushed);
-        }
+          scheduler.deque.push(it.next());
         scheduler.pushedCount++;
         task.stolen = true;
-        executor.execute(() -> send(executor, task));
+        dispatch(executor, task);
       }
       else
       {
-        // we add the task to the local stealable queue and the wake up the other executor.
-        scheduler.submitted.add(task);
+        // we add the task to the local stealable deque and the wake up the other executor.
         while (it != null && it.hasNext())
-          scheduler.submitted.add(it.next());
+          scheduler.deque.push(it.next());
+        scheduler.deque.push(task);
+        if (wakeOne())
+          return;
 
         for (;;)
         {
@@ -1145,7 +1939,25 @@ public abstract class Task
      */
     public boolean isGroupExecutionCancelled()
     {
-      return groupExecutionCancelled != null;
+      int epoch = cancelEpoch.get();
+      return epoch != checkedEpoch && checkCancelled(epoch);
+    }
+
+    private boolean checkCancelled(int epoch)
+    {
+      if (groupExecutionCancelled != null)
+        return true;
+      for (Group g = parent; g != null; g = g.parent)
+      {
+        Throwable cause = g.groupExecutionCancelled;
+        if (cause != null)
+        {
+          cancelGroupExecution(cause);
+          return true;
+        }
+      }
+      checkedEpoch = epoch;
+      return false;
     }
 
     /**
@@ -1163,9 +1975,10 @@ public abstract class Task
     {
       if (cause == null)
         throw new NullPointerException();
-      if (isGroupExecutionCancelled())
+      if (groupExecutionCancelled != null)
         return false;
       this.groupExecutionCancelled = cause;
+      cancelEpoch.incrementAndGet();
       return true;
     }
   }
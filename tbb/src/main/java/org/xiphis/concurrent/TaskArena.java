@@ -0,0 +1,162 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import io.netty.util.concurrent.EventExecutorGroup;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of workers which the contexts of the arena may occupy at
+ * once, and sets their priority relative to other contexts sharing the same
+ * executors. Modelled on TBB's {@code task_arena}.
+ *
+ * <p>Contexts are created in an arena with {@link #newContext()}, and
+ * contexts created while executing their tasks inherit the arena. A worker
+ * which is handed a task when the arena is already at its concurrency limit
+ * leaves the task in the arena for one of the workers already inside.</p>
+ *
+ * <p>Workers of a {@link WorkerPool} which are serving a context of lower
+ * priority run tasks of a higher priority context which were passed to them
+ * before they continue with their own local work or stealing, and run
+ * passed tasks highest priority first when idle. Other executor groups run
+ * the tasks passed to them in the order of their own queues.</p>
+ */
+public final class TaskArena
+{
+  public enum Priority
+  {
+    LOW, NORMAL, HIGH
+  }
+
+  private final EventExecutorGroup eventExecutors;
+  private final int maxConcurrency;
+  private final Priority priority;
+  private final AtomicInteger active = new AtomicInteger();
+  private final ConcurrentLinkedQueue<Task> pending = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Create a new arena of normal priority.
+   *
+   * @param eventExecutors executors which run the tasks
+   * @param maxConcurrency maximum number of workers which may execute tasks of the arena at once
+   */
+  public TaskArena(EventExecutorGroup eventExecutors, int maxConcurrency)
+  {
+    this(eventExecutors, maxConcurrency, Priority.NORMAL);
+  }
+
+  /**
+   * Create a new arena.
+   *
+   * @param eventExecutors executors which run the tasks
+   * @param maxConcurrency maximum number of workers which may execute tasks of the arena at once
+   * @param priority priority of the arena's tasks
+   */
+  public TaskArena(EventExecutorGroup eventExecutors, int maxConcurrency, Priority priority)
+  {
+    if (eventExecutors == null || priority == null)
+      throw new NullPointerException();
+    if (maxConcurrency <= 0)
+      throw new IllegalArgumentException("maxConcurrency");
+    this.eventExecutors = eventExecutors;
+    this.maxConcurrency = maxConcurrency;
+    this.priority = priority;
+  }
+
+  /**
+   * Creates a new context whose tasks are executed within this arena.
+   * @return new context
+   */
+  public TaskGroupContext newContext()
+  {
+    return new TaskGroupContext(eventExecutors, this);
+  }
+
+  public EventExecutorGroup eventExecutorGroup()
+  {
+    return eventExecutors;
+  }
+
+  public int maxConcurrency()
+  {
+    return maxConcurrency;
+  }
+
+  public Priority priority()
+  {
+    return priority;
+  }
+
+  /**
+   * Number of workers currently executing tasks of this arena.
+   * @return count
+   */
+  public int activeWorkers()
+  {
+    return active.get();
+  }
+
+  /**
+   * Attempts to take a worker slot, otherwise leaves the task in the arena.
+   * <p>On success, the task has been left in the arena regardless and should
+   * be taken with {@link #poll()}.</p>
+   *
+   * @param work task which the worker was handed
+   * @return {@code true} if the caller may execute tasks of the arena.
+   */
+  boolean enter(Task work)
+  {
+    pending.offer(work);
+    // Retried after the task is visible, so that a worker which is leaving
+    // concurrently either sees the task or leaves a slot for us.
+    return tryAcquire();
+  }
+
+  /**
+   * Releases a worker slot.
+   * @return {@code true} if tasks were left in the arena which still need a worker.
+   */
+  boolean leave()
+  {
+    active.decrementAndGet();
+    return !pending.isEmpty();
+  }
+
+  /**
+   * Takes a task which was left in the arena.
+   * @return task or {@code null}
+   */
+  Task poll()
+  {
+    return pending.poll();
+  }
+
+  private boolean tryAcquire()
+  {
+    for (;;)
+    {
+      int count = active.get();
+      if (count >= maxConcurrency)
+        return false;
+      if (active.compareAndSet(count, count + 1))
+        return true;
+    }
+  }
+
+  @Override
+  public String toString()
+  {
+    return "TaskArena{maxConcurrency=" + maxConcurrency + ", priority=" + priority + ", active=" + active + "}";
+  }
+}
@@ -21,10 +21,35 @@ import io.netty.util.concurrent.EventExecutorGroup;
  */
 public final class TaskGroupContext extends Task.Group
 {
+  /**
+   * Relationship of a new context to the context of the current task.
+   */
+  public enum Kind
+  {
+    /**
+     * Cancelling the context of the current task also cancels the new context.
+     */
+    BOUND,
+    /**
+     * The new context is only cancelled explicitly.
+     */
+    ISOLATED
+  }
+
+  /**
+   * Creates a context bound to the context of the current task. On threads
+   * which are not running tasks, the context runs on
+   * {@link TBB#defaultExecutorGroup()}.
+   */
   public TaskGroupContext()
   {
   }
 
+  public TaskGroupContext(Kind kind)
+  {
+    super(kind == Kind.ISOLATED);
+  }
+
   public TaskGroupContext(EventExecutor eventExecutor)
   {
     super(eventExecutor);
@@ -35,6 +60,33 @@ public final class TaskGroupContext extends Task.Group
     super(eventExecutors);
   }
 
+  public TaskGroupContext(EventExecutorGroup eventExecutors, Kind kind)
+  {
+    super(eventExecutors, kind == Kind.ISOLATED);
+  }
+
+  /**
+   * Creates a context which runs on the executors of the parent, and which is
+   * cancelled when the parent is cancelled.
+   */
+  TaskGroupContext(TaskGroupContext parent)
+  {
+    super(parent);
+  }
+
+  /**
+   * Creates a context which runs on the executors of the parent.
+   */
+  TaskGroupContext(TaskGroupContext parent, Kind kind)
+  {
+    super(parent, kind == Kind.ISOLATED);
+  }
+
+  TaskGroupContext(EventExecutorGroup eventExecutors, TaskArena arena)
+  {
+    super(eventExecutors, arena);
+  }
+
   @Override
   protected TaskGroupContext self()
   {
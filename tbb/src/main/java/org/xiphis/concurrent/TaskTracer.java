@@ -0,0 +1,260 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opt-in tracing of task execution.
+ *
+ * <p>While tracing is enabled, every scheduler records each task which it
+ * executes into its own preallocated ring buffer. Only the most recent
+ * records are kept once a buffer is full. When tracing is disabled, the
+ * cost is a single null check per executed task.</p>
+ *
+ * <p>Each record has an id which is unique within the trace, and the id of
+ * the latest traced execution of its parent task, or 0 if there is none.</p>
+ *
+ * <p>The buffers may be written out in the Chrome trace event format, which
+ * can be loaded by {@code chrome://tracing} or Perfetto. They should be
+ * written after tracing has been stopped, otherwise records which are being
+ * written concurrently may be inconsistent.</p>
+ */
+public final class TaskTracer
+{
+  /**
+   * Number of longs in each record.
+   */
+  private static final int RECORD_SIZE = 6;
+
+  /**
+   * Bits of a record id which hold the sequence number within its buffer.
+   * The other bits hold the index of the buffer.
+   */
+  private static final int SEQUENCE_BITS = 40;
+
+  private static final int STOLEN_FLAG = 1 << 31;
+
+  private static final ClassValue<Integer> CLASS_ID = new ClassValue<Integer>()
+  {
+    @Override
+    protected Integer computeValue(Class<?> type)
+    {
+      synchronized (classes)
+      {
+        classes.add(type);
+        return classes.size() - 1;
+      }
+    }
+  };
+
+  private static final List<Class<?>> classes = new ArrayList<>();
+  private static final CopyOnWriteArrayList<Buffer> buffers = new CopyOnWriteArrayList<>();
+  private static final AtomicInteger nextBuffer = new AtomicInteger();
+  private static volatile int capacity;
+  private static volatile long epoch;
+
+  private TaskTracer()
+  {
+  }
+
+  /**
+   * Starts tracing, discarding any previously recorded trace.
+   *
+   * @param capacity number of records kept for each thread
+   * @throws IllegalArgumentException if the capacity is not positive, or too
+   *                                  large for a buffer
+   */
+  public static synchronized void start(int capacity)
+  {
+    if (capacity <= 0 || capacity > Integer.MAX_VALUE / RECORD_SIZE)
+      throw new IllegalArgumentException("capacity");
+    TaskTracer.capacity = capacity;
+    epoch = System.nanoTime();
+    buffers.clear();
+    nextBuffer.set(0);
+    Task.setTracing(true);
+  }
+
+  /**
+   * Stops tracing. Recorded traces are kept until the next {@link #start(int)}.
+   */
+  public static synchronized void stop()
+  {
+    capacity = 0;
+    Task.setTracing(false);
+  }
+
+  /**
+   * Indicate if tracing is enabled.
+   * @return {@code true} if enabled.
+   */
+  public static boolean isEnabled()
+  {
+    return capacity > 0;
+  }
+
+  /**
+   * Writes the recorded trace in Chrome trace event JSON format.
+   *
+   * @param out destination
+   * @throws IOException if writing fails
+   */
+  public static void writeChromeTrace(Appendable out)
+      throws IOException
+  {
+    out.append("{\"traceEvents\":[");
+    boolean first = true;
+    long epoch = TaskTracer.epoch;
+    int tid = 0;
+    for (Buffer buffer : buffers)
+    {
+      tid++;
+      if (!first)
+        out.append(',');
+      first = false;
+      out.append("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":").append(Integer.toString(tid))
+         .append(",\"args\":{\"name\":");
+      appendString(out, buffer.name);
+      out.append("}}");
+
+      long[] records = buffer.records;
+      long count = buffer.count;
+      int n = (int) Math.min(count, buffer.capacity);
+      for (int i = 0; i < n; i++)
+      {
+        int r = (int) ((count - n + i) % buffer.capacity) * RECORD_SIZE;
+        long start = records[r + 1] - epoch;
+        long end = records[r + 2] - epoch;
+        int flags = (int) records[r + 3];
+        out.append(",\n{\"name\":");
+        appendString(out, className((int) records[r]));
+        out.append(",\"cat\":\"task\",\"ph\":\"X\",\"pid\":1,\"tid\":").append(Integer.toString(tid))
+           .append(",\"ts\":").append(micros(start))
+           .append(",\"dur\":").append(micros(end - start))
+           .append(",\"args\":{\"id\":").append(Long.toString(records[r + 4]))
+           .append(",\"parent\":").append(Long.toString(records[r + 5]))
+           .append(",\"depth\":").append(Integer.toString(flags & ~STOLEN_FLAG))
+           .append(",\"stolen\":").append((flags & STOLEN_FLAG) != 0 ? "true" : "false")
+           .append("}}");
+      }
+    }
+    out.append("\n]}\n");
+  }
+
+  /**
+   * Returns the recorded trace in Chrome trace event JSON format.
+   * @return trace
+   */
+  public static String toChromeTrace()
+  {
+    StringBuilder sb = new StringBuilder();
+    try
+    {
+      writeChromeTrace(sb);
+    }
+    catch (IOException e)
+    {
+      throw new IllegalStateException(e);
+    }
+    return sb.toString();
+  }
+
+  static Buffer newBuffer(String name)
+  {
+    int capacity = TaskTracer.capacity;
+    if (capacity <= 0)
+      return null;
+    Buffer buffer = new Buffer(name, capacity, nextBuffer.incrementAndGet());
+    buffers.add(buffer);
+    return buffer;
+  }
+
+  private static String className(int id)
+  {
+    synchronized (classes)
+    {
+      return id < classes.size() ? classes.get(id).getName() : "unknown";
+    }
+  }
+
+  private static String micros(long nanos)
+  {
+    nanos = Math.max(0, nanos);
+    return Long.toString(TimeUnit.NANOSECONDS.toMicros(nanos)) + "." +
+           Long.toString(1000 + nanos % 1000).substring(1);
+  }
+
+  private static void appendString(Appendable out, String s)
+      throws IOException
+  {
+    out.append('"');
+    for (int i = 0; i < s.length(); i++)
+    {
+      char c = s.charAt(i);
+      if (c == '"' || c == '\\')
+        out.append('\\').append(c);
+      else if (c < ' ')
+        out.append(String.format("\\u%04x", (int) c));
+      else
+        out.append(c);
+    }
+    out.append('"');
+  }
+
+  /**
+   * Ring buffer of trace records, written only by the owning scheduler.
+   */
+  static final class Buffer
+  {
+    private final String name;
+    private final int capacity;
+    private final long[] records;
+    private final long idBase;
+    private long sequence;
+    private long count;
+
+    private Buffer(String name, int capacity, int index)
+    {
+      this.name = name;
+      this.capacity = capacity;
+      this.records = new long[capacity * RECORD_SIZE];
+      this.idBase = (long) index << SEQUENCE_BITS;
+    }
+
+    /**
+     * Returns an id for an execution which is about to start. Ids are unique
+     * across the buffers of a trace, and never 0.
+     */
+    long nextId()
+    {
+      return idBase | ++sequence;
+    }
+
+    void record(Class<?> type, long id, long parentId, long start, long end, boolean stolen, int depth)
+    {
+      int r = (int) (count % capacity) * RECORD_SIZE;
+      records[r] = CLASS_ID.get(type);
+      records[r + 1] = start;
+      records[r + 2] = end;
+      records[r + 3] = stolen ? depth | STOLEN_FLAG : depth;
+      records[r + 4] = id;
+      records[r + 5] = parentId;
+      count++;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import org.xiphis.utils.common.Utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Determines what a worker does when it has run out of tasks to execute or
+ * steal.
+ *
+ * <p>A strategy is selected per {@link TaskGroupContext} with
+ * {@link TaskGroupContext#setWaitStrategy(WaitStrategy)} and trades CPU
+ * usage while idle against the latency of picking up newly enqueued work.</p>
+ *
+ * @see #busySpin()
+ * @see #spinThenYield(long, TimeUnit)
+ * @see #spinThenPark(long, long, TimeUnit)
+ */
+public abstract class WaitStrategy
+{
+  /**
+   * Default strategy. Workers yield briefly and then return their thread to
+   * the executor.
+   */
+  public static final WaitStrategy DEFAULT = spinThenYield(10, TimeUnit.NANOSECONDS);
+
+  /**
+   * Longest time a parked worker sleeps before checking its executor's own
+   * queue. Wake ups which race with parking are also recovered within this
+   * interval.
+   */
+  static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  WaitStrategy()
+  {
+  }
+
+  /**
+   * Workers never leave their loop and never sleep. Lowest latency, but each
+   * worker occupies a CPU until its executor is shut down, even after the
+   * context is no longer used.
+   *
+   * @return strategy
+   */
+  public static WaitStrategy busySpin()
+  {
+    return new BusySpin();
+  }
+
+  /**
+   * Workers spin, then yield their CPU until the idle time is exceeded, and
+   * then return their thread to the executor.
+   *
+   * @param idle time to remain in the loop once idle
+   * @param unit unit of {@code idle}
+   * @return strategy
+   */
+  public static WaitStrategy spinThenYield(long idle, TimeUnit unit)
+  {
+    return new SpinThenYield(unit.toNanos(idle));
+  }
+
+  /**
+   * Workers spin, then park until woken by an enqueuer or until the keep
+   * alive time is exceeded, and then return their thread to the executor.
+   *
+   * @param spin time to spin before parking
+   * @param keepAlive time to remain parked once idle
+   * @param unit unit of {@code spin} and {@code keepAlive}
+   * @return strategy
+   */
+  public static WaitStrategy spinThenPark(long spin, long keepAlive, TimeUnit unit)
+  {
+    return new SpinThenPark(unit.toNanos(spin), unit.toNanos(keepAlive));
+  }
+
+  /**
+   * Called by an idle worker each time it fails to find work.
+   * <p>Only the outermost loop of a worker waits. A loop which the worker
+   * started for another context, while running its executor's queue, returns
+   * as soon as it is out of work.</p>
+   *
+   * @param scheduler idle scheduler
+   * @param group task group which the worker is serving
+   * @param idleNanos time since the worker became idle
+   * @return {@code false} if the worker should leave its loop.
+   */
+  abstract boolean idle(Task.Scheduler scheduler, Task.Group group, long idleNanos);
+
+  private static final class BusySpin extends WaitStrategy
+  {
+    @Override
+    boolean idle(Task.Scheduler scheduler, Task.Group group, long idleNanos)
+    {
+      return true;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "busySpin";
+    }
+  }
+
+  private static final class SpinThenYield extends WaitStrategy
+  {
+    private final long idle;
+
+    SpinThenYield(long idle)
+    {
+      this.idle = idle;
+    }
+
+    @Override
+    boolean idle(Task.Scheduler scheduler, Task.Group group, long idleNanos)
+    {
+      if (idleNanos == 0)
+        return true;
+      if (idleNanos >= idle)
+        return false;
+      Utils.Yield();
+      return true;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "spinThenYield(" + idle + "ns)";
+    }
+  }
+
+  private static final class SpinThenPark extends WaitStrategy
+  {
+    private final long spin;
+    private final long keepAlive;
+
+    SpinThenPark(long spin, long keepAlive)
+    {
+      this.spin = spin;
+      this.keepAlive = spin + keepAlive;
+    }
+
+    @Override
+    boolean idle(Task.Scheduler scheduler, Task.Group group, long idleNanos)
+    {
+      if (idleNanos < spin)
+        return true;
+      if (idleNanos >= keepAlive)
+        return false;
+      scheduler.park(group, Math.min(keepAlive - idleNanos, MAX_PARK_NANOS));
+      return true;
+    }
+
+    @Override
+    public String toString()
+    {
+      return "spinThenPark(" + spin + "ns, " + (keepAlive - spin) + "ns)";
+    }
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import org.xiphis.utils.common.Utils;
+
+/**
+ * Chase-Lev work-stealing deque of tasks.
+ *
+ * <p>Only the owning scheduler may {@link #push(Task)} and {@link #pop()};
+ * these operate on the bottom of the deque and do not need an atomic
+ * instruction except when racing a thief for the last task. Any thread may
+ * {@link #steal()} from the top, which claims the task with a CAS.</p>
+ *
+ * <p>The backing array is a power of two sized circular buffer which is
+ * grown by the owner. Thieves which still hold the old array can continue
+ * to read from it safely because it is never modified after being
+ * replaced.</p>
+ */
+final class WorkStealingDeque
+{
+  /**
+   * Initial size for "array"
+   * <p/>
+   * Must be a power of 2
+   */
+  static final int _initialCapacity = 1 << 6;
+
+  private static final long topOffset;
+  private static final long bottomOffset;
+  static
+  {
+    try
+    {
+      topOffset = Utils.getUnsafe().objectFieldOffset(WorkStealingDeque.class.getDeclaredField("_top"));
+      bottomOffset = Utils.getUnsafe().objectFieldOffset(WorkStealingDeque.class.getDeclaredField("_bottom"));
+    }
+    catch (NoSuchFieldException e)
+    {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Index of the oldest task. Advanced by thieves, and by the owner when
+   * taking the last task.
+   */
+  private volatile long _top;
+
+  /**
+   * Index one past the newest task. Written only by the owner.
+   */
+  private volatile long _bottom;
+
+  /**
+   * Circular buffer of tasks. Replaced only by the owner.
+   */
+  private volatile Task[] _array = new Task[_initialCapacity];
+
+  /**
+   * Push a task onto the bottom of the deque.
+   * <p>Must only be called by the owner.</p>
+   *
+   * @param task task
+   */
+  void push(Task task)
+  {
+    long b = _bottom;
+    long t = _top;
+    Task[] a = _array;
+    if (b - t >= a.length - 1)
+    {
+      a = grow(a, b, t);
+    }
+    a[(int) b & (a.length - 1)] = task;
+    // Release store; the task slot is published before the new bottom.
+    Utils.getUnsafe().putOrderedLong(this, bottomOffset, b + 1);
+  }
+
+  /**
+   * Pop the most recently pushed task from the bottom of the deque.
+   * <p>Must only be called by the owner.</p>
+   *
+   * @return task or {@code null} if empty.
+   */
+  Task pop()
+  {
+    long b = _bottom - 1;
+    Task[] a = _array;
+    // The volatile store followed by the volatile load of _top provides the
+    // store-load barrier which the algorithm requires.
+    _bottom = b;
+    long t = _top;
+    if (t > b)
+    {
+      // Deque was empty.
+      _bottom = b + 1;
+      return null;
+    }
+    int idx = (int) b & (a.length - 1);
+    Task task = a[idx];
+    if (t == b)
+    {
+      // Last task, race against thieves.
+      if (!casTop(t, t + 1))
+      {
+        task = null;
+      }
+      _bottom = b + 1;
+    }
+    if (task != null)
+    {
+      a[idx] = null;
+    }
+    return task;
+  }
+
+  /**
+   * Steal the oldest task from the top of the deque.
+   * <p>May be called by any thread.</p>
+   *
+   * @return task or {@code null} if empty or lost a race with another thread.
+   */
+  Task steal()
+  {
+    long t = _top;
+    long b = _bottom;
+    if (t >= b)
+    {
+      return null;
+    }
+    Task[] a = _array;
+    Task task = a[(int) t & (a.length - 1)];
+    if (task == null || !casTop(t, t + 1))
+    {
+      return null;
+    }
+    return task;
+  }
+
+  /**
+   * Approximate number of tasks in the deque.
+   *
+   * @return size
+   */
+  int size()
+  {
+    long n = _bottom - _top;
+    return n > 0 ? (int) n : 0;
+  }
+
+  /**
+   * Test if the deque appears empty.
+   *
+   * @return {@code true} if empty
+   */
+  boolean isEmpty()
+  {
+    return _bottom - _top <= 0;
+  }
+
+  private boolean casTop(long expect, long update)
+  {
+    return Utils.getUnsafe().compareAndSwapLong(this, topOffset, expect, update);
+  }
+
+  private Task[] grow(Task[] old, long b, long t)
+  {
+    int oldMask = old.length - 1;
+    Task[] a = new Task[old.length << 1];
+    int mask = a.length - 1;
+    for (long i = t; i < b; i++)
+    {
+      a[(int) i & mask] = old[(int) i & oldMask];
+    }
+    _array = a;
+    return a;
+  }
+}
@@ -0,0 +1,357 @@
+/*
+ Copyright (c) 2014, Xiphis
+ All rights reserved.
+
+ Redistribution and use in source and binary forms, with or without modification, are permitted provided that the following conditions are met:
+
+ Redistributions of source code must retain the above copyright notice, this list of conditions and the following disclaimer.
+ Redistributions in binary form must reproduce the above copyright notice, this list of conditions and the following disclaimer in the documentation and/or other materials provided with the distribution.
+ Neither the name of the Xiphis nor the names of its contributors may be used to endorse or promote products derived from this software without specific prior written permission.
+ THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package org.xiphis.concurrent;
+
+import io.netty.util.concurrent.AbstractEventExecutor;
+import io.netty.util.concurrent.AbstractEventExecutorGroup;
+import io.netty.util.concurrent.DefaultPromise;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
+import org.xiphis.utils.common.Logger;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pool of dedicated worker threads for executing tasks.
+ *
+ * <p>Unlike a general purpose {@link EventExecutorGroup}, the workers are
+ * owned by the task scheduler. Tasks passed to a worker are placed directly
+ * into its queue, and an idle scheduler can run pending work from its
+ * worker without inspecting the internals of the executor.</p>
+ *
+ * <p>Use as the backend for a context with
+ * {@code new TaskGroupContext(new WorkerPool(n))}. Scheduling of delayed
+ * tasks is not supported.</p>
+ */
+public final class WorkerPool extends AbstractEventExecutorGroup
+{
+  private static final Logger LOG = Logger.getInstance(WorkerPool.class);
+
+  private static final int ST_STARTED = 0;
+  private static final int ST_SHUTTING_DOWN = 1;
+  private static final int ST_TERMINATED = 2;
+
+  private final Worker[] workers;
+  private final List<EventExecutor> children;
+  private final AtomicInteger childIndex = new AtomicInteger();
+  private final AtomicInteger terminatedChildren = new AtomicInteger();
+  private final Promise<?> terminationFuture = new DefaultPromise<Void>(GlobalEventExecutor.INSTANCE);
+  private volatile int state = ST_STARTED;
+
+  /**
+   * Create a new instance.
+   *
+   * @param nThreads the number of worker threads.
+   */
+  public WorkerPool(int nThreads)
+  {
+    this(nThreads, null);
+  }
+
+  /**
+   * Create a new instance.
+   *
+   * @param nThreads      the number of worker threads.
+   * @param threadFactory the ThreadFactory to use, or {@code null} if the default should be used.
+   */
+  public WorkerPool(int nThreads, ThreadFactory threadFactory)
+  {
+    if (nThreads <= 0)
+      throw new IllegalArgumentException("nThreads");
+    if (threadFactory == null)
+      threadFactory = new DefaultThreadFactory(WorkerPool.class);
+    workers = new Worker[nThreads];
+    for (int i = 0; i < nThreads; i++)
+      workers[i] = new Worker(this, threadFactory);
+    children = Collections.unmodifiableList(Arrays.<EventExecutor>asList(workers));
+    for (Worker worker : workers)
+      worker.thread.start();
+  }
+
+  @Override
+  public EventExecutor next()
+  {
+    return workers[(childIndex.getAndIncrement() & Integer.MAX_VALUE) % workers.length];
+  }
+
+  @Override
+  public Iterator<EventExecutor> iterator()
+  {
+    return children.iterator();
+  }
+
+  @Override
+  public boolean isShuttingDown()
+  {
+    return state >= ST_SHUTTING_DOWN;
+  }
+
+  @Override
+  public Future<?> shutdownGracefully(long quietPeriod, long timeout, TimeUnit unit)
+  {
+    if (state == ST_STARTED)
+    {
+      state = ST_SHUTTING_DOWN;
+      for (Worker worker : workers)
+        LockSupport.unpark(worker.thread);
+    }
+    return terminationFuture;
+  }
+
+  @Override
+  public Future<?> terminationFuture()
+  {
+    return terminationFuture;
+  }
+
+  @Override
+  @Deprecated
+  public void shutdown()
+  {
+    shutdownGracefully();
+  }
+
+  @Override
+  public boolean isShutdown()
+  {
+    return state >= ST_SHUTTING_DOWN;
+  }
+
+  @Override
+  public boolean isTerminated()
+  {
+    return state == ST_TERMINATED;
+  }
+
+  @Override
+  public boolean awaitTermination(long timeout, TimeUnit unit)
+      throws InterruptedException
+  {
+    return terminationFuture.await(timeout, unit);
+  }
+
+  private void childTerminated()
+  {
+    if (terminatedChildren.incrementAndGet() == workers.length)
+    {
+      state = ST_TERMINATED;
+      terminationFuture.setSuccess(null);
+    }
+  }
+
+  /**
+   * A single worker thread with its own queues.
+   */
+  static final class Worker extends AbstractEventExecutor implements Runnable
+  {
+    private final WorkerPool parent;
+    private final Thread thread;
+    /**
+     * Tasks passed to this worker, by the {@link TaskArena.Priority} of their context.
+     */
+    private final ConcurrentLinkedQueue<Task>[] tasks;
+    private final ConcurrentLinkedQueue<Runnable> runnables = new ConcurrentLinkedQueue<>();
+
+    @SuppressWarnings("unchecked")
+    private Worker(WorkerPool parent, ThreadFactory threadFactory)
+    {
+      this.parent = parent;
+      this.thread = threadFactory.newThread(this);
+      tasks = new ConcurrentLinkedQueue[TaskArena.Priority.values().length];
+      for (int i = 0; i < tasks.length; i++)
+        tasks[i] = new ConcurrentLinkedQueue<>();
+    }
+
+    @Override
+    public EventExecutorGroup parent()
+    {
+      return parent;
+    }
+
+    @Override
+    public boolean inEventLoop(Thread thread)
+    {
+      return thread == this.thread;
+    }
+
+    /**
+     * Passes a task directly to this worker.
+     * @param task task
+     * @param priority priority of the task's context
+     */
+    void submit(Task task, TaskArena.Priority priority)
+    {
+      if (parent.isShuttingDown())
+        throw new RejectedExecutionException("shutting down");
+      tasks[priority.ordinal()].offer(task);
+      wakeup();
+    }
+
+    @Override
+    public void execute(Runnable command)
+    {
+      if (command == null)
+        throw new NullPointerException("command");
+      if (parent.isShuttingDown())
+        throw new RejectedExecutionException("shutting down");
+      runnables.offer(command);
+      wakeup();
+    }
+
+    private void wakeup()
+    {
+      // The worker may be parked in its own loop or by a WaitStrategy.
+      if (Thread.currentThread() != thread)
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Runs one pending task of a priority higher than the given one.
+     * <p>Must only be called by the worker thread.</p>
+     *
+     * @param priority priority of the work which the worker is serving
+     * @return {@code true} if a task was run.
+     */
+    boolean runPending(TaskArena.Priority priority)
+    {
+      for (int i = tasks.length - 1; i > priority.ordinal(); i--)
+      {
+        Task task = tasks[i].poll();
+        if (task != null)
+        {
+          Task.executeRoot(this, task);
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Runs one pending task, highest priority first, or runnable.
+     * <p>Must only be called by the worker thread.</p>
+     *
+     * @return {@code true} if anything was run.
+     */
+    boolean runPending()
+    {
+      for (int i = tasks.length - 1; i >= 0; i--)
+      {
+        Task task = tasks[i].poll();
+        if (task != null)
+        {
+          Task.executeRoot(this, task);
+          return true;
+        }
+      }
+      Runnable runnable = runnables.poll();
+      if (runnable != null)
+      {
+        try
+        {
+          runnable.run();
+        }
+        catch (Throwable t)
+        {
+          LOG.warn("A task raised an exception.", t);
+        }
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public void run()
+    {
+      try
+      {
+        for (;;)
+        {
+          if (runPending())
+            continue;
+          if (parent.isShuttingDown() && !hasTasks() && runnables.isEmpty())
+            break;
+          LockSupport.park(this);
+        }
+      }
+      finally
+      {
+        Task.releaseScheduler();
+        parent.childTerminated();
+      }
+    }
+
+    private boolean hasTasks()
+    {
+      for (ConcurrentLinkedQueue<Task> queue : tasks)
+        if (!queue.isEmpty())
+          return true;
+      return false;
+    }
+
+    @Override
+    public boolean isShuttingDown()
+    {
+      return parent.isShuttingDown();
+    }
+
+    @Override
+    public Future<?> shutdownGracefully(long quietPeriod, long timeout, TimeUnit unit)
+    {
+      return parent.shutdownGracefully(quietPeriod, timeout, unit);
+    }
+
+    @Override
+    public Future<?> terminationFuture()
+    {
+      return parent.terminationFuture();
+    }
+
+    @Override
+    @Deprecated
+    public void shutdown()
+    {
+      parent.shutdown();
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+      return parent.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated()
+    {
+      return parent.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+        throws InterruptedException
+    {
+      return parent.awaitTermination(timeout, unit);
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package org.xiphis.concurrent;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Minimal timing harness for the main-class benchmarks in this directory.
+ * <p>{@link #scaling} runs a case on a {@link WorkerPool} of 1, 2, 4, ... up
+ * to {@link TBB#PROCESSORS} workers, installed as the default executor group
+ * so that methods which do not take a context use it. {@link #baseline} runs
+ * a case once, for comparison with code that has its own threads.</p>
+ * <p>The number of warmup and measured runs per line are read from the
+ * {@code benchmark.warmup} and {@code benchmark.runs} system properties.</p>
+ */
+final class Benchmark {
+
+  interface Body {
+    void run(int threads) throws Exception;
+  }
+
+  private final int warmup = Integer.getInteger("benchmark.warmup", 5);
+  private final int runs = Integer.getInteger("benchmark.runs", 10);
+
+  Benchmark(String title) {
+    System.out.println(title + " (" + TBB.PROCESSORS + " processors, "
+        + warmup + " warmup, " + runs + " runs, median/min ms)");
+  }
+
+  static int[] threadCounts() {
+    int[] counts = new int[0];
+    for (int n = 1; ; n *= 2) {
+      int threads = Math.min(n, TBB.PROCESSORS);
+      counts = Arrays.copyOf(counts, counts.length + 1);
+      counts[counts.length - 1] = threads;
+      if (threads == TBB.PROCESSORS) {
+        return counts;
+      }
+    }
+  }
+
+  /**
+   * Times the body on the default executor group with each worker count.
+   * @param setUp run before each iteration, not timed
+   */
+  void scaling(String label, Runnable setUp, Body body) throws Exception {
+    for (int threads : threadCounts()) {
+      WorkerPool pool = new WorkerPool(threads);
+      TBB.setDefaultExecutorGroup(pool);
+      try {
+        measure(label, threads, setUp, body);
+      } finally {
+        TBB.setDefaultExecutorGroup(null);
+        pool.shutdownGracefully();
+      }
+    }
+  }
+
+  /**
+   * Times the body once on the calling thread.
+   * @param setUp run before each iteration, not timed
+   */
+  void baseline(String label, Runnable setUp, Body body) throws Exception {
+    measure(label, 0, setUp, body);
+  }
+
+  private void measure(String label, int threads, Runnable setUp, Body body) throws Exception {
+    for (int i = 0; i < warmup; i++) {
+      setUp.run();
+      body.run(threads);
+    }
+    long[] nanos = new long[runs];
+    for (int i = 0; i < runs; i++) {
+      setUp.run();
+      long start = System.nanoTime();
+      body.run(threads);
+      nanos[i] = System.nanoTime() - start;
+    }
+    Arrays.sort(nanos);
+    System.out.println(String.format(Locale.ROOT, "  %-36s %8s %10.2f %10.2f", label,
+        threads > 0 ? threads + " thr" : "-", nanos[runs / 2] / 1e6, nanos[0] / 1e6));
+  }
+}
@@ -0,0 +1,150 @@
+package org.xiphis.concurrent;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ExternalSortTest {
+
+  private static final ExternalSort.Codec<Integer> INTS = new ExternalSort.Codec<Integer>() {
+    @Override
+    public Integer read(DataInputStream in) throws IOException {
+      try {
+        return in.readInt();
+      } catch (EOFException e) {
+        return null;
+      }
+    }
+
+    @Override
+    public void write(DataOutputStream out, Integer record) throws IOException {
+      out.writeInt(record);
+    }
+  };
+
+  private static int[] random(int n) {
+    Random random = new Random(42);
+    int[] values = new int[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = random.nextInt();
+    }
+    return values;
+  }
+
+  private static byte[] encode(int[] values) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(values.length * 4);
+    DataOutputStream out = new DataOutputStream(bytes);
+    for (int value : values) {
+      out.writeInt(value);
+    }
+    out.flush();
+    return bytes.toByteArray();
+  }
+
+  private static int[] decode(byte[] bytes) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    int[] values = new int[bytes.length / 4];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.readInt();
+    }
+    return values;
+  }
+
+  private static int[] sort(ExternalSort<Integer> sorter, int[] values) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    sorter.sort(new ByteArrayInputStream(encode(values)), out);
+    return decode(out.toByteArray());
+  }
+
+  private static long runFiles(Path directory) throws IOException {
+    try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+      return files.filter(file -> {
+        String name = file.getFileName().toString();
+        return name.startsWith("run") && name.endsWith(".tmp");
+      }).count();
+    }
+  }
+
+  @Test
+  public void testDefaultTempDirectory() throws Exception {
+    // Without a temp directory the runs are spilled to java.io.tmpdir.
+    int[] values = random(100000);
+    int[] expected = values.clone();
+    Arrays.sort(expected);
+    Path directory = Paths.get(System.getProperty("java.io.tmpdir"));
+    long before = runFiles(directory);
+    assertArrayEquals(expected, sort(new ExternalSort<>(INTS, Comparator.<Integer>naturalOrder()).setRunSize(5000),
+                                     values));
+    assertEquals("run files left behind", before, runFiles(directory));
+  }
+
+  @Test
+  public void testMultiPassMerge() throws Exception {
+    int[] values = random(50000);
+    int[] expected = values.clone();
+    Arrays.sort(expected);
+    Path directory = Files.createTempDirectory("sort");
+    try {
+      ExternalSort<Integer> sorter = new ExternalSort<>(INTS, Comparator.<Integer>naturalOrder())
+          .setRunSize(1000).setFanIn(3).setTempDirectory(directory);
+      assertArrayEquals(expected, sort(sorter, values));
+      try (java.util.stream.Stream<Path> files = Files.list(directory)) {
+        assertEquals("run files left behind", 0, files.count());
+      }
+    } finally {
+      Files.delete(directory);
+    }
+  }
+
+  @Test
+  public void testStable() throws Exception {
+    int n = 20000;
+    int[] values = new int[n];
+    for (int i = 0; i < n; i++) {
+      values[i] = (i * 7919 % 16) << 16 | i;
+    }
+    // Only the high half is compared, so equal keys must keep their order.
+    int[] result = sort(new ExternalSort<>(INTS, Comparator.comparingInt((Integer v) -> v >>> 16)).setRunSize(700)
+                            .setFanIn(4), values);
+    assertEquals(n, result.length);
+    for (int i = 1; i < n; i++) {
+      assertTrue(result[i - 1] >>> 16 < result[i] >>> 16
+                 || result[i - 1] >>> 16 == result[i] >>> 16 && (result[i - 1] & 0xffff) < (result[i] & 0xffff));
+    }
+  }
+
+  @Test
+  public void testEmptyInput() throws Exception {
+    assertEquals(0, sort(new ExternalSort<>(INTS, Comparator.<Integer>naturalOrder()), new int[0]).length);
+  }
+
+  @Test
+  public void testPaths() throws Exception {
+    int[] values = random(30000);
+    int[] expected = values.clone();
+    Arrays.sort(expected);
+    Path input = Files.createTempFile("input", ".bin");
+    Path output = Files.createTempFile("output", ".bin");
+    try {
+      Files.write(input, encode(values));
+      new ExternalSort<>(INTS, Comparator.<Integer>naturalOrder()).setRunSize(4096).sort(input, output);
+      assertArrayEquals(expected, decode(Files.readAllBytes(output)));
+    } finally {
+      Files.delete(input);
+      Files.delete(output);
+    }
+  }
+}
@@ -0,0 +1,240 @@
+package org.xiphis.concurrent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MappedFileRangeConceptTest {
+
+  private static final int WINDOW = 64;
+  private static final int OVERLAP = 32;
+
+  private Path file;
+  private byte[] contents;
+
+  @Before
+  public void setUp() throws IOException {
+    file = Files.createTempFile("mapped", ".txt");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.delete(file);
+  }
+
+  private void write(String text) throws IOException {
+    contents = text.getBytes(StandardCharsets.US_ASCII);
+    Files.write(file, contents);
+  }
+
+  /**
+   * Records of varying length up to 20 bytes, so that many cross the end
+   * of a window.
+   */
+  private void writeRecords(int count) throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      for (int j = 0; j < i % 13; j++) {
+        text.append('x');
+      }
+      text.append(i).append('\n');
+    }
+    write(text.toString());
+  }
+
+  private MappedFileRangeConcept concept(int grainsize, int maxRecordSize) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return new MappedFileRangeConcept(channel, grainsize, MappedFileRangeConcept.NEWLINE, WINDOW, maxRecordSize);
+    }
+  }
+
+  private static String text(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return new String(bytes, StandardCharsets.US_ASCII);
+  }
+
+  private void assertWholeRecords(MappedFileRangeConcept.FileRange range) {
+    assertTrue(range.begin() == 0 || contents[(int) range.begin() - 1] == '\n');
+    assertTrue(range.end() == contents.length || contents[(int) range.end() - 1] == '\n');
+  }
+
+  /**
+   * Splits the range as far as it goes, and checks that every piece is made
+   * of whole records which can be read from a single window.
+   */
+  private List<MappedFileRangeConcept.FileRange> splitFully(MappedFileRangeConcept.FileRange range) {
+    List<MappedFileRangeConcept.FileRange> pieces = new ArrayList<>();
+    Deque<MappedFileRangeConcept.FileRange> pending = new ArrayDeque<>();
+    pending.push(range);
+    while (!pending.isEmpty()) {
+      MappedFileRangeConcept.FileRange r = pending.pop();
+      if (r.isDivisible()) {
+        MappedFileRangeConcept.FileRange right = r.concept().split(r);
+        assertTrue(r.end() == right.begin());
+        pending.push(right);
+        pending.push(r);
+      } else {
+        pieces.add(r);
+      }
+    }
+    long position = 0;
+    for (MappedFileRangeConcept.FileRange piece : pieces) {
+      assertEquals(position, piece.begin());
+      assertWholeRecords(piece);
+      assertEquals(new String(contents, (int) piece.begin(), (int) piece.length(), StandardCharsets.US_ASCII),
+          text(piece.buffer()));
+      position = piece.end();
+    }
+    assertEquals(contents.length, position);
+    return pieces;
+  }
+
+  @Test
+  public void testSplitAcrossManyWindows() throws IOException {
+    writeRecords(2000);
+    MappedFileRangeConcept concept = concept(1 << 20, OVERLAP);
+    assertTrue(concept.length() > 100 * WINDOW);
+    // The grainsize is larger than the file, so only the window
+    // boundaries split it, into one piece per window. The last window is
+    // left empty when the record crossing into it ends the file.
+    List<MappedFileRangeConcept.FileRange> pieces = splitFully(concept.newInstance());
+    long windows = (concept.length() + WINDOW - 1) / WINDOW;
+    assertTrue(pieces.size() == windows || pieces.size() == windows - 1);
+    splitFully(concept(16, OVERLAP).newInstance());
+  }
+
+  @Test
+  public void testRecordStraddlingWindowBoundary() throws IOException {
+    // Records of ten bytes, so the one at 60 crosses into the second window.
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 20; i++) {
+      text.append(String.format("%09d\n", i));
+    }
+    write(text.toString());
+    MappedFileRangeConcept concept = concept(1 << 20, OVERLAP);
+    // Split at the boundary of the first two windows, the one nearest the middle.
+    MappedFileRangeConcept.FileRange range = concept.newInstance(0, 100);
+    assertTrue(range.isDivisible());
+    MappedFileRangeConcept.FileRange right = concept.split(range);
+    // The straddling record stays whole, in the window where it starts.
+    assertEquals(70, range.end());
+    assertEquals(70, right.begin());
+    assertEquals(text.substring(0, 70), text(range.buffer()));
+    splitFully(concept.newInstance());
+  }
+
+  @Test
+  public void testRecordLongerThanOverlap() throws IOException {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 10; i++) {
+      text.append(String.format("%039d\n", i));
+    }
+    write(text.toString());
+    MappedFileRangeConcept concept = concept(1 << 20, 8);
+    // The record at 40 ends at 80, beyond the overlap of the first window.
+    MappedFileRangeConcept.FileRange range = concept.newInstance(0, 120);
+    try {
+      range.isDivisible();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void testBuffer() throws IOException {
+    writeRecords(100);
+    MappedFileRangeConcept concept = concept(16, OVERLAP);
+    assertEquals(0, concept.newInstance(10, 10).buffer().remaining());
+
+    int end = 0;
+    while (end < WINDOW / 2) {
+      end = new String(contents, StandardCharsets.US_ASCII).indexOf('\n', end) + 1;
+    }
+    ByteBuffer buffer = concept.newInstance(0, end).buffer();
+    assertEquals(0, buffer.position());
+    assertEquals(end, buffer.remaining());
+    assertEquals(new String(contents, 0, end, StandardCharsets.US_ASCII), text(buffer));
+
+    try {
+      concept.newInstance().buffer();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void testParallelForReadsEveryRecord() throws IOException {
+    writeRecords(2000);
+    MappedFileRangeConcept concept = concept(16, OVERLAP);
+    Map<Long, String> pieces = new ConcurrentSkipListMap<>();
+    Parallel.parallelFor(concept.newInstance(), (Parallel.Body<MappedFileRangeConcept.FileRange>) r ->
+        pieces.put(r.begin(), text(r.buffer())), SimplePartitionerConcept.<MappedFileRangeConcept.FileRange>newInstance());
+    StringBuilder text = new StringBuilder();
+    for (String piece : pieces.values()) {
+      text.append(piece);
+    }
+    assertEquals(new String(contents, StandardCharsets.US_ASCII), text.toString());
+  }
+
+  private static final class Failures implements Parallel.ReduceBody<MappedFileRangeConcept.FileRange, Failures> {
+    final AtomicInteger failures;
+
+    Failures(AtomicInteger failures) {
+      this.failures = failures;
+    }
+
+    @Override
+    public Failures split() {
+      return new Failures(failures);
+    }
+
+    @Override
+    public void join(Failures rhs) {
+    }
+
+    @Override
+    public void apply(MappedFileRangeConcept.FileRange range) {
+      try {
+        range.buffer();
+      } catch (IllegalStateException e) {
+        failures.incrementAndGet();
+      }
+    }
+  }
+
+  @Test
+  public void testStaticPartitionerLeavesRangesSpanningWindows() throws IOException {
+    // Far more windows than static chunks, so some chunk spans windows.
+    writeRecords(8000);
+    MappedFileRangeConcept concept = concept(16, OVERLAP);
+    assertTrue(concept.length() / WINDOW > 8 * TBB.PROCESSORS);
+
+    AtomicInteger failures = new AtomicInteger();
+    Parallel.parallelFor(concept.newInstance(), new Failures(failures),
+        StaticPartitionerConcept.<MappedFileRangeConcept.FileRange>newInstance());
+    assertTrue(failures.get() > 0);
+
+    failures.set(0);
+    Parallel.parallelDeterministicReduce(concept.newInstance(), new Failures(failures),
+        StaticPartitionerConcept.<MappedFileRangeConcept.FileRange>newInstance(), new TaskGroupContext());
+    assertTrue(failures.get() > 0);
+  }
+}
@@ -0,0 +1,86 @@
+package org.xiphis.concurrent;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class OrderedBufferTest {
+
+  private static OrderedBuffer.TaskInfo<Object> item(int token, Object object) {
+    OrderedBuffer.TaskInfo<Object> info = new OrderedBuffer.TaskInfo<>();
+    info._token = token;
+    info._tokenReady = true;
+    info._object = object;
+    return info;
+  }
+
+  @Test
+  public void testStaleTokenDoesNotTakeWrappedItem() {
+    OrderedBuffer<Object> buffer = new OrderedBuffer<>(true, false);
+    int size = OrderedBuffer._initialBufferSize;
+    buffer._lowToken = 1;
+    buffer._highToken.set(size + 1);
+    Object object = new Object();
+    // Parked in the same slot as token 0, one turn of the ring later.
+    buffer.putItem(item(size, object));
+    assertEquals(1, buffer.depth());
+
+    // A waker which still sees token 0 must leave it alone.
+    buffer._lowToken = 0;
+    OrderedBuffer.TaskInfo<Object> taken = new OrderedBuffer.TaskInfo<>();
+    assertFalse(buffer.returnItem(taken, false));
+    assertEquals(1, buffer.depth());
+
+    buffer._lowToken = size;
+    assertTrue(buffer.returnItem(taken, true));
+    assertSame(object, taken._object);
+    assertEquals(size + 1, buffer.getLowToken());
+    assertEquals(0, buffer.depth());
+  }
+
+  @Test
+  public void testSerialStagesKeepOrder() throws Exception {
+    int items = 200000;
+    WorkerPool pool = new WorkerPool(4);
+    try {
+      for (Filter.Mode last : new Filter.Mode[]{Filter.Mode.serial_in_order, Filter.Mode.serial_out_of_order}) {
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger expected = new AtomicInteger();
+        AtomicInteger count = new AtomicInteger();
+        Pipeline<Object> pipeline = new Pipeline<>();
+        pipeline.addFilter(new Filter<Object>(Filter.Mode.serial_in_order) {
+          @Override
+          public Object operator(Object item) {
+            int value = next.getAndIncrement();
+            return value < items ? value : null;
+          }
+        });
+        pipeline.addFilter(new Filter<Object>(Filter.Mode.parallel) {
+          @Override
+          public Object operator(Object item) {
+            return item;
+          }
+        });
+        pipeline.addFilter(new Filter<Object>(last) {
+          @Override
+          public Object operator(Object item) {
+            if (last == Filter.Mode.serial_in_order) {
+              assertEquals(expected.getAndIncrement(), ((Integer) item).intValue());
+            }
+            count.incrementAndGet();
+            return item;
+          }
+        });
+        // Few tokens, so that the ring of each buffer wraps many times.
+        pipeline.run(8, new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED));
+        assertEquals(items, count.get());
+      }
+    } finally {
+      pool.shutdownGracefully();
+      assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+}
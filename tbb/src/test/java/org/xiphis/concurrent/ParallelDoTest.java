@@ -0,0 +1,102 @@
+package org.xiphis.concurrent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class ParallelDoTest {
+
+  private static final int ITEMS = 1000;
+
+  private WorkerPool pool;
+  private TaskGroupContext context;
+
+  @Before
+  public void setUp() {
+    pool = new WorkerPool(4);
+    context = new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.shutdownGracefully();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Counts each item, and adds the item plus {@link #ITEMS} for every item
+   * below {@link #ITEMS}.
+   */
+  private ParallelDo<Integer> counter(AtomicIntegerArray seen) {
+    return new ParallelDo<Integer>(context) {
+      @Override
+      protected void operator(Integer item) {
+        seen.incrementAndGet(item);
+        if (item < ITEMS) {
+          add(item + ITEMS);
+        }
+      }
+    };
+  }
+
+  private static Integer[] items() {
+    Integer[] items = new Integer[ITEMS];
+    for (int i = 0; i < ITEMS; i++) {
+      items[i] = i;
+    }
+    return items;
+  }
+
+  private static void assertSeenOnce(AtomicIntegerArray seen) {
+    for (int i = 0; i < seen.length(); i++) {
+      assertEquals("item " + i, 1, seen.get(i));
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testStartIterator() {
+    AtomicIntegerArray seen = new AtomicIntegerArray(2 * ITEMS);
+    List<Integer> items = new ArrayList<>();
+    for (Integer item : items()) {
+      items.add(item);
+    }
+    counter(seen).start(items.iterator());
+    assertSeenOnce(seen);
+  }
+
+  @Test(timeout = 10000)
+  public void testStartArray() {
+    AtomicIntegerArray seen = new AtomicIntegerArray(2 * ITEMS);
+    counter(seen).start(items());
+    assertSeenOnce(seen);
+  }
+
+  @Test(timeout = 10000)
+  public void testStartList() {
+    AtomicIntegerArray seen = new AtomicIntegerArray(2 * ITEMS);
+    List<Integer> items = new LinkedList<>();
+    for (Integer item : items()) {
+      items.add(item);
+    }
+    counter(seen).start(items);
+    assertSeenOnce(seen);
+  }
+
+  @Test(timeout = 10000)
+  public void testStartEmpty() {
+    AtomicIntegerArray seen = new AtomicIntegerArray(1);
+    ParallelDo<Integer> loop = counter(seen);
+    loop.start(new ArrayList<Integer>().iterator());
+    loop.start(new Integer[0]);
+    loop.start(new LinkedList<>());
+    assertEquals(0, seen.get(0));
+  }
+}
@@ -0,0 +1,95 @@
+package org.xiphis.concurrent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class ParallelForEachTest {
+
+  private WorkerPool pool;
+  private TaskGroupContext context;
+
+  @Before
+  public void setUp() {
+    pool = new WorkerPool(4);
+    context = new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.shutdownGracefully();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  private static List<Integer> range(int size) {
+    List<Integer> items = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      items.add(i);
+    }
+    return items;
+  }
+
+  @Test
+  public void testWithoutFeeding() {
+    AtomicIntegerArray seen = new AtomicIntegerArray(10000);
+    Parallel.forEach(range(seen.length()), (item, feeder) -> seen.incrementAndGet(item), context);
+    for (int i = 0; i < seen.length(); i++) {
+      assertEquals("item " + i, 1, seen.get(i));
+    }
+  }
+
+  @Test
+  public void testEmpty() {
+    AtomicInteger calls = new AtomicInteger();
+    Parallel.forEach(Collections.<Integer>emptyList(), (item, feeder) -> calls.incrementAndGet(), context);
+    assertEquals(0, calls.get());
+  }
+
+  /**
+   * Each item below the size of the array feeds its two children in an
+   * implicit binary tree, so a single element source grows to every index,
+   * sharing the stack of fed items once it fills.
+   */
+  @Test
+  public void testFedItemsProcessedOnce() {
+    AtomicIntegerArray seen = new AtomicIntegerArray(100000);
+    Parallel.forEach(Collections.singletonList(0), (item, feeder) -> {
+      seen.incrementAndGet(item);
+      for (int child = 2 * item + 1; child <= 2 * item + 2; child++) {
+        if (child < seen.length()) {
+          feeder.add(child);
+        }
+      }
+    }, context);
+    for (int i = 0; i < seen.length(); i++) {
+      assertEquals("item " + i, 1, seen.get(i));
+    }
+  }
+
+  /**
+   * Each element of the source starts a chain of fed items, so that the
+   * count includes both pulled and fed items.
+   */
+  @Test
+  public void testItemCountIncludesFedItems() {
+    int size = 1000;
+    int depth = 40;
+    AtomicInteger calls = new AtomicInteger();
+    Parallel.forEach(Collections.nCopies(size, depth - 1), (remaining, feeder) -> {
+      calls.incrementAndGet();
+      if (remaining > 0) {
+        feeder.add(remaining - 1);
+      }
+    }, context);
+    assertEquals(size * depth, calls.get());
+  }
+}
@@ -0,0 +1,141 @@
+package org.xiphis.concurrent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ParallelLoopTest {
+
+  private WorkerPool pool;
+  private TaskGroupContext context;
+
+  @Before
+  public void setUp() {
+    pool = new WorkerPool(4);
+    context = new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.shutdownGracefully();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Runs forRange and checks that the subranges tile the interval.
+   */
+  private void assertTiles(long from, long to, long grain) {
+    List<long[]> ranges = new ArrayList<>();
+    Parallel.forRange(from, to, grain, (begin, end) -> {
+      assertTrue(Long.compareUnsigned(end - begin, grain) <= 0);
+      synchronized (ranges) {
+        ranges.add(new long[]{begin, end});
+      }
+    }, context);
+    ranges.sort((a, b) -> Long.compare(a[0], b[0]));
+    long position = from;
+    for (long[] range : ranges) {
+      assertEquals(position, range[0]);
+      assertTrue(range[0] < range[1]);
+      position = range[1];
+    }
+    assertEquals(to, position);
+  }
+
+  @Test
+  public void testEmptyRanges() {
+    AtomicInteger calls = new AtomicInteger();
+    Parallel.forEach(5, 5, 1, i -> calls.incrementAndGet(), context);
+    Parallel.forEach(5, 3, 1, i -> calls.incrementAndGet(), context);
+    Parallel.forRange(7, 7, 1, (begin, end) -> calls.incrementAndGet(), context);
+    Parallel.forRange(7, -7, 1, (begin, end) -> calls.incrementAndGet(), context);
+    assertEquals(0, calls.get());
+    assertEquals(42, Parallel.reduce(3, 3, 1, 42, i -> calls.incrementAndGet(), Long::sum, context));
+    assertEquals(42, Parallel.reduce(3, 1, 1, 42, i -> calls.incrementAndGet(), Long::sum, context));
+    assertEquals(0, calls.get());
+  }
+
+  private static void assertIllegalGrain(Runnable loop) {
+    try {
+      loop.run();
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  @Test
+  public void testGrainMustBePositive() {
+    for (int grain : new int[]{0, -1, Integer.MIN_VALUE}) {
+      assertIllegalGrain(() -> Parallel.forEach(0, 10, grain, i -> { }, context));
+      assertIllegalGrain(() -> Parallel.forRange(0, 10, grain, (begin, end) -> { }, context));
+      assertIllegalGrain(() -> Parallel.reduce(0, 10, grain, 0, i -> i, Long::sum, context));
+    }
+    assertIllegalGrain(() -> Parallel.forRange(0, 10, Long.MIN_VALUE, (begin, end) -> { }, context));
+  }
+
+  @Test
+  public void testForEachVisitsEachIndexOnce() {
+    int n = 100000;
+    for (int grain : new int[]{1, 7, 1000, n, Integer.MAX_VALUE}) {
+      AtomicIntegerArray seen = new AtomicIntegerArray(n);
+      Parallel.forEach(0, n, grain, seen::incrementAndGet, context);
+      for (int i = 0; i < n; i++) {
+        assertEquals(1, seen.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void testForEachNearIntegerLimits() {
+    AtomicLong sum = new AtomicLong();
+    AtomicInteger count = new AtomicInteger();
+    Parallel.forEach(Integer.MAX_VALUE - 1000, Integer.MAX_VALUE, 3, i -> {
+      sum.addAndGet(i);
+      count.incrementAndGet();
+    }, context);
+    assertEquals(1000, count.get());
+    assertEquals(1000L * (Integer.MAX_VALUE - 1000) + 999L * 1000 / 2, sum.get());
+
+    count.set(0);
+    Parallel.forEach(Integer.MIN_VALUE, Integer.MIN_VALUE + 1000, 3, i -> count.incrementAndGet(), context);
+    assertEquals(1000, count.get());
+  }
+
+  @Test
+  public void testForRangeNearLongLimits() {
+    assertTiles(Long.MAX_VALUE - 1000, Long.MAX_VALUE, 7);
+    assertTiles(Long.MIN_VALUE, Long.MIN_VALUE + 1000, 7);
+    assertTiles(-500, 500, 1);
+    // Wider than Long.MAX_VALUE.
+    assertTiles(Long.MIN_VALUE, Long.MAX_VALUE, 1L << 58);
+    assertTiles(Long.MIN_VALUE + 1, Long.MAX_VALUE - 1, Long.MAX_VALUE / 5);
+  }
+
+  @Test
+  public void testReduceMatchesSerialLoop() {
+    int[][] bounds = {{0, 100000}, {-5000, 5000}, {Integer.MAX_VALUE - 10000, Integer.MAX_VALUE},
+        {Integer.MIN_VALUE, Integer.MIN_VALUE + 10000}};
+    for (int[] bound : bounds) {
+      for (int grain : new int[]{1, 13, 4096}) {
+        long sum = 0;
+        long max = Long.MIN_VALUE;
+        for (int i = bound[0]; i < bound[1]; i++) {
+          sum += (long) i * i;
+          max = Math.max(max, i % 977 * (long) i);
+        }
+        assertEquals(sum, Parallel.reduce(bound[0], bound[1], grain, 0, i -> (long) i * i, Long::sum, context));
+        assertEquals(max, Parallel.reduce(bound[0], bound[1], grain, Long.MIN_VALUE, i -> i % 977 * (long) i,
+            Math::max, context));
+      }
+    }
+  }
+}
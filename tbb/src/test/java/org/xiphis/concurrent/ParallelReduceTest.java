@@ -0,0 +1,219 @@
+package org.xiphis.concurrent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class ParallelReduceTest {
+
+  private static final int SIZE = 100000;
+
+  private static final class Sum implements Parallel.ReduceBody<IntRangeConcept.IntRange, Sum> {
+    long sum;
+
+    @Override
+    public Sum split() {
+      return new Sum();
+    }
+
+    @Override
+    public void join(Sum rhs) {
+      sum += rhs.sum;
+    }
+
+    @Override
+    public void apply(IntRangeConcept.IntRange range) {
+      for (int i = range.begin(); i < range.end(); i++) {
+        sum += (long) i * i;
+      }
+    }
+  }
+
+  /**
+   * Sum of terms of mixed magnitude, whose floating point result depends on
+   * where the range is split and in which order the parts are joined.
+   */
+  private static final class DoubleSum implements Parallel.ReduceBody<IntRangeConcept.IntRange, DoubleSum> {
+    double sum;
+
+    @Override
+    public DoubleSum split() {
+      return new DoubleSum();
+    }
+
+    @Override
+    public void join(DoubleSum rhs) {
+      sum += rhs.sum;
+    }
+
+    @Override
+    public void apply(IntRangeConcept.IntRange range) {
+      for (int i = range.begin(); i < range.end(); i++) {
+        sum += (i % 3 == 0 ? 1e10 : 1.0) / (i + 1);
+      }
+    }
+  }
+
+  /**
+   * Records the leaf ranges, which all bodies share.
+   */
+  private static final class Leaves implements Parallel.ReduceBody<IntRangeConcept.IntRange, Leaves> {
+    final List<IntRangeConcept.IntRange> ranges;
+
+    Leaves(List<IntRangeConcept.IntRange> ranges) {
+      this.ranges = ranges;
+    }
+
+    @Override
+    public Leaves split() {
+      return this;
+    }
+
+    @Override
+    public void join(Leaves rhs) {
+    }
+
+    @Override
+    public void apply(IntRangeConcept.IntRange range) {
+      synchronized (ranges) {
+        ranges.add(range);
+      }
+    }
+  }
+
+  private static long serialSum() {
+    long sum = 0;
+    for (int i = 0; i < SIZE; i++) {
+      sum += (long) i * i;
+    }
+    return sum;
+  }
+
+  /**
+   * Reduces with a fresh partitioner from the supplier many times on
+   * several workers, so that some right children are stolen and reduce
+   * into split bodies, which must all be joined into the body passed in.
+   */
+  private static <P extends PartitionerConcept<IntRangeConcept.IntRange, P>.Partitioner>
+  void assertReduce(Supplier<P> partitioner) throws Exception {
+    WorkerPool pool = new WorkerPool(4);
+    try {
+      TaskGroupContext context = new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED);
+      for (int rep = 0; rep < 50; rep++) {
+        Sum body = new Sum();
+        Parallel.parallelReduce(new IntRangeConcept(100).newInstance(0, SIZE), body, partitioner.get(), context);
+        assertEquals(serialSum(), body.sum);
+      }
+    } finally {
+      pool.shutdownGracefully();
+      assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testReduceAuto() throws Exception {
+    assertReduce(() -> new AutoPartitionerConcept<IntRangeConcept.IntRange>().clone(null));
+  }
+
+  @Test
+  public void testReduceSimple() throws Exception {
+    assertReduce(SimplePartitionerConcept::newInstance);
+  }
+
+  @Test
+  public void testReduceStatic() throws Exception {
+    assertReduce(StaticPartitionerConcept::newInstance);
+  }
+
+  @Test
+  public void testReduceAffinity() throws Exception {
+    assertReduce(AffinityPartitionerConcept::newInstance);
+  }
+
+  @Test
+  public void testReduceDefaultPartitioner() throws Exception {
+    Sum body = new Sum();
+    Parallel.parallelReduce(new IntRangeConcept(100).newInstance(0, SIZE), body);
+    assertEquals(serialSum(), body.sum);
+  }
+
+  @Test
+  public void testReduceEmptyRange() throws Exception {
+    Sum body = new Sum();
+    Parallel.parallelReduce(new IntRangeConcept(100).newInstance(0, 0), body,
+        SimplePartitionerConcept.<IntRangeConcept.IntRange>newInstance());
+    assertEquals(0, body.sum);
+  }
+
+  /**
+   * Repeats a deterministic reduce of a double sum on several workers, and
+   * checks that every result has the same bits as the first.
+   */
+  private static void assertDeterministic(BiConsumer<DoubleSum, TaskGroupContext> reduce) throws Exception {
+    WorkerPool pool = new WorkerPool(4);
+    try {
+      TaskGroupContext context = new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED);
+      long expected = 0;
+      for (int rep = 0; rep < 200; rep++) {
+        DoubleSum body = new DoubleSum();
+        reduce.accept(body, context);
+        if (rep == 0) {
+          expected = Double.doubleToRawLongBits(body.sum);
+        } else {
+          assertEquals("repetition " + rep, expected, Double.doubleToRawLongBits(body.sum));
+        }
+      }
+    } finally {
+      pool.shutdownGracefully();
+      assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testDeterministicReduceSimple() throws Exception {
+    assertDeterministic((body, context) -> Parallel.parallelDeterministicReduce(
+        new IntRangeConcept(100).newInstance(0, SIZE), body,
+        SimplePartitionerConcept.<IntRangeConcept.IntRange>newInstance(), context));
+  }
+
+  @Test
+  public void testDeterministicReduceStatic() throws Exception {
+    // An explicit chunk count, so that the range is split on any machine.
+    StaticPartitionerConcept<IntRangeConcept.IntRange> concept = new StaticPartitionerConcept<>();
+    assertDeterministic((body, context) -> Parallel.parallelDeterministicReduce(
+        new IntRangeConcept(100).newInstance(0, SIZE), body, concept.new StaticPartitioner(6), context));
+  }
+
+  /**
+   * Checks that a static partitioner splits into equal chunks when the
+   * number of chunks is not a power of two.
+   */
+  @Test
+  public void testStaticChunksEqual() throws Exception {
+    StaticPartitionerConcept<IntRangeConcept.IntRange> concept = new StaticPartitionerConcept<>();
+    for (int chunks = 1; chunks <= 12; chunks++) {
+      for (int size : new int[]{chunks, 1000, 1001, 9999}) {
+        List<IntRangeConcept.IntRange> ranges = new ArrayList<>();
+        Parallel.parallelDeterministicReduce(new IntRangeConcept().newInstance(0, size), new Leaves(ranges),
+            concept.new StaticPartitioner(chunks), new TaskGroupContext());
+        assertEquals("chunks " + chunks + " size " + size, chunks, ranges.size());
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        int total = 0;
+        for (IntRangeConcept.IntRange range : ranges) {
+          min = Math.min(min, range.size());
+          max = Math.max(max, range.size());
+          total += range.size();
+        }
+        assertEquals(size, total);
+        assertTrue("chunks " + chunks + " size " + size + ": " + min + ".." + max, max - min <= 1);
+      }
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package org.xiphis.concurrent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class ParallelWhileTest {
+
+  private WorkerPool pool;
+
+  @Before
+  public void setUp() {
+    pool = new WorkerPool(4);
+    TBB.setDefaultExecutorGroup(pool);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    TBB.setDefaultExecutorGroup(null);
+    pool.shutdownGracefully();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Stream of the integers below the limit.
+   */
+  private static ParallelWhile.Stream<Integer> stream(int limit) {
+    AtomicInteger next = new AtomicInteger();
+    return action -> {
+      int value = next.getAndIncrement();
+      if (value >= limit) {
+        return false;
+      }
+      action.accept(value);
+      return true;
+    };
+  }
+
+  /**
+   * Runs the loop over streams ending after every group size, so that the
+   * last group is sometimes empty.
+   */
+  @Test(timeout = 30000)
+  public void testRunEndsMidGroup() {
+    for (int limit = 0; limit < 300; limit += 7) {
+      AtomicIntegerArray seen = new AtomicIntegerArray(Math.max(limit, 1));
+      new ParallelWhile<Integer>().run(stream(limit), seen::incrementAndGet);
+      for (int i = 0; i < limit; i++) {
+        assertEquals("limit " + limit + " item " + i, 1, seen.get(i));
+      }
+    }
+  }
+
+  @Test(timeout = 10000)
+  public void testRunEmpty() {
+    AtomicInteger calls = new AtomicInteger();
+    new ParallelWhile<Integer>().run(stream(0), item -> calls.incrementAndGet());
+    assertEquals(0, calls.get());
+  }
+
+  @Test(timeout = 10000)
+  public void testAdd() {
+    int items = 1000;
+    AtomicIntegerArray seen = new AtomicIntegerArray(2 * items);
+    ParallelWhile<Integer> loop = new ParallelWhile<>();
+    loop.run(stream(items), item -> {
+      seen.incrementAndGet(item);
+      if (item < items) {
+        loop.add(item + items);
+      }
+    });
+    for (int i = 0; i < seen.length(); i++) {
+      assertEquals("item " + i, 1, seen.get(i));
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package org.xiphis.concurrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of the input buffers of serial filters. Items pass from a
+ * serial input filter through a parallel filter into a serial filter, so
+ * every item is parked in, and taken from, an {@link OrderedBuffer}.
+ */
+public class PipelineBenchmark {
+
+  private static final int ITEMS = Integer.getInteger("benchmark.items", 200000);
+
+  private static volatile long sink;
+
+  private static Pipeline<Object> pipeline(Filter.Mode output, int work) {
+    AtomicInteger next = new AtomicInteger();
+    Pipeline<Object> pipeline = new Pipeline<>();
+    pipeline.addFilter(new Filter<Object>(Filter.Mode.serial_in_order) {
+      @Override
+      public Object operator(Object item) {
+        int value = next.getAndIncrement();
+        return value < ITEMS ? value : null;
+      }
+    });
+    pipeline.addFilter(new Filter<Object>(Filter.Mode.parallel) {
+      @Override
+      public Object operator(Object item) {
+        long value = (Integer) item;
+        for (int i = 0; i < work; i++) {
+          value = value * 6364136223846793005L + 1442695040888963407L;
+        }
+        return value;
+      }
+    });
+    pipeline.addFilter(new Filter<Object>(output) {
+      @Override
+      public Object operator(Object item) {
+        sink += (Long) item;
+        return item;
+      }
+    });
+    return pipeline;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Benchmark benchmark = new Benchmark("Pipeline, " + ITEMS + " items");
+    for (int work : new int[]{0, 1000}) {
+      for (Filter.Mode mode : new Filter.Mode[]{Filter.Mode.serial_in_order, Filter.Mode.serial_out_of_order}) {
+        benchmark.scaling(mode + ", work " + work, () -> { }, threads -> pipeline(mode, work).run(4 * threads));
+      }
+    }
+  }
+}
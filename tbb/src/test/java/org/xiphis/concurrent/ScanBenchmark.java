@@ -0,0 +1,29 @@
+package org.xiphis.concurrent;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the parallel prefix sums with a serial loop and with
+ * {@link Arrays#parallelPrefix}, which runs on the common fork/join pool.
+ */
+public class ScanBenchmark {
+
+  private static final int SIZE = Integer.getInteger("benchmark.size", 16 << 20);
+
+  public static void main(String[] args) throws Exception {
+    long[] input = new Random(42).longs(SIZE, 0, 1000).toArray();
+    long[] values = new long[SIZE];
+    Runnable copy = () -> System.arraycopy(input, 0, values, 0, SIZE);
+
+    Benchmark benchmark = new Benchmark("Inclusive scan, " + SIZE + " longs");
+    benchmark.baseline("serial loop", copy, threads -> {
+      long sum = 0;
+      for (int i = 0; i < SIZE; i++) {
+        values[i] = sum += values[i];
+      }
+    });
+    benchmark.baseline("Arrays.parallelPrefix", copy, threads -> Arrays.parallelPrefix(values, Long::sum));
+    benchmark.scaling("inclusiveScan", copy, threads -> Parallel.inclusiveScan(values, Long::sum));
+  }
+}
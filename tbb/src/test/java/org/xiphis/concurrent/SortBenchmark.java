@@ -0,0 +1,34 @@
+package org.xiphis.concurrent;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the parallel sorts with {@link Arrays#parallelSort}, which runs on
+ * the common fork/join pool and therefore does not vary with the worker count.
+ */
+public class SortBenchmark {
+
+  private static final int SIZE = Integer.getInteger("benchmark.size", 4 << 20);
+
+  public static void main(String[] args) throws Exception {
+    int[] input = new Random(42).ints(SIZE).toArray();
+    int[] ints = new int[SIZE];
+    Integer[] boxed = new Integer[SIZE];
+    Runnable copy = () -> System.arraycopy(input, 0, ints, 0, SIZE);
+    Runnable copyBoxed = () -> {
+      for (int i = 0; i < SIZE; i++) {
+        boxed[i] = input[i];
+      }
+    };
+
+    Benchmark benchmark = new Benchmark("Sort, " + SIZE + " random ints");
+    benchmark.baseline("Arrays.sort(int[])", copy, threads -> Arrays.sort(ints));
+    benchmark.baseline("Arrays.parallelSort(int[])", copy, threads -> Arrays.parallelSort(ints));
+    benchmark.scaling("parallelSort(int[])", copy, threads -> Parallel.parallelSort(ints));
+    benchmark.scaling("parallelRadixSort(int[])", copy, threads -> Parallel.parallelRadixSort(ints));
+    benchmark.baseline("Arrays.parallelSort(Integer[])", copyBoxed, threads -> Arrays.parallelSort(boxed));
+    benchmark.scaling("parallelSort(Integer[])", copyBoxed, threads -> Parallel.parallelSort(boxed));
+    benchmark.scaling("parallelStableSort(Integer[])", copyBoxed, threads -> Parallel.parallelStableSort(boxed));
+  }
+}
@@ -0,0 +1,148 @@
+package org.xiphis.concurrent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class SpliteratorRangeConceptTest {
+
+  private static final int SIZE = 10000;
+
+  private static List<Integer> list() {
+    List<Integer> list = new ArrayList<>();
+    for (int i = 0; i < SIZE; i++) {
+      list.add(i);
+    }
+    return list;
+  }
+
+  private static final class Concat
+      implements Parallel.ReduceBody<SpliteratorRangeConcept<Integer>.SpliteratorRange, Concat> {
+    final List<Integer> items = new ArrayList<>();
+
+    @Override
+    public Concat split() {
+      return new Concat();
+    }
+
+    @Override
+    public void join(Concat rhs) {
+      items.addAll(rhs.items);
+    }
+
+    @Override
+    public void apply(SpliteratorRangeConcept<Integer>.SpliteratorRange range) {
+      range.forEach(items::add);
+    }
+  }
+
+  private interface Case {
+    void run(TaskGroupContext context) throws Exception;
+  }
+
+  private static void onPool(Case body) throws Exception {
+    WorkerPool pool = new WorkerPool(4);
+    try {
+      body.run(new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED));
+    } finally {
+      pool.shutdownGracefully();
+      assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+
+  private static void assertForVisitsOnce(SpliteratorRangeConcept<Integer>.SpliteratorRange range,
+                                          TaskGroupContext context) {
+    AtomicIntegerArray seen = new AtomicIntegerArray(SIZE);
+    Parallel.parallelFor(range,
+        (Parallel.Body<SpliteratorRangeConcept<Integer>.SpliteratorRange>) r -> r.forEach(seen::incrementAndGet),
+        context);
+    for (int i = 0; i < SIZE; i++) {
+      assertEquals(1, seen.get(i));
+    }
+  }
+
+  @Test
+  public void testParallelForSized() throws Exception {
+    onPool(context -> {
+      assertForVisitsOnce(SpliteratorRangeConcept.newInstance(list()), context);
+      assertForVisitsOnce(new SpliteratorRangeConcept<Integer>(7).newRange(list().spliterator()), context);
+    });
+  }
+
+  @Test
+  public void testParallelForUnknownSize() throws Exception {
+    onPool(context -> assertForVisitsOnce(SpliteratorRangeConcept.newInstance(
+        Spliterators.spliteratorUnknownSize(list().iterator(), Spliterator.ORDERED)), context));
+  }
+
+  @Test
+  public void testParallelReduceKeepsEncounterOrder() throws Exception {
+    onPool(context -> {
+      for (int rep = 0; rep < 20; rep++) {
+        Concat body = new Concat();
+        Parallel.parallelReduce(new SpliteratorRangeConcept<Integer>(16).newRange(list().spliterator()), body,
+            SimplePartitionerConcept.<SpliteratorRangeConcept<Integer>.SpliteratorRange>newInstance(), context);
+        assertEquals(list(), body.items);
+      }
+    });
+  }
+
+  @Test
+  public void testDupMovesElements() {
+    SpliteratorRangeConcept<Integer>.SpliteratorRange range = SpliteratorRangeConcept.newInstance(list());
+    SpliteratorRangeConcept<Integer>.SpliteratorRange moved = range.concept().dup(range);
+    assertEquals(SIZE, moved.size());
+    try {
+      range.size();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      range.forEach(i -> fail());
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testParallelScanRejected() {
+    Parallel.parallelScan(SpliteratorRangeConcept.newInstance(list()), new ScanSum());
+  }
+
+  private static final class ScanSum
+      implements Parallel.ScanBody<SpliteratorRangeConcept<Integer>.SpliteratorRange, ScanSum> {
+    long sum;
+
+    @Override
+    public void prescan(SpliteratorRangeConcept<Integer>.SpliteratorRange range) {
+      range.forEach(i -> sum += i);
+    }
+
+    @Override
+    public ScanSum split() {
+      return new ScanSum();
+    }
+
+    @Override
+    public void reverseJoin(ScanSum a) {
+      sum += a.sum;
+    }
+
+    @Override
+    public void assign(ScanSum b) {
+      sum = b.sum;
+    }
+
+    @Override
+    public void apply(SpliteratorRangeConcept<Integer>.SpliteratorRange range) {
+      range.forEach(i -> sum += i);
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package org.xiphis.concurrent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+public class TBBStreamsTest {
+
+  private static final int SIZE = 100000;
+
+  private WorkerPool pool;
+  private TaskGroupContext context;
+
+  @Before
+  public void setUp() {
+    pool = new WorkerPool(4);
+    context = new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.shutdownGracefully();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  private static List<Integer> list(int size) {
+    List<Integer> list = new ArrayList<>();
+    for (int i = 0; i < size; i++) {
+      list.add(i);
+    }
+    return list;
+  }
+
+  private Stream<Integer> stream(int size) {
+    return TBBStreams.parallel(list(size), context);
+  }
+
+  @Test
+  public void testCollectKeepsEncounterOrder() {
+    List<Integer> expected = list(SIZE).stream().map(i -> i * 3).filter(i -> i % 2 == 0).collect(Collectors.toList());
+    for (int rep = 0; rep < 10; rep++) {
+      assertEquals(expected, stream(SIZE).map(i -> i * 3).filter(i -> i % 2 == 0).collect(Collectors.toList()));
+      assertEquals(expected, Arrays.asList(stream(SIZE).map(i -> i * 3).filter(i -> i % 2 == 0).toArray()));
+    }
+  }
+
+  @Test
+  public void testReduceKeepsEncounterOrder() {
+    // Concatenation is associative but not commutative.
+    String expected = list(10000).stream().map(String::valueOf).reduce("", String::concat);
+    for (int rep = 0; rep < 10; rep++) {
+      assertEquals(expected, stream(10000).map(String::valueOf).reduce("", String::concat));
+      assertEquals(expected, stream(10000).map(String::valueOf).reduce(String::concat).get());
+      assertEquals(expected, stream(10000).reduce("", (s, i) -> s + i, String::concat));
+    }
+    assertEquals(Optional.empty(), stream(0).reduce(Integer::sum));
+  }
+
+  @Test
+  public void testAnyMatchStopsEarly() {
+    AtomicInteger tested = new AtomicInteger();
+    assertTrue(stream(1000000).anyMatch(i -> {
+      tested.incrementAndGet();
+      return i == 10;
+    }));
+    assertTrue("tested " + tested, tested.get() < 500000);
+    assertFalse(stream(SIZE).anyMatch(i -> i < 0));
+    assertTrue(stream(SIZE).allMatch(i -> i >= 0));
+    assertTrue(stream(SIZE).noneMatch(i -> i < 0));
+  }
+
+  @Test
+  public void testFindAnyStopsEarly() {
+    AtomicInteger tested = new AtomicInteger();
+    Optional<Integer> found = stream(1000000).filter(i -> {
+      tested.incrementAndGet();
+      return i % 1000 == 999;
+    }).findAny();
+    assertTrue(found.isPresent());
+    assertEquals(999, found.get() % 1000);
+    assertTrue("tested " + tested, tested.get() < 500000);
+    assertFalse(stream(SIZE).filter(i -> i < 0).findAny().isPresent());
+    assertEquals(Integer.valueOf(5), stream(SIZE).filter(i -> i >= 5).findFirst().get());
+  }
+
+  @Test
+  public void testExceptionIsRethrown() {
+    IllegalStateException failure = new IllegalStateException();
+    try {
+      stream(SIZE).map(i -> {
+        if (i == SIZE / 2) {
+          throw failure;
+        }
+        return i;
+      }).forEach(i -> { });
+      fail();
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+    try {
+      stream(SIZE).sorted((a, b) -> {
+        throw failure;
+      }).count();
+      fail();
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+    try {
+      stream(SIZE).anyMatch(i -> {
+        throw failure;
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      assertSame(failure, e);
+    }
+  }
+
+  @Test
+  public void testOnClose() {
+    List<String> closed = new ArrayList<>();
+    try (Stream<Integer> stream = stream(10).onClose(() -> closed.add("a")).onClose(() -> closed.add("b"))) {
+      assertEquals(10, stream.map(i -> i + 1).count());
+    }
+    assertEquals(Arrays.asList("a", "b"), closed);
+
+    closed.clear();
+    try (IntStream stream = stream(10).onClose(() -> closed.add("int")).mapToInt(i -> i)) {
+      assertEquals(45, stream.sum());
+    }
+    assertEquals(Arrays.asList("int"), closed);
+
+    Stream<Integer> stream = stream(10);
+    stream.close();
+    try {
+      stream.count();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void testLimitAndSkip() {
+    List<Integer> all = list(SIZE);
+    assertEquals(all.subList(0, 5), stream(SIZE).limit(5).collect(Collectors.toList()));
+    assertEquals(all.subList(SIZE - 5, SIZE), stream(SIZE).skip(SIZE - 5).collect(Collectors.toList()));
+    assertEquals(all, stream(SIZE).skip(0).collect(Collectors.toList()));
+    assertEquals(0, stream(10).skip(20).count());
+    assertEquals(0, stream(10).map(i -> i).skip(20).count());
+
+    List<Integer> expected = all.stream().filter(i -> i % 3 == 0).skip(100).limit(1000).map(i -> -i)
+        .collect(Collectors.toList());
+    assertEquals(expected, stream(SIZE).filter(i -> i % 3 == 0).skip(100).limit(1000).map(i -> -i)
+        .collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testSkipAfterOperationsCanSplit() {
+    // The elements after the skip are split into chunks for the tasks,
+    // rather than left behind a sequential stream of the JDK.
+    Spliterator<Integer> spliterator = stream(SIZE).map(i -> i * 2).skip(10).spliterator();
+    assertEquals(SIZE - 10, spliterator.getExactSizeIfKnown());
+    Spliterator<Integer> prefix = spliterator.trySplit();
+    assertNotNull(prefix);
+    List<Integer> values = new ArrayList<>();
+    prefix.forEachRemaining(values::add);
+    spliterator.forEachRemaining(values::add);
+    assertEquals(list(SIZE).stream().map(i -> i * 2).skip(10).collect(Collectors.toList()), values);
+  }
+
+  @Test
+  public void testPrimitiveConversionsKeepEncounterOrder() {
+    int[] expected = list(SIZE).stream().mapToInt(i -> i * 7).toArray();
+    for (int rep = 0; rep < 5; rep++) {
+      assertArrayEquals(expected, stream(SIZE).mapToInt(i -> i * 7).toArray());
+      assertArrayEquals(Arrays.stream(expected).asLongStream().toArray(),
+          stream(SIZE).mapToLong(i -> i * 7L).toArray());
+      assertEquals(Arrays.stream(expected).asDoubleStream().boxed().collect(Collectors.toList()),
+          stream(SIZE).mapToDouble(i -> i * 7.0).boxed().collect(Collectors.toList()));
+      assertArrayEquals(list(SIZE).stream().flatMapToInt(i -> IntStream.of(i, -i)).toArray(),
+          stream(SIZE).flatMapToInt(i -> IntStream.of(i, -i)).toArray());
+    }
+    assertEquals(0, stream(0).mapToInt(i -> i).toArray().length);
+  }
+}
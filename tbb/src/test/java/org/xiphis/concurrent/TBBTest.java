@@ -0,0 +1,49 @@
+package org.xiphis.concurrent;
+
+import io.netty.util.concurrent.EventExecutorGroup;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TBBTest {
+
+  private static void assertSorts() {
+    int[] values = new Random(42).ints(100000).toArray();
+    int[] expected = values.clone();
+    Arrays.sort(expected);
+    Parallel.parallelSort(values);
+    assertArrayEquals(expected, values);
+  }
+
+  @Test
+  public void testDefaultExecutorGroup() throws Exception {
+    // Runs on a thread which is not running tasks, so the default is used.
+    assertSorts();
+    EventExecutorGroup created = TBB.defaultExecutorGroup();
+    assertSame(created, TBB.defaultExecutorGroup());
+    assertSame(created, new TaskGroupContext().eventExecutorGroup());
+
+    WorkerPool pool = new WorkerPool(2);
+    try {
+      TBB.setDefaultExecutorGroup(pool);
+      assertTrue(created.awaitTermination(10, TimeUnit.SECONDS));
+      assertSame(pool, TBB.defaultExecutorGroup());
+      assertSame(pool, new TaskGroupContext().eventExecutorGroup());
+      assertSorts();
+
+      // Executors of the application are not shut down when replaced.
+      TBB.setDefaultExecutorGroup(null);
+      assertFalse(pool.isShuttingDown());
+      EventExecutorGroup recreated = TBB.defaultExecutorGroup();
+      assertNotSame(created, recreated);
+      assertNotSame(pool, recreated);
+      assertSorts();
+    } finally {
+      pool.shutdownGracefully();
+    }
+  }
+}
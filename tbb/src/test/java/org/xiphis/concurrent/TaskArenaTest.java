@@ -0,0 +1,108 @@
+package org.xiphis.concurrent;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TaskArenaTest {
+
+  private static Task root(TaskGroupContext context, Runnable action) {
+    return Task.allocateRoot(context, () -> new Task() {
+      @Override
+      public Task execute() {
+        action.run();
+        return null;
+      }
+    });
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+    } catch (InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  @Test
+  public void testHigherPriorityTaskRunsFirst() throws Exception {
+    WorkerPool pool = new WorkerPool(1);
+    try {
+      CountDownLatch started = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      CountDownLatch done = new CountDownLatch(2);
+      List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+      // Keeps the only worker busy while the other tasks are passed to it.
+      Task.enqueue(root(new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED), () -> {
+        started.countDown();
+        await(release);
+      }));
+      await(started);
+
+      TaskArena low = new TaskArena(pool, 1, TaskArena.Priority.LOW);
+      TaskArena high = new TaskArena(pool, 1, TaskArena.Priority.HIGH);
+      Task.enqueue(root(low.newContext(), () -> {
+        order.add("low");
+        done.countDown();
+      }));
+      Task.enqueue(root(high.newContext(), () -> {
+        order.add("high");
+        done.countDown();
+      }));
+      release.countDown();
+      await(done);
+      assertEquals(Arrays.asList("high", "low"), order);
+    } finally {
+      pool.shutdownGracefully();
+      assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testHigherPriorityTaskInterruptsLowerPriorityLoop() throws Exception {
+    WorkerPool pool = new WorkerPool(1);
+    try {
+      TaskArena low = new TaskArena(pool, 1, TaskArena.Priority.LOW);
+      TaskArena high = new TaskArena(pool, 1, TaskArena.Priority.HIGH);
+      int chunks = 100;
+      AtomicInteger lowDone = new AtomicInteger();
+      CountDownLatch lowStarted = new CountDownLatch(1);
+      Thread caller = new Thread(() -> Parallel.parallelFor(new IntRangeConcept(1).newInstance(0, chunks),
+          (Parallel.Body<IntRangeConcept.IntRange>) r -> {
+            lowStarted.countDown();
+            try {
+              Thread.sleep(2);
+            } catch (InterruptedException e) {
+              throw new AssertionError(e);
+            }
+            lowDone.incrementAndGet();
+          },
+          SimplePartitionerConcept.<IntRangeConcept.IntRange>newInstance(), low.newContext()));
+      caller.start();
+      await(lowStarted);
+
+      AtomicInteger seen = new AtomicInteger(-1);
+      CountDownLatch highDone = new CountDownLatch(1);
+      Task.enqueue(root(high.newContext(), () -> {
+        seen.set(lowDone.get());
+        highDone.countDown();
+      }));
+      await(highDone);
+      caller.join(10000);
+      assertEquals(chunks, lowDone.get());
+      assertTrue("high priority task ran after " + seen + " chunks", seen.get() < chunks);
+    } finally {
+      pool.shutdownGracefully();
+      assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+}
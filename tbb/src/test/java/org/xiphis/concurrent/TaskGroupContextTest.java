@@ -0,0 +1,113 @@
+package org.xiphis.concurrent;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+
+public class TaskGroupContextTest {
+
+  private WorkerPool pool;
+  private TaskGroupContext outer;
+
+  @Before
+  public void setUp() {
+    pool = new WorkerPool(4);
+    outer = new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    pool.shutdownGracefully();
+    assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  /**
+   * Runs the action in a task of the outer context.
+   */
+  private void inTask(Consumer<Task> action) {
+    Task.spawnRootAndWait(Task.allocateRoot(outer, () -> new Task() {
+      @Override
+      protected Task execute() {
+        action.accept(this);
+        return null;
+      }
+    }));
+  }
+
+  @Test
+  public void testBoundContextIsCancelledWithParent() {
+    TaskGroupContext[] contexts = new TaskGroupContext[3];
+    inTask(task -> {
+      contexts[0] = new TaskGroupContext();
+      contexts[1] = new TaskGroupContext(TaskGroupContext.Kind.ISOLATED);
+      contexts[2] = new TaskGroupContext(contexts[0]);
+    });
+    TaskGroupContext bound = contexts[0];
+    TaskGroupContext isolated = contexts[1];
+    TaskGroupContext nested = contexts[2];
+    assertSame(outer, bound.parent());
+    assertNull(isolated.parent());
+    assertSame(bound, nested.parent());
+    assertFalse(bound.isGroupExecutionCancelled());
+    assertFalse(nested.isGroupExecutionCancelled());
+
+    assertTrue(outer.cancelGroupExecution());
+    assertTrue(bound.isGroupExecutionCancelled());
+    assertTrue(nested.isGroupExecutionCancelled());
+    assertFalse(isolated.isGroupExecutionCancelled());
+  }
+
+  @Test
+  public void testChildCancellationDoesNotCancelParent() {
+    TaskGroupContext[] contexts = new TaskGroupContext[2];
+    inTask(task -> {
+      contexts[0] = new TaskGroupContext();
+      contexts[1] = new TaskGroupContext();
+    });
+    assertTrue(contexts[0].cancelGroupExecution());
+    assertTrue(contexts[0].isGroupExecutionCancelled());
+    assertFalse(outer.isGroupExecutionCancelled());
+    assertFalse(contexts[1].isGroupExecutionCancelled());
+  }
+
+  /**
+   * Cancels the outer context from its task, then starts a nested loop.
+   * The loop of a bound context runs no bodies; an isolated loop runs them
+   * all.
+   */
+  @Test
+  public void testNestedLoopStopsWhenOuterCancelled() {
+    AtomicInteger bound = new AtomicInteger();
+    AtomicInteger isolated = new AtomicInteger();
+    inTask(task -> {
+      outer.cancelGroupExecution();
+      Parallel.forEach(0, 1000, 1, i -> bound.incrementAndGet(), new TaskGroupContext());
+      Parallel.forEach(0, 1000, 1, i -> isolated.incrementAndGet(),
+          new TaskGroupContext(TaskGroupContext.Kind.ISOLATED));
+    });
+    assertEquals(0, bound.get());
+    assertEquals(1000, isolated.get());
+  }
+
+  /**
+   * Cancelling the outer context while a bound nested loop is running stops
+   * the loop early.
+   */
+  @Test
+  public void testRunningNestedLoopIsCancelled() {
+    AtomicInteger bodies = new AtomicInteger();
+    inTask(task -> Parallel.forEach(0, 100000, 1, i -> {
+      if (bodies.incrementAndGet() == 100) {
+        outer.cancelGroupExecution();
+      }
+    }, new TaskGroupContext()));
+    assertTrue(outer.isGroupExecutionCancelled());
+    assertTrue(bodies.get() + " bodies", bodies.get() < 100000);
+  }
+}
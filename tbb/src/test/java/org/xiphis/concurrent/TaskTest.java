@@ -0,0 +1,131 @@
+package org.xiphis.concurrent;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TaskTest {
+
+  private static final int ITERATIONS = 100000;
+
+  private interface Step {
+    void run(Task task);
+  }
+
+  /**
+   * Bytes allocated by the current thread, or -1 when the JVM does not
+   * measure them.
+   */
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    com.sun.management.ThreadMXBean sun = (com.sun.management.ThreadMXBean) bean;
+    if (!sun.isThreadAllocatedMemorySupported() || !sun.isThreadAllocatedMemoryEnabled()) {
+      return -1;
+    }
+    return sun.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /**
+   * Runs the step many times from within a task, after a warmup, and
+   * returns the bytes allocated per iteration.
+   */
+  private static double allocatedPerIteration(Step step) throws Exception {
+    WorkerPool pool = new WorkerPool(1);
+    try {
+      TaskGroupContext context = new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED);
+      double[] result = new double[1];
+      Task.spawnRootAndWait(context, Task.allocateRoot(context, () -> new Task() {
+        @Override
+        public Task execute() {
+          for (int i = 0; i < ITERATIONS; i++) {
+            step.run(this);
+          }
+          long start = allocatedBytes();
+          for (int i = 0; i < ITERATIONS; i++) {
+            step.run(this);
+          }
+          long end = allocatedBytes();
+          result[0] = start < 0 ? -1 : (double) (end - start) / ITERATIONS;
+          return null;
+        }
+      }));
+      return result[0];
+    } finally {
+      pool.shutdownGracefully();
+      assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testEmptyChildIsPooled() throws Exception {
+    double bytes = allocatedPerIteration(task -> {
+      EmptyTask child = task.allocateChild(EmptyTask.SUPPLIER);
+      task.setRefCount(2);
+      task.spawnAndWaitForAll(child);
+    });
+    Assume.assumeTrue(bytes >= 0);
+    assertTrue(bytes + " bytes per child", bytes < 1);
+  }
+
+  @Test
+  public void testRootPrefixIsPooled() throws Exception {
+    // The lists and their iterators are allocated, about 150 bytes; the
+    // root, its prefix, and the placeholder which waits for it come from
+    // the free lists. Allocating those as well came to about 300 bytes.
+    double bytes = allocatedPerIteration(task -> {
+      List<Task> roots = Collections.singletonList(
+          Task.allocateRoot((TaskGroupContext) task.context(), EmptyTask.SUPPLIER));
+      Task.spawnRootAndWait(roots);
+    });
+    Assume.assumeTrue(bytes >= 0);
+    assertTrue(bytes + " bytes per root", bytes < 224);
+  }
+
+  /**
+   * Runs an affinity partitioned loop on pools which are shut down one after
+   * the other. The workers release their schedulers as they exit, so the
+   * workers of the next pool reuse them, affinity ids included, rather than
+   * creating more.
+   */
+  @Test
+  public void testSchedulersOfExitedWorkersAreReused() throws Exception {
+    AffinityPartitionerConcept<IntRangeConcept.IntRange>.AffinityPartitioner partitioner =
+        AffinityPartitionerConcept.newInstance();
+    int[] data = new int[1 << 16];
+    int schedulers = 0;
+    for (int round = 0; round < 20; round++) {
+      WorkerPool pool = new WorkerPool(4);
+      try {
+        TaskGroupContext context = new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED);
+        for (int pass = 0; pass < 3; pass++) {
+          Parallel.parallelFor(new IntRangeConcept(1 << 10).newInstance(0, data.length),
+              (Parallel.Body<IntRangeConcept.IntRange>) range -> {
+                for (int i = range.begin(); i < range.end(); i++) {
+                  data[i]++;
+                }
+              }, partitioner, context);
+        }
+      } finally {
+        pool.shutdownGracefully();
+        assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+      }
+      if (round == 0) {
+        schedulers = Statistics.snapshot().size();
+      } else {
+        assertTrue("round " + round, Statistics.snapshot().size() <= schedulers);
+      }
+    }
+    for (int value : data) {
+      assertEquals(60, value);
+    }
+  }
+}
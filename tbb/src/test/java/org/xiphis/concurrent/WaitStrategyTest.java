@@ -0,0 +1,62 @@
+package org.xiphis.concurrent;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class WaitStrategyTest {
+
+  private static final int ROOTS = 300;
+
+  /**
+   * Runs many roots one after another, each in a new child context which
+   * inherits the strategy, and checks that the worker does not nest them.
+   */
+  private static void runSequentialRoots(WaitStrategy strategy) throws Exception {
+    WorkerPool pool = new WorkerPool(1);
+    try {
+      TaskGroupContext context = new TaskGroupContext(pool, TaskGroupContext.Kind.ISOLATED);
+      context.setWaitStrategy(strategy);
+      Thread caller = Thread.currentThread();
+      AtomicLong sum = new AtomicLong();
+      AtomicInteger firstDepth = new AtomicInteger();
+      AtomicInteger lastDepth = new AtomicInteger();
+      for (int i = 0; i < ROOTS; i++) {
+        AtomicInteger depth = i < ROOTS / 10 ? firstDepth : lastDepth;
+        Parallel.parallelFor(new IntRangeConcept(8).newInstance(0, 64),
+            (Parallel.Body<IntRangeConcept.IntRange>) r -> {
+              sum.addAndGet(r.end() - r.begin());
+              if (Thread.currentThread() != caller) {
+                depth.accumulateAndGet(Thread.currentThread().getStackTrace().length, Math::max);
+              }
+            },
+            new TaskGroupContext(context));
+      }
+      assertEquals(ROOTS * 64L, sum.get());
+      assertTrue("stack grew from " + firstDepth + " to " + lastDepth,
+          lastDepth.get() <= firstDepth.get() + 20);
+    } finally {
+      pool.shutdownGracefully();
+      assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+
+  @Test
+  public void testBusySpinManySequentialRoots() throws Exception {
+    runSequentialRoots(WaitStrategy.busySpin());
+  }
+
+  @Test
+  public void testSpinThenParkManySequentialRoots() throws Exception {
+    runSequentialRoots(WaitStrategy.spinThenPark(10, 100, TimeUnit.MICROSECONDS));
+  }
+
+  @Test
+  public void testDefaultManySequentialRoots() throws Exception {
+    runSequentialRoots(WaitStrategy.DEFAULT);
+  }
+}
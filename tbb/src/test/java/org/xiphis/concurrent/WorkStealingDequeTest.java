@@ -0,0 +1,114 @@
+package org.xiphis.concurrent;
+
+import org.junit.Test;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.Assert.*;
+
+public class WorkStealingDequeTest {
+
+  private static Task[] tasks(int count, Map<Task, Integer> index) {
+    Task[] tasks = new Task[count];
+    for (int i = 0; i < count; i++) {
+      tasks[i] = new EmptyTask();
+      index.put(tasks[i], i);
+    }
+    return tasks;
+  }
+
+  @Test
+  public void testOwnerIsLastInFirstOut() {
+    WorkStealingDeque deque = new WorkStealingDeque();
+    Map<Task, Integer> index = new IdentityHashMap<>();
+    Task[] tasks = tasks(3 * WorkStealingDeque._initialCapacity, index);
+    for (Task task : tasks) {
+      deque.push(task);
+    }
+    assertEquals(tasks.length, deque.size());
+    assertSame(tasks[0], deque.steal());
+    for (int i = tasks.length - 1; i > 0; i--) {
+      assertSame(tasks[i], deque.pop());
+    }
+    assertNull(deque.pop());
+    assertNull(deque.steal());
+    assertTrue(deque.isEmpty());
+  }
+
+  /**
+   * The owner pushes in bursts which grow the array and pops some of each
+   * burst, while thieves steal. Every task must be taken exactly once.
+   */
+  @Test
+  public void testConcurrentPushPopSteal() throws Exception {
+    int count = 1 << 20;
+    int thieves = 3;
+    WorkStealingDeque deque = new WorkStealingDeque();
+    Map<Task, Integer> index = new IdentityHashMap<>();
+    Task[] tasks = tasks(count, index);
+    AtomicIntegerArray taken = new AtomicIntegerArray(count);
+    AtomicBoolean done = new AtomicBoolean();
+    CountDownLatch start = new CountDownLatch(1);
+    int[] stolen = new int[thieves];
+    Thread[] threads = new Thread[thieves];
+    for (int i = 0; i < thieves; i++) {
+      int id = i;
+      threads[i] = new Thread(() -> {
+        try {
+          start.await();
+        } catch (InterruptedException e) {
+          return;
+        }
+        for (;;) {
+          boolean finished = done.get();
+          Task task = deque.steal();
+          if (task != null) {
+            taken.incrementAndGet(index.get(task));
+            stolen[id]++;
+          } else if (finished && deque.isEmpty()) {
+            return;
+          }
+        }
+      });
+      threads[i].start();
+    }
+    start.countDown();
+    int popped = 0;
+    int next = 0;
+    while (next < count) {
+      // Bursts of up to 255 tasks, so the array is grown past its initial capacity.
+      int burst = Math.min(count - next, 1 + (next * 31 & 255));
+      for (int i = 0; i < burst; i++) {
+        deque.push(tasks[next++]);
+      }
+      for (int i = 0; i < burst / 2; i++) {
+        Task task = deque.pop();
+        if (task == null) {
+          break;
+        }
+        taken.incrementAndGet(index.get(task));
+        popped++;
+      }
+    }
+    Task task;
+    while ((task = deque.pop()) != null) {
+      taken.incrementAndGet(index.get(task));
+      popped++;
+    }
+    done.set(true);
+    int total = popped;
+    for (int i = 0; i < thieves; i++) {
+      threads[i].join();
+      total += stolen[i];
+    }
+    for (int i = 0; i < count; i++) {
+      assertEquals("task " + i, 1, taken.get(i));
+    }
+    assertEquals(count, total);
+    assertTrue(deque.isEmpty());
+  }
+}